@@ -0,0 +1,367 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.base;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable hash map, which is changed by creating modified copies. A copy shares all unchanged nodes with
+ * the original (hash array mapped trie), so <code>plus()</code> and <code>minus()</code> copy only
+ * <code>O(log32 n)</code> nodes. Used for snapshots of entities, which readers use without locking. Keys and
+ * values must not be <code>null</code>. GWT compatible.
+ */
+public final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+	private static final int MAX_DEPTH = 8;
+
+	private static final PersistentHashMap EMPTY = new PersistentHashMap(null, 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentHashMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	public static <K, V> PersistentHashMap<K, V> empty() {
+		return EMPTY;
+	}
+
+	public static <K, V> PersistentHashMap<K, V> copyOf(Map<K, V> map) {
+		if (map instanceof PersistentHashMap) return (PersistentHashMap<K, V>) map;
+		PersistentHashMap<K, V> ret = empty();
+		for (Map.Entry<K, V> entry : map.entrySet()) {
+			ret = ret.plus(entry.getKey(), entry.getValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * A copy which maps the key to the value. Returns this map, when the key is mapped to the same value
+	 * already.
+	 */
+	public PersistentHashMap<K, V> plus(K key, V value) {
+		if (value == null) throw new NullPointerException("value");
+		int hash = hash(key);
+		Change change = new Change();
+		Node node = root == null ? new Node(1 << (hash & MASK), new Object[] { new Leaf(hash, key, value) })
+				: root.plus(0, hash, key, value, change);
+		if (root == null) change.sizeDelta = 1;
+		if (node == root) return this;
+		return new PersistentHashMap<K, V>(node, size + change.sizeDelta);
+	}
+
+	/**
+	 * A copy without the key. Returns this map, when the key is not contained.
+	 */
+	public PersistentHashMap<K, V> minus(Object key) {
+		if (root == null) return this;
+		Node node = root.minus(0, hash(key), key);
+		if (node == root) return this;
+		return new PersistentHashMap<K, V>(node, size - 1);
+	}
+
+	@Override
+	public V get(Object key) {
+		if (root == null || key == null) return null;
+		return (V) root.find(0, hash(key), key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static Node merge(int shift, Leaf a, Leaf b) {
+		if (shift >= 32) return new Node(0, new Object[] { a, b });
+		int idxA = (a.hash >>> shift) & MASK;
+		int idxB = (b.hash >>> shift) & MASK;
+		if (idxA == idxB) return new Node(1 << idxA, new Object[] { merge(shift + BITS, a, b) });
+		return new Node((1 << idxA) | (1 << idxB), idxA < idxB ? new Object[] { a, b } : new Object[] { b, a });
+	}
+
+	/**
+	 * Array of leafs and sub nodes, indexed by the bits of the hash at the level of the node. Nodes below the
+	 * last level have a bitmap of <code>0</code> and contain colliding leafs only.
+	 */
+	private static class Node {
+
+		private final int bitmap;
+		private final Object[] array;
+
+		public Node(int bitmap, Object[] array) {
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		Object find(int shift, int hash, Object key) {
+			if (bitmap == 0) {
+				for (Object o : array) {
+					Leaf leaf = (Leaf) o;
+					if (leaf.matches(hash, key)) return leaf.value;
+				}
+				return null;
+			}
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0) return null;
+			Object o = array[index(bit)];
+			if (o instanceof Leaf) {
+				Leaf leaf = (Leaf) o;
+				return leaf.matches(hash, key) ? leaf.value : null;
+			}
+			return ((Node) o).find(shift + BITS, hash, key);
+		}
+
+		Node plus(int shift, int hash, Object key, Object value, Change change) {
+			if (bitmap == 0) {
+				for (int i = 0; i < array.length; i++) {
+					Leaf leaf = (Leaf) array[i];
+					if (!leaf.matches(hash, key)) continue;
+					if (leaf.value == value) return this;
+					return replace(i, new Leaf(hash, key, value));
+				}
+				change.sizeDelta = 1;
+				return new Node(0, insert(array.length, new Leaf(hash, key, value)));
+			}
+			int bit = 1 << ((hash >>> shift) & MASK);
+			int idx = index(bit);
+			if ((bitmap & bit) == 0) {
+				change.sizeDelta = 1;
+				return new Node(bitmap | bit, insert(idx, new Leaf(hash, key, value)));
+			}
+			Object o = array[idx];
+			if (o instanceof Leaf) {
+				Leaf leaf = (Leaf) o;
+				if (leaf.matches(hash, key)) {
+					if (leaf.value == value) return this;
+					return replace(idx, new Leaf(hash, key, value));
+				}
+				change.sizeDelta = 1;
+				return replace(idx, merge(shift + BITS, leaf, new Leaf(hash, key, value)));
+			}
+			Node node = (Node) o;
+			Node changed = node.plus(shift + BITS, hash, key, value, change);
+			return changed == node ? this : replace(idx, changed);
+		}
+
+		/**
+		 * @return this node, when the key is not contained, <code>null</code> when the node gets empty
+		 */
+		Node minus(int shift, int hash, Object key) {
+			if (bitmap == 0) {
+				for (int i = 0; i < array.length; i++) {
+					if (((Leaf) array[i]).matches(hash, key)) return removeAt(0, i);
+				}
+				return this;
+			}
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0) return this;
+			int idx = index(bit);
+			Object o = array[idx];
+			if (o instanceof Leaf) {
+				if (!((Leaf) o).matches(hash, key)) return this;
+				return removeAt(bit, idx);
+			}
+			Node node = (Node) o;
+			Node changed = node.minus(shift + BITS, hash, key);
+			if (changed == node) return this;
+			if (changed == null) return removeAt(bit, idx);
+			return replace(idx, changed);
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		private Node replace(int idx, Object o) {
+			Object[] copy = new Object[array.length];
+			System.arraycopy(array, 0, copy, 0, array.length);
+			copy[idx] = o;
+			return new Node(bitmap, copy);
+		}
+
+		private Object[] insert(int idx, Object o) {
+			Object[] copy = new Object[array.length + 1];
+			System.arraycopy(array, 0, copy, 0, idx);
+			copy[idx] = o;
+			System.arraycopy(array, idx, copy, idx + 1, array.length - idx);
+			return copy;
+		}
+
+		private Node removeAt(int bit, int idx) {
+			if (array.length == 1) return null;
+			Object[] copy = new Object[array.length - 1];
+			System.arraycopy(array, 0, copy, 0, idx);
+			System.arraycopy(array, idx + 1, copy, idx, array.length - idx - 1);
+			return new Node(bitmap ^ bit, copy);
+		}
+
+	}
+
+	private static class Leaf implements Map.Entry {
+
+		private final int hash;
+		private final Object key;
+		private final Object value;
+
+		public Leaf(int hash, Object key, Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+
+		boolean matches(int hash, Object key) {
+			return this.hash == hash && this.key.equals(key);
+		}
+
+		@Override
+		public Object getKey() {
+			return key;
+		}
+
+		@Override
+		public Object getValue() {
+			return value;
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Map.Entry)) return false;
+			Map.Entry other = (Map.Entry) obj;
+			return key.equals(other.getKey()) && value.equals(other.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ value.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+
+	}
+
+	private static class Change {
+
+		private int sizeDelta;
+
+	}
+
+	/**
+	 * Walks the trie depth first, with a stack of node arrays.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		private final Object[][] arrays = new Object[MAX_DEPTH][];
+		private final int[] positions = new int[MAX_DEPTH];
+		private int depth = -1;
+		private Leaf next;
+
+		public EntryIterator() {
+			if (root != null) push(root.array);
+			advance();
+		}
+
+		private void push(Object[] array) {
+			depth++;
+			arrays[depth] = array;
+			positions[depth] = 0;
+		}
+
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				Object[] array = arrays[depth];
+				if (positions[depth] >= array.length) {
+					arrays[depth] = null;
+					depth--;
+					continue;
+				}
+				Object o = array[positions[depth]++];
+				if (o instanceof Leaf) {
+					next = (Leaf) o;
+					return;
+				}
+				push(((Node) o).array);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (next == null) throw new NoSuchElementException();
+			Leaf ret = next;
+			advance();
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
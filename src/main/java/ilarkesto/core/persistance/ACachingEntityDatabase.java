@@ -14,53 +14,178 @@
  */
 package ilarkesto.core.persistance;
 
+import ilarkesto.core.base.RuntimeTracker;
+
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public abstract class ACachingEntityDatabase extends AEntityDatabase {
 
-	protected EntityCache cache = new EntityCache();
+	protected volatile EntityCache cache = new EntityCache();
+
+	private volatile QueryCache queryCache;
+
+	private volatile boolean concurrentReads;
 
 	protected abstract void onUpdate(Collection<AEntity> entities, Collection<String> entityIds,
 			Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback);
 
+	/**
+	 * Maximum number of cached query results. <code>0</code> disables the query cache.
+	 */
+	protected int getQueryCacheSize() {
+		return 1000;
+	}
+
+	/**
+	 * Created on first use, so <code>getQueryCacheSize()</code> is not called before subclasses are initialized.
+	 */
+	protected final QueryCache getQueryCache() {
+		QueryCache ret = queryCache;
+		if (ret != null) return ret;
+		synchronized (this) {
+			if (queryCache == null) queryCache = new QueryCache(getQueryCacheSize());
+			return queryCache;
+		}
+	}
+
+	/**
+	 * Lets readers use the cache without locking the database, also while an update is running. The cache is
+	 * frozen, updates are applied to a copy of it, which replaces it when complete. The copies share all unmodified
+	 * entities and indexes, so an update takes time proportional to the number of modified entities.
+	 */
+	protected final synchronized void activateConcurrentReads() {
+		if (concurrentReads) return;
+		cache.freeze();
+		concurrentReads = true;
+	}
+
+	public final boolean isConcurrentReads() {
+		return concurrentReads;
+	}
+
 	@Override
 	public synchronized void update(Collection<AEntity> modified, Collection<String> deletedIds,
 			Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback) {
 		onUpdate(modified, deletedIds, modifiedPropertiesByEntityId, callback);
-		cache.addAll(modified);
-		cache.removeAll(deletedIds);
+		if (!concurrentReads) {
+			cache.addAll(modified);
+			cache.removeAll(deletedIds);
+			return;
+		}
+		if ((modified == null || modified.isEmpty()) && (deletedIds == null || deletedIds.isEmpty())) return;
+		EntityCache updated = cache.copy();
+		updated.addAll(modified);
+		updated.removeAll(deletedIds);
+		updated.freeze();
+		cache = updated;
 	}
 
 	@Override
-	public synchronized AEntity get(String id) throws EntityDoesNotExistException {
-		return cache.get(id);
+	public AEntity get(String id) throws EntityDoesNotExistException {
+		if (concurrentReads) return cache.get(id);
+		synchronized (this) {
+			return cache.get(id);
+		}
 	}
 
 	@Override
-	public synchronized boolean contains(String id) {
-		return cache.contains(id);
+	public boolean contains(String id) {
+		if (concurrentReads) return cache.contains(id);
+		synchronized (this) {
+			return cache.contains(id);
+		}
 	}
 
 	@Override
-	public synchronized Set<AEntity> list(Collection<String> ids) throws EntityDoesNotExistException {
-		return cache.list(ids);
+	public Set<AEntity> list(Collection<String> ids) throws EntityDoesNotExistException {
+		if (concurrentReads) return cache.list(ids);
+		synchronized (this) {
+			return cache.list(ids);
+		}
 	}
 
 	@Override
 	public AEntity get(AEntityQuery query) {
-		return cache.get(query);
+		final AEntity[] ret = new AEntity[1];
+		visit(query, new EntityVisitor() {
+
+			@Override
+			public boolean visit(AEntity entity) {
+				ret[0] = entity;
+				return false;
+			}
+		});
+		return ret[0];
 	}
 
 	@Override
 	public Set<AEntity> list(AEntityQuery query) {
-		return cache.list(query);
+		final Set<AEntity> ret = new HashSet<AEntity>();
+		visit(query, new EntityVisitor() {
+
+			@Override
+			public boolean visit(AEntity entity) {
+				ret.add(entity);
+				return true;
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Without concurrent reads, the database is locked while the visitor runs.
+	 */
+	@Override
+	public boolean visit(AEntityQuery query, EntityVisitor visitor) {
+		if (concurrentReads) return visit(cache, query, visitor);
+		synchronized (this) {
+			return visit(cache, query, visitor);
+		}
+	}
+
+	/**
+	 * Provides cached results for cacheable queries. Results are cached, when the visitor did not stop the query.
+	 * Not with a residency limit, since cached results would keep evicted entities in memory.
+	 */
+	private boolean visit(EntityCache cache, AEntityQuery query, final EntityVisitor visitor) {
+		QueryCache queryCache = getQueryCache();
+		String key = queryCache.getKey(query);
+		if (key == null || cache.getResidencyLimit() > 0) return cache.visit(query, visitor);
+
+		long version = cache.getVersion(query.getType());
+		List<AEntity> cached = queryCache.get(key, version);
+		if (cached != null) {
+			for (AEntity entity : cached) {
+				if (!visitor.visit(entity)) return false;
+			}
+			return true;
+		}
+
+		RuntimeTracker rt = new RuntimeTracker();
+		final List<AEntity> result = new ArrayList<AEntity>();
+		boolean completed = cache.visit(query, new EntityVisitor() {
+
+			@Override
+			public boolean visit(AEntity entity) {
+				result.add(entity);
+				return visitor.visit(entity);
+			}
+		});
+		if (completed) queryCache.put(key, version, result, rt.getRuntime());
+		return completed;
 	}
 
 	@Override
 	public Collection<AEntity> listAll() {
-		return cache.getAll();
+		if (concurrentReads) return cache.getAll();
+		synchronized (this) {
+			return cache.getAll();
+		}
 	}
 
 }
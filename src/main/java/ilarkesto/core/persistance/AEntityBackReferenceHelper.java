@@ -15,41 +15,28 @@
 package ilarkesto.core.persistance;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
+/**
+ * Resolves the entity referencing an entity by a unique reference. <code>loadById()</code> is expected to use a
+ * <code>ReferenceQuery</code>, which is answered from the reverse reference index of the <code>EntityCache</code>
+ * and merged with the modifications of the current transaction. Therefore nothing is cached here.
+ */
 public abstract class AEntityBackReferenceHelper<E extends AEntity> {
 
-	private Map<String, String> cachesById = new HashMap<String, String>();
-
 	protected abstract E loadById(String id);
 
-	public synchronized E getById(String id) {
-		// if (AEntityDatabase.instance.isPartial()) return loadById(id);
-		String cache = cachesById.get(id);
-
-		if (cache != null) {
-			try {
-				return (E) AEntity.getById(cache);
-			} catch (EntityDoesNotExistException ex) {}
-		}
-
-		E entity = loadById(id);
-		if (entity == null) return null;
-		if (!AEntityDatabase.instance.isTransactionWithChangesOpen()) {
-			cachesById.put(id, entity.getId());
-		}
-		return entity;
+	public E getById(String id) {
+		return loadById(id);
 	}
 
-	public synchronized void clear(String id) {
-		cachesById.remove(id);
-	}
+	/**
+	 * Nothing to clear, the index is updated with the entities. Still called by generated code.
+	 */
+	public void clear(String id) {}
 
-	public synchronized void clear(Collection<String> ids) {
-		for (String id : ids) {
-			clear(id);
-		}
-	}
+	/**
+	 * Nothing to clear, the index is updated with the entities. Still called by generated code.
+	 */
+	public void clear(Collection<String> ids) {}
 
 }
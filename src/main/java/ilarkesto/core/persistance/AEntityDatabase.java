@@ -41,6 +41,18 @@ public abstract class AEntityDatabase {
 
 	public abstract Set<AEntity> list(AEntityQuery query);
 
+	/**
+	 * Passes the entities matching the query to the visitor, until it returns <code>false</code>.
+	 *
+	 * @return <code>false</code> if the visitor stopped
+	 */
+	public boolean visit(AEntityQuery query, EntityVisitor visitor) {
+		for (AEntity entity : list(query)) {
+			if (!visitor.visit(entity)) return false;
+		}
+		return true;
+	}
+
 	public abstract boolean isTransactionWithChangesOpen();
 
 	public abstract void update(Collection<AEntity> modified, Collection<String> deletedIds,
@@ -48,6 +60,11 @@ public abstract class AEntityDatabase {
 
 	public abstract Collection<AEntity> listAll();
 
+	/**
+	 * Called when the application shuts down, after the last transaction.
+	 */
+	public void shutdown() {}
+
 	public boolean isPartial() {
 		return false;
 	}
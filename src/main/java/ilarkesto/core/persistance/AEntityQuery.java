@@ -19,6 +19,7 @@ import ilarkesto.core.fp.Predicate;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 
@@ -32,6 +33,24 @@ public abstract class AEntityQuery<T extends AEntity> implements Predicate<T> {
 		return (T) AEntityDatabase.get().getTransaction().getFirst(this);
 	}
 
+	/**
+	 * Page of the matching entities, in no particular order.
+	 */
+	public List<T> list(int offset, int limit) {
+		return (List<T>) AEntityDatabase.get().getTransaction().list(this, offset, limit);
+	}
+
+	/**
+	 * Page of the matching entities, sorted by the comparator.
+	 */
+	public List<T> list(Comparator<? super T> comparator, int offset, int limit) {
+		return (List<T>) AEntityDatabase.get().getTransaction().list(this, (Comparator) comparator, offset, limit);
+	}
+
+	public int count() {
+		return AEntityDatabase.get().getTransaction().count(this);
+	}
+
 	@Override
 	public abstract boolean test(T entity);
 
@@ -39,6 +58,15 @@ public abstract class AEntityQuery<T extends AEntity> implements Predicate<T> {
 		return null;
 	}
 
+	/**
+	 * Parameters of the query, which determine its result together with the query class. Queries providing a key
+	 * have their results cached by the database until entities of their type are modified. <code>null</code>
+	 * for queries which are not cacheable.
+	 */
+	public String getCacheKey() {
+		return null;
+	}
+
 	public List<T> filter(Collection<T> entities) {
 		ArrayList<T> ret = new ArrayList<T>();
 		for (T entity : entities) {
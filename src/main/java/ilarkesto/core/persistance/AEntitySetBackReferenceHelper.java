@@ -1,57 +1,43 @@
 /*
  * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
- * 
+ *
  * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
  * General Public License as published by the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
- * 
+ *
  * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
  * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
  * License for more details.
- * 
+ *
  * You should have received a copy of the GNU Affero General Public License along with this program. If not,
  * see <http://www.gnu.org/licenses/>.
  */
 package ilarkesto.core.persistance;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 
+/**
+ * Resolves the entities referencing an entity. <code>loadById()</code> is expected to use a
+ * <code>ReferenceQuery</code>, which is answered from the reverse reference index of the <code>EntityCache</code>
+ * and merged with the modifications of the current transaction. Therefore nothing is cached here.
+ */
 public abstract class AEntitySetBackReferenceHelper<E extends AEntity> {
 
-	private Map<String, Set<String>> cachesById = new HashMap<String, Set<String>>();
-
 	protected abstract Set<E> loadById(String id);
 
-	public synchronized Set<E> getById(String id) {
-		// if (AEntityDatabase.instance.isPartial()) return loadById(id);
-		Set<String> cache = cachesById.get(id);
-
-		if (cache != null) {
-			try {
-				return (Set<E>) AEntity.getByIdsAsSet(cache);
-			} catch (EntityDoesNotExistException ex) {
-				cachesById.remove(id);
-			}
-		}
-
-		Set<E> entities = loadById(id);
-		if (!AEntityDatabase.instance.isTransactionWithChangesOpen()) {
-			cachesById.put(id, Persistence.getIdsAsSet(entities));
-		}
-		return entities;
+	public Set<E> getById(String id) {
+		return loadById(id);
 	}
 
-	public synchronized void clear(String id) {
-		cachesById.remove(id);
-	}
+	/**
+	 * Nothing to clear, the index is updated with the entities. Still called by generated code.
+	 */
+	public void clear(String id) {}
 
-	public synchronized void clear(Collection<String> ids) {
-		for (String id : ids) {
-			clear(id);
-		}
-	}
+	/**
+	 * Nothing to clear, the index is updated with the entities. Still called by generated code.
+	 */
+	public void clear(Collection<String> ids) {}
 
 }
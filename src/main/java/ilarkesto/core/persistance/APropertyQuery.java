@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import ilarkesto.core.base.Utl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Query for entities by the value of a property, as provided by <code>AEntity.storeProperties()</code>. An
+ * <code>EntityCache</code> answers these queries from a hash index on the property instead of testing every
+ * entity of the type.
+ */
+public abstract class APropertyQuery<T extends AEntity> extends AEntityQuery<T> {
+
+	private Class<T> type;
+	private String property;
+
+	protected APropertyQuery(Class<T> type, String property) {
+		super();
+		this.type = type;
+		this.property = property;
+	}
+
+	/**
+	 * Property values to look for. An entity matches, if it has any of them.
+	 */
+	public abstract Collection<String> getValues();
+
+	/**
+	 * Whether the property contains multiple ids, like the properties of reference sets.
+	 */
+	public boolean isMultiValued() {
+		return false;
+	}
+
+	@Override
+	public boolean test(T entity) {
+		Collection<String> values = getValues();
+		for (String value : getPropertyValues(entity.createPropertiesMap(), property, isMultiValued())) {
+			if (values.contains(value)) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public final Class<T> getType() {
+		return type;
+	}
+
+	public final String getProperty() {
+		return property;
+	}
+
+	/**
+	 * Type, property and the sorted values. Subclasses with additional criteria need to add them.
+	 */
+	@Override
+	public String getCacheKey() {
+		List<String> values = new ArrayList<String>();
+		for (String value : getValues()) {
+			values.add(value == null ? "" : "'" + value + "'");
+		}
+		Collections.sort(values);
+		return type.getName() + ":" + property + (isMultiValued() ? "*" : "") + "=" + values;
+	}
+
+	static Collection<String> getPropertyValues(Map<String, String> properties, String property,
+			boolean multiValued) {
+		String value = properties.get(property);
+		if (!multiValued) return Arrays.asList(value);
+		if (value == null || value.length() == 0) return Arrays.asList(new String[0]);
+		return Arrays.asList(value.split(", "));
+	}
+
+	@Override
+	public String toString() {
+		return Utl.getSimpleName(type) + ":" + property + "=" + getValues();
+	}
+
+}
@@ -28,4 +28,14 @@ public class AllByTypeQuery<T extends AEntity> extends AEntityQuery<T> {
 		return type.equals(entity.getClass());
 	}
 
+	@Override
+	public Class<T> getType() {
+		return type;
+	}
+
+	@Override
+	public String getCacheKey() {
+		return type.getName();
+	}
+
 }
@@ -14,54 +14,373 @@
  */
 package ilarkesto.core.persistance;
 
+import ilarkesto.core.base.PersistentHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Entities by id and by type. With a residency limit, only the most recently used entities are kept, the
+ * others are evicted and requested from a <code>Loader</code> again when needed. Counts by type include evicted
+ * entities.
+ * <p>
+ * Property queries (<code>APropertyQuery</code>) are answered from hash indexes per type and property, which are
+ * created on the first query and updated when entities are added or removed. Other queries test all entities of
+ * their type. The indexes of reference properties (<code>ReferenceQuery</code>) map ids of referenced entities to
+ * the ids of the referencing entities, back references are resolved by them.
+ * <p>
+ * A frozen cache is not modified anymore and can be read by multiple threads without locking. It is updated by
+ * modifying a <code>copy()</code>. Copies keep their entities and indexes in persistent maps, which share all
+ * unmodified parts with the cache they were copied from.
+ */
 public class EntityCache {
 
+	/**
+	 * Types with fewer entities are scanned instead of being indexed.
+	 */
+	private static final int MIN_INDEXED_ENTITIES = 32;
+
 	private Map<String, AEntity> entitiesById = new HashMap<String, AEntity>();
 
-	// TODO performance optimization: entitiesByType.byId (inheritence!)
+	/**
+	 * Resident entities by their concrete type.
+	 */
+	private Map<Class, Map<String, AEntity>> entitiesByType = new HashMap<Class, Map<String, AEntity>>();
+
+	/**
+	 * Concrete types of all entities, which are instances of a type, including itself. Cleared when an entity
+	 * of a new concrete type is added.
+	 */
+	private volatile Map<Class, List<Class>> concreteTypesByType = new HashMap<Class, List<Class>>();
+
+	private Map<String, Class> evictedTypesById = new HashMap<String, Class>();
+	private Map<Class, Set<String>> evictedIdsByType = new HashMap<Class, Set<String>>();
+
+	/**
+	 * Property indexes by concrete type. Evicted entities stay indexed.
+	 */
+	private volatile Map<Class, Map<String, PropertyIndex>> indexesByType =
+			new HashMap<Class, Map<String, PropertyIndex>>();
+
+	private boolean frozen;
+
+	/**
+	 * Modification counters by entity type, including super types. Increased when entities of the type are added
+	 * or removed.
+	 */
+	private Map<Class, Long> versionsByType = new HashMap<Class, Long>();
+	private long version;
+
+	private int residencyLimit;
+	private Loader loader;
+	private long evictionCount;
+	private long reloadCount;
+
+	/**
+	 * Keep at most <code>limit</code> entities, evicting the least recently used. Evicted entities are read by
+	 * the <code>loader</code> when requested.
+	 */
+	public void setResidencyLimit(int limit, Loader loader) {
+		assertNotFrozen();
+		this.residencyLimit = limit;
+		this.loader = loader;
+		LinkedHashMap<String, AEntity> lru = new LinkedHashMap<String, AEntity>(16, 0.75f, true);
+		lru.putAll(entitiesById);
+		entitiesById = lru;
+		evict();
+	}
+
+	/**
+	 * Prevents further modifications. Readers use lookups and indexes without locking from now on, newly built
+	 * indexes are published by replacing the index map.
+	 */
+	public void freeze() {
+		if (residencyLimit > 0) throw new IllegalStateException("Cache with residency limit can not be frozen");
+		frozen = true;
+	}
+
+	public int getResidencyLimit() {
+		return residencyLimit;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Modifiable copy, sharing entities and indexes. The first copy converts the entity maps to persistent maps,
+	 * which takes time proportional to the number of entities. Copying a copy takes time proportional to the
+	 * number of types and indexes, modifying it only copies the changed parts of the maps.
+	 */
+	public EntityCache copy() {
+		if (residencyLimit > 0) throw new IllegalStateException("Cache with residency limit can not be copied");
+		EntityCache ret = new EntityCache();
+		ret.entitiesById = persistent(entitiesById);
+		for (Map.Entry<Class, Map<String, AEntity>> entry : entitiesByType.entrySet()) {
+			ret.entitiesByType.put(entry.getKey(), persistent(entry.getValue()));
+		}
+		ret.concreteTypesByType = new HashMap<Class, List<Class>>(concreteTypesByType);
+		for (Map.Entry<Class, Map<String, PropertyIndex>> entry : indexesByType.entrySet()) {
+			Map<String, PropertyIndex> copies = new HashMap<String, PropertyIndex>();
+			for (Map.Entry<String, PropertyIndex> indexEntry : entry.getValue().entrySet()) {
+				copies.put(indexEntry.getKey(), indexEntry.getValue().copy());
+			}
+			ret.indexesByType.put(entry.getKey(), copies);
+		}
+		ret.evictionCount = evictionCount;
+		ret.reloadCount = reloadCount;
+		ret.versionsByType.putAll(versionsByType);
+		ret.version = version;
+		return ret;
+	}
+
+	private void assertNotFrozen() {
+		if (frozen) throw new IllegalStateException("Cache is frozen");
+	}
+
+	private static <K, V> PersistentHashMap<K, V> persistent(Map<K, V> map) {
+		if (map instanceof PersistentHashMap) return (PersistentHashMap<K, V>) map;
+		return PersistentHashMap.copyOf(map);
+	}
+
+	/**
+	 * Puts the entry into the map, or into a modified copy if the map is persistent.
+	 *
+	 * @return the map containing the entry
+	 */
+	private static <K, V> Map<K, V> put(Map<K, V> map, K key, V value) {
+		if (map instanceof PersistentHashMap) return ((PersistentHashMap<K, V>) map).plus(key, value);
+		map.put(key, value);
+		return map;
+	}
+
+	/**
+	 * Removes the entry from the map, or from a modified copy if the map is persistent.
+	 *
+	 * @return the map without the entry
+	 */
+	private static <K, V> Map<K, V> remove(Map<K, V> map, K key) {
+		if (map instanceof PersistentHashMap) return ((PersistentHashMap<K, V>) map).minus(key);
+		map.remove(key);
+		return map;
+	}
 
 	public Collection<AEntity> getAll() {
-		return entitiesById.values();
+		if (evictedTypesById.isEmpty()) return entitiesById.values();
+		return getAll(null);
 	}
 
 	public Set<String> getAllIds() {
-		return entitiesById.keySet();
+		if (evictedTypesById.isEmpty()) return entitiesById.keySet();
+		Set<String> ret = new HashSet<String>(entitiesById.keySet());
+		ret.addAll(evictedTypesById.keySet());
+		return ret;
 	}
 
 	public Set<AEntity> list(AEntityQuery query) {
-		Class queryType = query.getType();
-		Set<AEntity> ret = new HashSet<AEntity>();
-		for (AEntity entity : entitiesById.values()) {
-			if (queryType != null && !isInstanceOf(entity, queryType)) continue;
-			if (query.test(entity)) ret.add(entity);
-		}
+		final Set<AEntity> ret = new HashSet<AEntity>();
+		visit(query, new EntityVisitor() {
+
+			@Override
+			public boolean visit(AEntity entity) {
+				ret.add(entity);
+				return true;
+			}
+		});
 		return ret;
 	}
 
 	public AEntity get(AEntityQuery query) {
-		Class queryType = query.getType();
-		for (AEntity entity : entitiesById.values()) {
-			if (queryType != null && !isInstanceOf(entity, queryType)) continue;
-			if (query.test(entity)) return entity;
+		final AEntity[] ret = new AEntity[1];
+		visit(query, new EntityVisitor() {
+
+			@Override
+			public boolean visit(AEntity entity) {
+				ret[0] = entity;
+				return false;
+			}
+		});
+		return ret[0];
+	}
+
+	/**
+	 * Passes the entities matching the query to the visitor, until it returns <code>false</code>. Property
+	 * queries get their candidates from the indexes, which still have to be tested, since indexed entities may
+	 * have been modified without being added again.
+	 *
+	 * @return <code>false</code> if the visitor stopped
+	 */
+	public boolean visit(AEntityQuery query, EntityVisitor visitor) {
+		Class type = query.getType();
+		List<Class> concreteTypes = type == null ? new ArrayList<Class>(getConcreteTypes()) : getConcreteTypes(type);
+		try {
+			for (Class concreteType : concreteTypes) {
+				if (!visit(concreteType, query, visitor)) return false;
+			}
+			return true;
+		} finally {
+			evict();
+		}
+	}
+
+	private boolean visit(Class concreteType, AEntityQuery query, EntityVisitor visitor) {
+		if (query instanceof APropertyQuery) {
+			APropertyQuery<?> propertyQuery = (APropertyQuery<?>) query;
+			PropertyIndex index = getIndex(concreteType, propertyQuery.getProperty(), propertyQuery.isMultiValued());
+			if (index != null) {
+				for (String id : index.getIds(propertyQuery.getValues())) {
+					AEntity entity = entitiesById.get(id);
+					if (entity == null) entity = reload(id, concreteType);
+					if (query.test(entity) && !visitor.visit(entity)) return false;
+				}
+				return true;
+			}
+		}
+
+		Map<String, AEntity> resident = entitiesByType.get(concreteType);
+		if (resident != null) {
+			Collection<AEntity> entities = resident.values();
+			// with a residency limit, loading referenced entities while testing may evict entities of this type
+			if (residencyLimit > 0) entities = new ArrayList<AEntity>(entities);
+			for (AEntity entity : entities) {
+				if (query.test(entity) && !visitor.visit(entity)) return false;
+			}
+		}
+
+		Set<String> evictedIds = evictedIdsByType.get(concreteType);
+		if (evictedIds == null || evictedIds.isEmpty()) return true;
+		for (String id : new ArrayList<String>(evictedIds)) {
+			AEntity entity = entitiesById.get(id);
+			if (entity == null) entity = reload(id, concreteType);
+			if (query.test(entity) && !visitor.visit(entity)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Provides the index of the property for entities of the concrete type. It is created if the type has enough
+	 * entities.
+	 */
+	private PropertyIndex getIndex(Class concreteType, String property, boolean multiValued) {
+		Map<String, PropertyIndex> indexes = indexesByType.get(concreteType);
+		String key = multiValued ? property + "*" : property;
+		PropertyIndex index = indexes == null ? null : indexes.get(key);
+		if (index != null) return index;
+
+		if (count(concreteType) < MIN_INDEXED_ENTITIES) return null;
+		index = new PropertyIndex(property, multiValued);
+		for (AEntity entity : getAllOfConcreteTypes(Arrays.asList(concreteType))) {
+			index.add(entity.getId(), entity.createPropertiesMap());
+		}
+
+		if (frozen) {
+			// concurrent readers may build the same index, the last one published wins
+			Map<Class, Map<String, PropertyIndex>> allIndexes = new HashMap<Class, Map<String, PropertyIndex>>(
+					indexesByType);
+			indexes = indexes == null ? new HashMap<String, PropertyIndex>() : new HashMap<String, PropertyIndex>(
+					indexes);
+			indexes.put(key, index);
+			allIndexes.put(concreteType, indexes);
+			indexesByType = allIndexes;
+			return index;
+		}
+
+		if (indexes == null) {
+			indexes = new HashMap<String, PropertyIndex>();
+			indexesByType.put(concreteType, indexes);
+		}
+		indexes.put(key, index);
+		return index;
+	}
+
+	/**
+	 * All entities, which are instances of the given type. Evicted ones are loaded.
+	 */
+	private Collection<AEntity> getAll(Class type) {
+		if (type == null && evictedTypesById.isEmpty()) return entitiesById.values();
+		List<Class> concreteTypes = type == null ? new ArrayList<Class>(getConcreteTypes()) : getConcreteTypes(type);
+		return getAllOfConcreteTypes(concreteTypes);
+	}
+
+	private Collection<AEntity> getAllOfConcreteTypes(List<Class> concreteTypes) {
+		List<AEntity> ret = new ArrayList<AEntity>();
+		for (Class concreteType : concreteTypes) {
+			Map<String, AEntity> entities = entitiesByType.get(concreteType);
+			if (entities != null) ret.addAll(entities.values());
+		}
+		if (evictedTypesById.isEmpty()) return ret;
+
+		for (Class concreteType : concreteTypes) {
+			Set<String> ids = evictedIdsByType.get(concreteType);
+			if (ids == null) continue;
+			for (String id : new ArrayList<String>(ids)) {
+				ret.add(reload(id, concreteType));
+			}
+		}
+		evict();
+		return ret;
+	}
+
+	private Set<Class> getConcreteTypes() {
+		Set<Class> ret = new HashSet<Class>(entitiesByType.keySet());
+		ret.addAll(evictedIdsByType.keySet());
+		return ret;
+	}
+
+	private List<Class> getConcreteTypes(Class type) {
+		List<Class> ret = concreteTypesByType.get(type);
+		if (ret == null) {
+			ret = new ArrayList<Class>();
+			for (Class concreteType : getConcreteTypes()) {
+				if (isInstanceOf(concreteType, type)) ret.add(concreteType);
+			}
+			if (frozen) {
+				Map<Class, List<Class>> map = new HashMap<Class, List<Class>>(concreteTypesByType);
+				map.put(type, ret);
+				concreteTypesByType = map;
+			} else {
+				concreteTypesByType.put(type, ret);
+			}
 		}
-		return null;
+		return ret;
 	}
 
-	private boolean isInstanceOf(AEntity entity, Class queryType) {
-		if (queryType.equals(entity.getClass())) return true;
-		Class superType = queryType.getSuperclass();
-		if (superType.equals(Object.class)) return false;
-		return isInstanceOf(entity, superType);
+	private static boolean isInstanceOf(Class entityType, Class queryType) {
+		for (Class type = entityType; type != null; type = type.getSuperclass()) {
+			if (type.equals(queryType)) return true;
+		}
+		return false;
 	}
 
 	public void add(AEntity entity) {
-		entitiesById.put(entity.getId(), entity);
+		assertNotFrozen();
+		String id = entity.getId();
+		Class type = entity.getClass();
+		AEntity previous = entitiesById.get(id);
+		entitiesById = put(entitiesById, id, entity);
+		if (previous != null) {
+			removeFromType(previous.getClass(), id);
+			if (previous.getClass() != type) removeFromIndexes(previous.getClass(), id);
+		}
+		Class evictedType = evictedTypesById.remove(id);
+		if (evictedType != null) {
+			evictedIdsByType.get(evictedType).remove(id);
+			if (evictedType != type) removeFromIndexes(evictedType, id);
+		}
+		addToType(entity);
+		addToIndexes(entity);
+		increaseVersion(type);
+		if (previous != null && previous.getClass() != type) increaseVersion(previous.getClass());
+		if (evictedType != null && evictedType != type) increaseVersion(evictedType);
+		evict();
 	}
 
 	public void addAll(Collection<AEntity> entities) {
@@ -73,7 +392,38 @@ public class EntityCache {
 
 	public void remove(String entityId) {
 		if (entityId == null) return;
-		entitiesById.remove(entityId);
+		assertNotFrozen();
+		AEntity entity = entitiesById.get(entityId);
+		if (entity != null) {
+			entitiesById = remove(entitiesById, entityId);
+			removeFromType(entity.getClass(), entityId);
+			removeFromIndexes(entity.getClass(), entityId);
+			increaseVersion(entity.getClass());
+			return;
+		}
+		Class evictedType = evictedTypesById.remove(entityId);
+		if (evictedType != null) {
+			evictedIdsByType.get(evictedType).remove(entityId);
+			removeFromIndexes(evictedType, entityId);
+			increaseVersion(evictedType);
+		}
+	}
+
+	/**
+	 * Modification counter of the entities of a type and its sub types, <code>null</code> for all entities.
+	 * Results of queries for the type are unchanged, as long as the version is unchanged.
+	 */
+	public long getVersion(Class type) {
+		if (type == null) return version;
+		Long typeVersion = versionsByType.get(type);
+		return typeVersion == null ? 0 : typeVersion;
+	}
+
+	private void increaseVersion(Class entityType) {
+		version++;
+		for (Class type = entityType; type != null; type = type.getSuperclass()) {
+			versionsByType.put(type, version);
+		}
 	}
 
 	public void removeAll(Collection<String> ids) {
@@ -84,12 +434,16 @@ public class EntityCache {
 	}
 
 	public boolean contains(String id) {
-		return entitiesById.containsKey(id);
+		return entitiesById.containsKey(id) || evictedTypesById.containsKey(id);
 	}
 
 	public AEntity get(String id) throws EntityDoesNotExistException {
 		AEntity entity = entitiesById.get(id);
-		if (entity == null) throw new EntityDoesNotExistException(id);
+		if (entity != null) return entity;
+		Class type = evictedTypesById.get(id);
+		if (type == null) throw new EntityDoesNotExistException(id);
+		entity = reload(id, type);
+		evict();
 		return entity;
 	}
 
@@ -102,26 +456,192 @@ public class EntityCache {
 	}
 
 	public int size() {
-		return entitiesById.size();
+		return entitiesById.size() + evictedTypesById.size();
 	}
 
 	public boolean isEmpty() {
-		return entitiesById.isEmpty();
+		return entitiesById.isEmpty() && evictedTypesById.isEmpty();
 	}
 
 	public final Map<Class, Integer> countEntities() {
 		Map<Class, Integer> countsByType = new HashMap<Class, Integer>();
-		for (AEntity entity : getAll()) {
+		for (Class type : getConcreteTypes()) {
+			int count = count(type);
+			if (count > 0) countsByType.put(type, count);
+		}
+		return countsByType;
+	}
+
+	private int count(Class concreteType) {
+		Map<String, AEntity> entities = entitiesByType.get(concreteType);
+		Set<String> evictedIds = evictedIdsByType.get(concreteType);
+		return (entities == null ? 0 : entities.size()) + (evictedIds == null ? 0 : evictedIds.size());
+	}
+
+	/**
+	 * Number of property indexes over all types.
+	 */
+	public int getIndexCount() {
+		int count = 0;
+		for (Map<String, PropertyIndex> indexes : indexesByType.values()) {
+			count += indexes.size();
+		}
+		return count;
+	}
+
+	public int getResidentCount() {
+		return entitiesById.size();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public long getReloadCount() {
+		return reloadCount;
+	}
+
+	private void addToType(AEntity entity) {
+		Class type = entity.getClass();
+		Map<String, AEntity> entities = entitiesByType.get(type);
+		if (entities == null) {
+			entities = new HashMap<String, AEntity>();
+			if (!evictedIdsByType.containsKey(type)) concreteTypesByType.clear();
+		}
+		entitiesByType.put(type, put(entities, entity.getId(), entity));
+	}
+
+	private void removeFromType(Class type, String id) {
+		Map<String, AEntity> entities = entitiesByType.get(type);
+		if (entities != null) entitiesByType.put(type, remove(entities, id));
+	}
+
+	private void addToIndexes(AEntity entity) {
+		Map<String, PropertyIndex> indexes = indexesByType.get(entity.getClass());
+		if (indexes == null || indexes.isEmpty()) return;
+		String id = entity.getId();
+		Map<String, String> properties = entity.createPropertiesMap();
+		for (PropertyIndex index : indexes.values()) {
+			index.add(id, properties);
+		}
+	}
+
+	private void removeFromIndexes(Class type, String id) {
+		Map<String, PropertyIndex> indexes = indexesByType.get(type);
+		if (indexes == null) return;
+		for (PropertyIndex index : indexes.values()) {
+			index.remove(id);
+		}
+	}
+
+	private AEntity reload(String id, Class type) {
+		AEntity entity = loader.loadEntity(type, id);
+		if (entity == null) throw new IllegalStateException("Loading evicted entity failed: " + type + " " + id);
+		entitiesById.put(id, entity);
+		evictedTypesById.remove(id);
+		evictedIdsByType.get(type).remove(id);
+		addToType(entity);
+		reloadCount++;
+		return entity;
+	}
+
+	private void evict() {
+		if (residencyLimit <= 0 || entitiesById.size() <= residencyLimit) return;
+		Iterator<AEntity> iterator = entitiesById.values().iterator();
+		while (entitiesById.size() > residencyLimit) {
+			AEntity entity = iterator.next();
+			iterator.remove();
+			String id = entity.getId();
 			Class type = entity.getClass();
-			Integer count = countsByType.get(type);
-			if (count == null) {
-				count = 1;
+			removeFromType(type, id);
+			evictedTypesById.put(id, type);
+			Set<String> ids = evictedIdsByType.get(type);
+			if (ids == null) {
+				ids = new HashSet<String>();
+				evictedIdsByType.put(type, ids);
+			}
+			ids.add(id);
+			evictionCount++;
+		}
+	}
+
+	/**
+	 * Ids of entities by the values of a property. The values are remembered per entity, since a modified
+	 * entity does not provide the values it was indexed with anymore. The maps are persistent, copies share them
+	 * until they are modified.
+	 */
+	private static class PropertyIndex {
+
+		private String property;
+		private boolean multiValued;
+		private PersistentHashMap<String, PersistentHashMap<String, Boolean>> idsByValue = PersistentHashMap.empty();
+		private PersistentHashMap<String, Boolean> idsWithoutValue = PersistentHashMap.empty();
+		private PersistentHashMap<String, Collection<String>> valuesById = PersistentHashMap.empty();
+
+		public PropertyIndex(String property, boolean multiValued) {
+			this.property = property;
+			this.multiValued = multiValued;
+		}
+
+		public PropertyIndex copy() {
+			PropertyIndex ret = new PropertyIndex(property, multiValued);
+			ret.idsByValue = idsByValue;
+			ret.idsWithoutValue = idsWithoutValue;
+			ret.valuesById = valuesById;
+			return ret;
+		}
+
+		public void add(String id, Map<String, String> properties) {
+			remove(id);
+			Collection<String> values = APropertyQuery.getPropertyValues(properties, property, multiValued);
+			valuesById = valuesById.plus(id, values);
+			for (String value : values) {
+				PersistentHashMap<String, Boolean> ids = getIds(value);
+				if (ids == null) ids = PersistentHashMap.empty();
+				setIds(value, ids.plus(id, Boolean.TRUE));
+			}
+		}
+
+		public void remove(String id) {
+			Collection<String> values = valuesById.get(id);
+			if (values == null) return;
+			valuesById = valuesById.minus(id);
+			for (String value : values) {
+				PersistentHashMap<String, Boolean> ids = getIds(value);
+				if (ids != null) setIds(value, ids.minus(id));
+			}
+		}
+
+		public Set<String> getIds(Collection<String> values) {
+			Set<String> ret = new HashSet<String>();
+			for (String value : values) {
+				PersistentHashMap<String, Boolean> ids = getIds(value);
+				if (ids != null) ret.addAll(ids.keySet());
+			}
+			return ret;
+		}
+
+		private PersistentHashMap<String, Boolean> getIds(String value) {
+			return value == null ? idsWithoutValue : idsByValue.get(value);
+		}
+
+		private void setIds(String value, PersistentHashMap<String, Boolean> ids) {
+			if (value == null) {
+				idsWithoutValue = ids;
 			} else {
-				count = count + 1;
+				idsByValue = ids.isEmpty() ? idsByValue.minus(value) : idsByValue.plus(value, ids);
 			}
-			countsByType.put(type, count);
 		}
-		return countsByType;
+
+	}
+
+	public static interface Loader {
+
+		/**
+		 * Reads the last saved state of an evicted entity.
+		 */
+		AEntity loadEntity(Class type, String id);
+
 	}
 
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Entities, which have the given value in a property. The value is compared in the format of
+ * <code>Persistence.propertyAsString()</code>.
+ */
+public class PropertyEqualsQuery<T extends AEntity> extends APropertyQuery<T> {
+
+	private String value;
+
+	public PropertyEqualsQuery(Class<T> type, String property, String value) {
+		super(type, property);
+		this.value = value;
+	}
+
+	@Override
+	public Collection<String> getValues() {
+		return Arrays.asList(value);
+	}
+
+}
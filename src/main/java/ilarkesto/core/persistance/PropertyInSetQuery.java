@@ -0,0 +1,38 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Entities, which have any of the given values in a property.
+ */
+public class PropertyInSetQuery<T extends AEntity> extends APropertyQuery<T> {
+
+	private Set<String> values;
+
+	public PropertyInSetQuery(Class<T> type, String property, Collection<String> values) {
+		super(type, property);
+		this.values = new HashSet<String>(values);
+	}
+
+	@Override
+	public Collection<String> getValues() {
+		return values;
+	}
+
+}
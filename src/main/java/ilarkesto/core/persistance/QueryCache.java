@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Results of cacheable queries by query class and cache key. A result is valid as long as the version of the
+ * queried type in the <code>EntityCache</code> is unchanged. The least recently used results are dropped when
+ * the maximum number of results is reached.
+ */
+public class QueryCache {
+
+	private final int maxEntries;
+
+	private final Map<String, Entry> entriesByKey;
+
+	private long hitCount;
+	private long missCount;
+	private long savedTime;
+
+	public QueryCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		entriesByKey = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the key of the query or <code>null</code> if it is not cacheable
+	 */
+	public String getKey(AEntityQuery query) {
+		if (maxEntries <= 0) return null;
+		String cacheKey = query.getCacheKey();
+		if (cacheKey == null) return null;
+		return query.getClass().getName() + ":" + cacheKey;
+	}
+
+	/**
+	 * @return the cached result or <code>null</code> if there is none for this version
+	 */
+	public synchronized List<AEntity> get(String key, long version) {
+		Entry entry = entriesByKey.get(key);
+		if (entry == null || entry.version != version) {
+			if (entry != null) entriesByKey.remove(key);
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		savedTime += entry.runtime;
+		return entry.entities;
+	}
+
+	public synchronized void put(String key, long version, List<AEntity> entities, long runtime) {
+		Entry entry = entriesByKey.get(key);
+		if (entry != null && entry.version > version) return;
+		entriesByKey.put(key, new Entry(version, entities, runtime));
+	}
+
+	public synchronized void clear() {
+		entriesByKey.clear();
+	}
+
+	public synchronized int size() {
+		return entriesByKey.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Sum of the runtimes of the queries, whose results were provided from the cache, in milliseconds.
+	 */
+	public synchronized long getSavedTime() {
+		return savedTime;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return entriesByKey.size() + " results, " + hitCount + " hits, " + missCount + " misses, " + savedTime
+				+ " ms saved";
+	}
+
+	private static class Entry {
+
+		private final long version;
+		private final List<AEntity> entities;
+		private final long runtime;
+
+		public Entry(long version, List<AEntity> entities, long runtime) {
+			this.version = version;
+			this.entities = entities;
+			this.runtime = runtime;
+		}
+
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License along with this program. If not,
+ * see <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Entities, which reference the entity with the given id. The property is the id property of a reference, like
+ * <code>projectId</code>, or of a reference set, like <code>memberIds</code>.
+ */
+public class ReferenceQuery<T extends AEntity> extends APropertyQuery<T> {
+
+	private String id;
+	private boolean referenceSet;
+
+	public ReferenceQuery(Class<T> type, String property, String id, boolean referenceSet) {
+		super(type, property);
+		this.id = id;
+		this.referenceSet = referenceSet;
+	}
+
+	public ReferenceQuery(Class<T> type, String property, String id) {
+		this(type, property, id, false);
+	}
+
+	@Override
+	public Collection<String> getValues() {
+		return Arrays.asList(id);
+	}
+
+	@Override
+	public boolean isMultiValued() {
+		return referenceSet;
+	}
+
+}
@@ -21,18 +21,23 @@ import ilarkesto.core.logging.Log;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 public class Transaction {
 
 	private static final Log log = Log.get(Transaction.class);
 
+	private static final int MAX_INTEGRITY_ROUNDS = 100;
+
 	private String name;
 	private boolean autoCommit;
 	private AEntityDatabase backend;
@@ -45,6 +50,18 @@ public class Transaction {
 	private Map<String, Map<String, String>> modifiedPropertiesByEntityId = new HashMap<String, Map<String, String>>();
 	private Set<String> deleted = new HashSet<String>();
 
+	/**
+	 * Ids of entities, which were persisted or modified since their integrity was ensured.
+	 */
+	private LinkedHashSet<String> integrityWorklist = new LinkedHashSet<String>();
+
+	/**
+	 * Ids of deleted entities, whose referenced entities need to ensure their integrity.
+	 */
+	private LinkedHashSet<String> deletedWorklist = new LinkedHashSet<String>();
+
+	private String entityIdEnsuringIntegrity;
+
 	public Transaction(AEntityDatabase backend, String name, boolean autoCommit, boolean ensureIntegrityOnCommit) {
 		super();
 		this.backend = backend;
@@ -58,6 +75,8 @@ public class Transaction {
 		if (!isEmpty()) {
 			log.info("commit()", toString());
 			if (ensureIntegrityOnCommit) ensureIntegrityUntilUnchanged();
+			integrityWorklist = null;
+			deletedWorklist = null;
 			backend.update(modified.getAll(), deleted, modifiedPropertiesByEntityId, new CommitCallback());
 		} else {
 			new CommitCallback().run();
@@ -67,52 +86,81 @@ public class Transaction {
 		deleted = null;
 	}
 
+	/**
+	 * Ensures the integrity of all entities in the worklists. Entities touched while doing so are added to the
+	 * worklists and checked in the next round, until no entity is touched anymore.
+	 */
 	private void ensureIntegrityUntilUnchanged() {
-		String changeHash = createChangeHash();
-		ensureIntegrity();
-		if (changeHash.equals(createChangeHash())) return;
-		ensureIntegrityUntilUnchanged();
-	}
-
-	private void ensureIntegrity() {
+		RuntimeTracker rt = new RuntimeTracker();
+		int rounds = 0;
+		int checks = 0;
 		ensuringIntegrity = true;
 		try {
-			for (AEntity entity : new ArrayList<AEntity>(modified.getAll())) {
-				entity.ensureIntegrity();
+			while (!integrityWorklist.isEmpty() || !deletedWorklist.isEmpty()) {
+				if (++rounds > MAX_INTEGRITY_ROUNDS)
+					throw new IllegalStateException("Integrity not ensured after " + MAX_INTEGRITY_ROUNDS
+							+ " rounds, entities still changing: " + formatIds(integrityWorklist));
+				checks += ensureIntegrity();
 			}
-			for (String id : deleted) {
-				AEntity deletedEntity;
-				try {
-					deletedEntity = backend.get(id);
-				} catch (EntityDoesNotExistException ex) {
-					continue;
-				}
-
-				Set<AEntity> referencedEntities = deletedEntity.getReferencedEntities();
-				log.debug("Ensuring integrity for referenced entities of deleted entity:",
-					Persistence.toStringWithTypeAndId(deletedEntity), referencedEntities);
-
-				for (AEntity referencedEntity : referencedEntities) {
-					if (referencedEntity == null) continue;
-					referencedEntity.ensureIntegrity();
-				}
-			}
-		} catch (EntityDeletedWhileEnsureIntegrity ex) {
-			// redo (changeHash changed)
 		} finally {
 			ensuringIntegrity = false;
+			entityIdEnsuringIntegrity = null;
+		}
+		long time = rt.getRuntime();
+		if (time > 100) {
+			log.debug("Integrity ensured:", checks, "checks in", rounds, "rounds,", rt.getRuntimeFormated());
 		}
 	}
 
-	private String createChangeHash() {
-		StringBuilder sb = new StringBuilder();
-		for (AEntity entity : modified.getAll()) {
-			sb.append("/").append(entity.getId());
+	/**
+	 * Ensures the integrity of the entities in the worklists once.
+	 *
+	 * @return number of checked entities
+	 */
+	private int ensureIntegrity() {
+		List<String> ids = new ArrayList<String>(integrityWorklist);
+		integrityWorklist.clear();
+		List<String> deletedIds = new ArrayList<String>(deletedWorklist);
+		deletedWorklist.clear();
+		int checks = 0;
+
+		for (String id : ids) {
+			if (deleted.contains(id) || !modified.contains(id)) continue;
+			ensureIntegrity(modified.get(id));
+			checks++;
 		}
-		for (String id : deleted) {
-			sb.append("/").append(id);
+
+		for (String id : deletedIds) {
+			AEntity deletedEntity;
+			try {
+				deletedEntity = backend.get(id);
+			} catch (EntityDoesNotExistException ex) {
+				continue;
+			}
+
+			Set<AEntity> referencedEntities = deletedEntity.getReferencedEntities();
+			log.debug("Ensuring integrity for referenced entities of deleted entity:",
+				Persistence.toStringWithTypeAndId(deletedEntity), referencedEntities);
+
+			for (AEntity referencedEntity : referencedEntities) {
+				if (referencedEntity == null) continue;
+				ensureIntegrity(referencedEntity);
+				checks++;
+			}
+		}
+		return checks;
+	}
+
+	private void ensureIntegrity(AEntity entity) {
+		entityIdEnsuringIntegrity = entity.getId();
+		try {
+			entity.ensureIntegrity();
+		} catch (EntityDeletedWhileEnsureIntegrity ex) {
+			// interrupted by deleting an entity, check again in the next round
+			if (!deleted.contains(entity.getId())) integrityWorklist.add(entity.getId());
+		} finally {
+			entityIdEnsuringIntegrity = null;
 		}
-		return sb.toString();
 	}
 
 	public void rollback() {
@@ -120,6 +168,8 @@ public class Transaction {
 		backend.onTransactionFinished(this);
 		modified = null;
 		deleted = null;
+		integrityWorklist = null;
+		deletedWorklist = null;
 	}
 
 	public void persist(AEntity entity) {
@@ -131,6 +181,7 @@ public class Transaction {
 		if (deleted.contains(entity))
 			throw new IllegalStateException("Entity already deleted: " + Persistence.getTypeAndId(entity));
 		modified.add(entity);
+		integrityWorklist.add(entity.getId());
 		updatePropertiesMap(modifiedPropertiesByEntityId, entity);
 	}
 
@@ -144,6 +195,8 @@ public class Transaction {
 			return;
 		}
 		modified.add(entity);
+		// entities modifying themselves while ensuring their integrity are not checked again
+		if (!entity.isId(entityIdEnsuringIntegrity)) integrityWorklist.add(entity.getId());
 		updatePropertiesMap(modifiedPropertiesByEntityId, entity, field, value);
 	}
 
@@ -157,8 +210,9 @@ public class Transaction {
 			backend.update(null, Arrays.asList(entityId), null, new CommitCallback());
 			return;
 		}
-		deleted.add(entityId);
+		if (deleted.add(entityId)) deletedWorklist.add(entityId);
 		modified.remove(entityId);
+		integrityWorklist.remove(entityId);
 		if (ensuringIntegrity) throw new EntityDeletedWhileEnsureIntegrity();
 	}
 
@@ -199,29 +253,91 @@ public class Transaction {
 	}
 
 	public AEntity getFirst(AEntityQuery query) {
-		AEntity entity = modified.get(query);
-		if (entity == null) entity = backend.get(query);
-		if (entity != null && isDeleted(entity)) return null;
-		return entity;
+		List<AEntity> entities = list(query, 0, 1);
+		return entities.isEmpty() ? null : entities.get(0);
 	}
 
 	public Set<AEntity> list(AEntityQuery query) {
 		RuntimeTracker rt = new RuntimeTracker();
-		Set<AEntity> ret = backend.list(query);
-		for (AEntity entity : modified.list(query)) {
-			ret.add(entity);
-		}
-		Iterator<AEntity> iterator = ret.iterator();
-		while (iterator.hasNext()) {
-			AEntity entity = iterator.next();
-			if (isDeleted(entity)) iterator.remove();
-		}
+		final Set<AEntity> ret = new HashSet<AEntity>();
+		visit(query, new EntityVisitor() {
+
+			@Override
+			public boolean visit(AEntity entity) {
+				ret.add(entity);
+				return true;
+			}
+		});
+		logSlowQuery(query, ret.size(), rt);
+		return ret;
+	}
+
+	/**
+	 * Provides a page of the matching entities, in no particular order. The query stops as soon as the page is
+	 * complete.
+	 */
+	public List<AEntity> list(AEntityQuery query, int offset, int limit) {
+		RuntimeTracker rt = new RuntimeTracker();
+		PageCollector collector = new PageCollector(offset, limit);
+		visit(query, collector);
+		logSlowQuery(query, collector.entities.size(), rt);
+		return collector.entities;
+	}
+
+	/**
+	 * Provides a page of the matching entities, sorted by the comparator. Only the first
+	 * <code>offset + limit</code> entities are kept while querying.
+	 */
+	public List<AEntity> list(AEntityQuery query, Comparator<? super AEntity> comparator, int offset, int limit) {
+		RuntimeTracker rt = new RuntimeTracker();
+		TopCollector collector = new TopCollector(comparator, offset, limit);
+		visit(query, collector);
+		List<AEntity> ret = collector.getPage();
+		logSlowQuery(query, ret.size(), rt);
+		return ret;
+	}
+
+	public int count(AEntityQuery query) {
+		RuntimeTracker rt = new RuntimeTracker();
+		final int[] count = new int[1];
+		visit(query, new EntityVisitor() {
+
+			@Override
+			public boolean visit(AEntity entity) {
+				count[0]++;
+				return true;
+			}
+		});
+		logSlowQuery(query, count[0], rt);
+		return count[0];
+	}
+
+	/**
+	 * Passes the matching entities to the visitor, until it returns <code>false</code>. Modified entities come
+	 * first, in their current state. Deleted entities are skipped.
+	 *
+	 * @return <code>false</code> if the visitor stopped
+	 */
+	public boolean visit(AEntityQuery query, final EntityVisitor visitor) {
+		if (!modified.visit(query, visitor)) return false;
+		return backend.visit(query, new EntityVisitor() {
+
+			@Override
+			public boolean visit(AEntity entity) {
+				String id = entity.getId();
+				// modified entities have been tested in their current state already
+				if (deleted.contains(id) || modified.contains(id)) return true;
+				return visitor.visit(entity);
+			}
+		});
+	}
+
+	private void logSlowQuery(AEntityQuery query, int count, RuntimeTracker rt) {
 		long time = rt.getRuntime();
 		if (time > 100) {
-			log.log(time > 1000 ? Log.Level.WARN : Log.Level.DEBUG, "Query provided", ret.size(), "elements in",
+			log.log(time > 1000 ? Log.Level.WARN : Log.Level.DEBUG, "Query provided", count, "elements in",
 				rt.getRuntimeFormated(), query);
 		}
-		return ret;
 	}
 
 	public void setIgnoreModifications(boolean disabled) {
@@ -307,6 +423,74 @@ public class Transaction {
 		return AEntityDatabase.get().getTransaction();
 	}
 
+	private static class PageCollector implements EntityVisitor {
+
+		private int offset;
+		private int limit;
+		private List<AEntity> entities = new ArrayList<AEntity>();
+
+		public PageCollector(int offset, int limit) {
+			this.offset = offset;
+			this.limit = limit;
+		}
+
+		@Override
+		public boolean visit(AEntity entity) {
+			if (offset > 0) {
+				offset--;
+				return true;
+			}
+			if (entities.size() < limit) entities.add(entity);
+			return entities.size() < limit;
+		}
+
+	}
+
+	/**
+	 * Keeps the first <code>offset + limit</code> entities by the comparator in a heap, which has the last of
+	 * them on top.
+	 */
+	private static class TopCollector implements EntityVisitor {
+
+		private Comparator<? super AEntity> comparator;
+		private int offset;
+		private int size;
+		private PriorityQueue<AEntity> heap;
+
+		public TopCollector(final Comparator<? super AEntity> comparator, int offset, int limit) {
+			this.comparator = comparator;
+			this.offset = offset;
+			this.size = limit > Integer.MAX_VALUE - offset ? Integer.MAX_VALUE : offset + limit;
+			heap = new PriorityQueue<AEntity>(Math.max(1, Math.min(size, 1024)), new Comparator<AEntity>() {
+
+				@Override
+				public int compare(AEntity a, AEntity b) {
+					return comparator.compare(b, a);
+				}
+			});
+		}
+
+		@Override
+		public boolean visit(AEntity entity) {
+			if (size <= 0) return false;
+			if (heap.size() < size) {
+				heap.add(entity);
+			} else if (comparator.compare(entity, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(entity);
+			}
+			return true;
+		}
+
+		public List<AEntity> getPage() {
+			List<AEntity> ret = new ArrayList<AEntity>(heap);
+			Collections.sort(ret, comparator);
+			if (offset >= ret.size()) return new ArrayList<AEntity>();
+			return new ArrayList<AEntity>(ret.subList(offset, ret.size()));
+		}
+
+	}
+
 	class CommitCallback implements Runnable {
 
 		@Override
@@ -23,26 +23,29 @@ import ilarkesto.concurrent.TaskManager;
 import ilarkesto.core.logging.Log;
 import ilarkesto.core.persistance.AEntityDatabase;
 import ilarkesto.core.time.DateAndTime;
-import ilarkesto.core.time.TimePeriod;
 import ilarkesto.di.Context;
 import ilarkesto.integration.xstream.XStreamSerializer;
 import ilarkesto.io.AFileStorage;
 import ilarkesto.io.ExclusiveFileLock;
 import ilarkesto.io.ExclusiveFileLock.FileLockedException;
 import ilarkesto.io.IO;
+import ilarkesto.io.IncrementalBackup;
 import ilarkesto.io.SimpleFileStorage;
-import ilarkesto.io.Zip;
 import ilarkesto.logging.DefaultLogRecordHandler;
+import ilarkesto.persistence.CompactEntityClustersTask;
+import ilarkesto.persistence.CompactEntityJournalTask;
 import ilarkesto.persistence.DaoListener;
 import ilarkesto.persistence.DaoService;
 import ilarkesto.persistence.EntityStore;
 import ilarkesto.persistence.FileEntityStore;
 import ilarkesto.persistence.Serializer;
 import ilarkesto.persistence.TransactionService;
+import ilarkesto.persistence.binary.BinarySerializer;
 import ilarkesto.properties.FilePropertiesStore;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -141,6 +144,10 @@ public abstract class AApplication {
 			}
 
 			try {
+				if (isEntityJournaling())
+					getTaskManager().scheduleWithFixedDelay(autowire(new CompactEntityJournalTask()), Tm.MINUTE * 5);
+				if (isEntityClustering())
+					getTaskManager().scheduleWithFixedDelay(autowire(new CompactEntityClustersTask()), Tm.HOUR);
 				scheduleTasks(getTaskManager());
 			} catch (Throwable ex) {
 				startupFailed = true;
@@ -171,6 +178,7 @@ public abstract class AApplication {
 						log.warn("Aborting tasks on shutdown failed:", tasks);
 					}
 					getEntityStore().lock();
+					if (AEntityDatabase.instance != null) AEntityDatabase.instance.shutdown();
 					shutdown = true;
 
 					if (context != null) context.destroy();
@@ -203,15 +211,14 @@ public abstract class AApplication {
 		thread.start();
 	}
 
-	public void backupApplicationDataDir() {
-		final File dataDir = new File(getApplicationDataDir());
-		File backupFile = new File(dataDir.getPath() + "/backups/" + getApplicationName() + "-data_"
-				+ DateAndTime.now().formatLog() + ".zip");
-		log.info("Backing up application data dir:", dataDir.getAbsolutePath(), "into", backupFile);
-		long starttime = Tm.getCurrentTimeMillis();
-		Object lock = entityStore == null ? this : entityStore;
-		synchronized (lock) {
-			Zip.zip(backupFile, new File[] { dataDir }, new FileFilter() {
+	private IncrementalBackup applicationDataDirBackup;
+
+	private synchronized IncrementalBackup getApplicationDataDirBackup() {
+		if (applicationDataDirBackup == null) {
+			final File dataDir = new File(getApplicationDataDir());
+			applicationDataDirBackup = new IncrementalBackup(dataDir, new File(dataDir.getPath() + "/backups"),
+					getApplicationName() + "-data_");
+			applicationDataDirBackup.setFilter(new FileFilter() {
 
 				@Override
 				public boolean accept(File file) {
@@ -224,28 +231,63 @@ public abstract class AApplication {
 						if (name.equals("entities-rescue")) return false;
 						if (name.equals("tmp")) return false;
 						if (name.startsWith("gwt-")) return false;
-						if (file.isDirectory()) log.info("    Zipping", file.getPath());
 					}
 					return true;
 				}
 			});
 		}
-		long runtime = Tm.getCurrentTimeMillis() - starttime;
-		log.info("  Backup completed in", new TimePeriod(runtime).toShortestString());
-		deleteOldApplicationDataDirBackups();
+		return applicationDataDirBackup;
+	}
+
+	/**
+	 * Backs up the files, which changed since the last backup. Entity changes are blocked only while the
+	 * changed files are linked into a snapshot, compressing happens in the background. See
+	 * <code>IncrementalBackup</code> for restoring.
+	 */
+	public void backupApplicationDataDir() {
+		final IncrementalBackup backup = getApplicationDataDirBackup();
+		log.info("Backing up application data dir:", getApplicationDataDir());
+		backup.waitForCompression();
+		final IncrementalBackup.Snapshot snapshot;
+		Object lock = entityStore == null ? this : entityStore;
+		synchronized (lock) {
+			// inside the lock, so that no commit is written between flushing and linking
+			if (entityStore != null) entityStore.flush();
+			snapshot = backup.createSnapshot(DateAndTime.now().formatLog());
+		}
+
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					snapshot.compress();
+					deleteOldApplicationDataDirBackups();
+				} catch (Throwable ex) {
+					log.error("Backing up application data dir failed:", snapshot, ex);
+				}
+			}
+		});
+		thread.setName(getApplicationName() + "-backup");
+		thread.setDaemon(true);
+		thread.start();
 	}
 
 	private void deleteOldApplicationDataDirBackups() {
 		File backupDir = new File(getApplicationDataDir() + "/backups");
-		File[] files = backupDir.listFiles();
-		if (files == null || files.length == 0) return;
-
 		log.info("Deleting old backup files from", backupDir);
 		final long deadline = Tm.getCurrentTimeMillis() - Tm.DAY * 7;
+		getApplicationDataDirBackup().deleteOldBackups(deadline);
 
+		// full zip backups of previous versions
+		File[] files = backupDir.listFiles();
+		if (files == null || files.length == 0) return;
+		List<String> backups = getApplicationDataDirBackup().listBackups();
 		for (File file : files) {
-			if (!file.getName().startsWith(getApplicationName())) continue;
-			if (file.lastModified() >= deadline && !file.getName().endsWith(".zip~")) continue;
+			String name = file.getName();
+			if (!name.startsWith(getApplicationName())) continue;
+			if (!name.endsWith(".zip") || backups.contains(Str.removeSuffix(name, ".zip"))) continue;
+			if (file.lastModified() >= deadline) continue;
 			log.debug("    Deleting", file);
 			IO.delete(file);
 		}
@@ -406,6 +448,10 @@ public abstract class AApplication {
 
 		store.setBackupDir(backupDir.getPath());
 		store.setVersion(getDataVersion());
+		store.setLoadParallelism(getEntityLoadParallelism());
+		store.setJournaling(isEntityJournaling());
+		store.setWriteBehindDelay(getEntityWriteBehindDelay());
+		store.setResidencyBudget(getEntityResidencyBudget());
 		Context.get().autowire(store);
 
 		store.deleteOldBackups();
@@ -417,12 +463,59 @@ public abstract class AApplication {
 		return -1;
 	}
 
-	private XStreamSerializer beanSerializer;
+	/**
+	 * Number of threads used to load the entity files on startup. Override to load in parallel.
+	 */
+	protected int getEntityLoadParallelism() {
+		return 1;
+	}
+
+	/**
+	 * Persist entity changes into a journal, which is compacted into the entity files every five minutes.
+	 */
+	protected boolean isEntityJournaling() {
+		return false;
+	}
+
+	/**
+	 * Milliseconds committed entity changes may wait to be written, so that repeated saves of an entity are
+	 * written once. <code>0</code> writes on commit.
+	 */
+	protected long getEntityWriteBehindDelay() {
+		return 0;
+	}
+
+	/**
+	 * Bytes of entities, estimated by their file sizes, which are kept in memory. Least recently used
+	 * entities are evicted and read again when requested. <code>0</code> keeps all entities in memory.
+	 */
+	protected long getEntityResidencyBudget() {
+		return 0;
+	}
+
+	/**
+	 * Pack changed entity files into cluster files every hour, so that startup reads few large files.
+	 */
+	protected boolean isEntityClustering() {
+		return false;
+	}
+
+	/**
+	 * Write entity files in a compact binary format instead of XML. Existing XML files are still read, see
+	 * <code>SerializerMigration</code> for converting them all at once.
+	 */
+	protected boolean isEntityBinarySerialization() {
+		return false;
+	}
+
+	private Serializer beanSerializer;
 
 	public final Serializer getBeanSerializer() {
 		if (beanSerializer == null) {
-			beanSerializer = new XStreamSerializer();
-			Context.get().autowire(beanSerializer);
+			XStreamSerializer xstreamSerializer = new XStreamSerializer();
+			Context.get().autowire(xstreamSerializer);
+			beanSerializer = isEntityBinarySerialization() ? new BinarySerializer(xstreamSerializer)
+					: xstreamSerializer;
 		}
 		return beanSerializer;
 	}
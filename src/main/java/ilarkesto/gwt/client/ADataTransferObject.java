@@ -30,6 +30,11 @@ import com.google.gwt.user.client.rpc.IsSerializable;
  */
 public abstract class ADataTransferObject implements Serializable, IsSerializable {
 
+	/**
+	 * Marks entity data, which contains only the modified properties of an entity the client already has.
+	 */
+	public static final String DELTA_PROPERTY = "@delta";
+
 	public String entityIdBase;
 	public Boolean developmentMode;
 	private ArrayList<ErrorWrapper> errors;
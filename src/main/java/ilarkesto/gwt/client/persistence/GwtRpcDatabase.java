@@ -19,6 +19,7 @@ import ilarkesto.core.persistance.AEntity;
 import ilarkesto.core.persistance.AEntityDatabase;
 import ilarkesto.core.persistance.EntityDoesNotExistException;
 import ilarkesto.core.persistance.Transaction;
+import ilarkesto.gwt.client.ADataTransferObject;
 import ilarkesto.gwt.client.AGwtApplication;
 
 import java.util.Collection;
@@ -73,11 +74,17 @@ public class GwtRpcDatabase extends ACachingEntityDatabase {
 				try {
 					entity = cache.get(id);
 				} catch (EntityDoesNotExistException ex) {
+					if (data.containsKey(ADataTransferObject.DELTA_PROPERTY)) {
+						log.warn("Modified properties received for unknown entity:", id);
+						continue;
+					}
 					String type = data.get("@type");
 					entity = factory.createEntity(type, id);
-					cache.add(entity);
 				}
+				// deltas contain only modified properties, the others are kept
 				entity.updateProperties(data);
+				// (re)index with the updated properties
+				cache.add(entity);
 			}
 		} finally {
 			t.setIgnoreModifications(false);
@@ -54,6 +54,15 @@ public abstract class AGwtConversation<S extends AWebSession, E extends Transfer
 	private Object nextDataLock = new Object();
 	private Map<E, Long> remoteEntityModificationTimes = new HashMap<E, Long>();
 
+	/**
+	 * Entity changes of commits, which are not applied to <code>nextData</code> yet.
+	 */
+	private List<EntityBroadcast> pendingBroadcasts = new ArrayList<EntityBroadcast>();
+	private Object pendingBroadcastsLock = new Object();
+
+	private long transferredPropertyBytes;
+	private long savedPropertyBytes;
+
 	private S session;
 	private int number;
 	private DateAndTime lastTouched;
@@ -99,6 +108,23 @@ public abstract class AGwtConversation<S extends AWebSession, E extends Transfer
 
 	protected void filterEntityProperties(E entity, Map propertiesMap) {}
 
+	/**
+	 * Broadcast property maps are shared by all conversations, so they are copied before
+	 * <code>filterEntityProperties()</code> is called. Subclasses which do not filter can return
+	 * <code>false</code> to send the shared maps without copying.
+	 */
+	protected boolean isFilteringEntityProperties() {
+		return true;
+	}
+
+	/**
+	 * Send only the modified properties of entities, which the client has at the previous modification time.
+	 * Requires a client which merges received properties into its entities, like <code>GwtRpcDatabase</code>.
+	 */
+	protected boolean isDeltaTransferEnabled() {
+		return false;
+	}
+
 	public synchronized boolean isAvailableOnClient(E entity) {
 		return remoteEntityModificationTimes.containsKey(entity);
 	}
@@ -131,6 +157,7 @@ public abstract class AGwtConversation<S extends AWebSession, E extends Transfer
 
 	private synchronized void sendToClientInternal(E entity) {
 		if (entity == null) return;
+		applyPendingBroadcasts();
 
 		if (transactionService != null && !transactionService.isPersistent(entity.getId())) {
 			getNextData().addDeletedEntity(entity.getId());
@@ -173,6 +200,7 @@ public abstract class AGwtConversation<S extends AWebSession, E extends Transfer
 
 	public synchronized void deleteFromClient(String entityId) {
 		if (entityId == null) return;
+		applyPendingBroadcasts();
 		getNextData().addDeletedEntity(entityId);
 	}
 
@@ -201,9 +229,99 @@ public abstract class AGwtConversation<S extends AWebSession, E extends Transfer
 
 		nd.addEntity(propertiesMap);
 		remoteEntityModificationTimes.put(entity, timeLocal);
+		transferredPropertyBytes += EntityBroadcast.getBytes(propertiesMap);
 		if (log.isDebugEnabled()) log.debug("Sending", toString(entity), "to", this);
 	}
 
+	/**
+	 * Estimated size of all entity properties sent to the client.
+	 */
+	public synchronized long getTransferredPropertyBytes() {
+		return transferredPropertyBytes;
+	}
+
+	/**
+	 * Estimated size of entity properties, which were not sent to the client, because only modified properties
+	 * were sent.
+	 */
+	public synchronized long getSavedPropertyBytes() {
+		return savedPropertyBytes;
+	}
+
+	/**
+	 * Enqueues entity changes of a commit. They are applied when data is sent to the client next, so the
+	 * committing thread does not wait for this conversation.
+	 */
+	public final void enqueue(EntityBroadcast broadcast) {
+		synchronized (pendingBroadcastsLock) {
+			pendingBroadcasts.add(broadcast);
+		}
+	}
+
+	private synchronized void applyPendingBroadcasts() {
+		List<EntityBroadcast> broadcasts;
+		synchronized (pendingBroadcastsLock) {
+			if (pendingBroadcasts.isEmpty()) return;
+			broadcasts = pendingBroadcasts;
+			pendingBroadcasts = new ArrayList<EntityBroadcast>();
+		}
+		ADataTransferObject nd = getNextData();
+		if (nd == null) return;
+		for (EntityBroadcast broadcast : broadcasts) {
+			for (String id : broadcast.getDeletedIds()) {
+				nd.addDeletedEntity(id);
+			}
+			for (EntityBroadcast.Item item : broadcast.getItems()) {
+				E entity = (E) item.entity;
+				if (item.ifTracking && !remoteEntityModificationTimes.containsKey(entity)) continue;
+				if (transactionService != null && !transactionService.isPersistent(entity.getId())) {
+					nd.addDeletedEntity(entity.getId());
+					continue;
+				}
+				if (!isEntityVisible(entity)) continue;
+				for (EntityBroadcast.Payload payload : item.payloads) {
+					addToNextData(payload);
+				}
+			}
+		}
+	}
+
+	private void addToNextData(EntityBroadcast.Payload payload) {
+		E entity = (E) payload.entity;
+		Long timeRemote = remoteEntityModificationTimes.get(entity);
+		Long timeLocal = payload.modificationTime;
+
+		ADataTransferObject nd = getNextData();
+		if (nd.containsDeletedEntity(entity.getId())) return;
+
+		// sent directly after the commit already
+		if (timeRemote != null && timeLocal != null && timeRemote >= timeLocal) return;
+
+		HashMap<String, String> propertiesMap = payload.properties;
+		// pending data for the entity would be replaced by the delta
+		boolean delta = payload.delta != null && isDeltaTransferEnabled()
+				&& payload.previousModificationTime.equals(timeRemote) && !nd.containsEntity(entity.getId());
+		if (delta) propertiesMap = payload.delta;
+		if (isFilteringEntityProperties()) {
+			propertiesMap = new HashMap<String, String>(propertiesMap);
+			filterEntityProperties(entity, propertiesMap);
+		}
+
+		nd.addEntity(propertiesMap);
+		remoteEntityModificationTimes.put(entity, timeLocal);
+		long bytes = EntityBroadcast.getBytes(propertiesMap);
+		transferredPropertyBytes += bytes;
+		if (delta) {
+			long fullBytes = EntityBroadcast.getBytes(payload.properties);
+			savedPropertyBytes += fullBytes - bytes;
+			if (log.isDebugEnabled())
+				log.debug("Sending modified properties of", toString(entity), "to", this, "->", bytes, "of", fullBytes,
+					"bytes");
+		} else {
+			if (log.isDebugEnabled()) log.debug("Sending", toString(entity), "to", this, "->", bytes, "bytes");
+		}
+	}
+
 	private String toString(E entity) {
 		if (entity == null) return "<null>";
 		return Str.getSimpleName(entity.getClass()) + " " + entity.getId() + " " + entity.toString();
@@ -211,6 +329,7 @@ public abstract class AGwtConversation<S extends AWebSession, E extends Transfer
 
 	public final ADataTransferObject popNextData() {
 		if (nextData == null) return null;
+		applyPendingBroadcasts();
 		synchronized (nextDataLock) {
 			ADataTransferObject ret = nextData;
 			nextData = createDataTransferObject();
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.gwt.server;
+
+import ilarkesto.core.persistance.AEntityDatabase;
+import ilarkesto.core.persistance.Transaction;
+import ilarkesto.core.persistance.TransferBus;
+import ilarkesto.core.persistance.TransferableEntity;
+import ilarkesto.gwt.client.ADataTransferObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Entity changes of one commit, prepared once for all conversations: the passengers of each changed entity and
+ * the property maps of all of them. Conversations enqueue the broadcast and apply it with their own visibility
+ * filter, when their data is sent to the client. Immutable, the property maps must not be modified.
+ * <p>
+ * For entities, which were modified in the commit and broadcasted before, a delta with only the modified
+ * properties is prepared. It can be sent to conversations, which hold the entity at the modification time of
+ * the previous broadcast.
+ */
+public class EntityBroadcast {
+
+	private final Set<String> deletedIds;
+	private final List<Item> items = new ArrayList<Item>();
+	private final Map<String, Payload> payloadsById = new HashMap<String, Payload>();
+	private final Map<String, Map<String, String>> modifiedPropertiesByEntityId;
+	private final Map<String, Long> previousModificationTimes;
+
+	/**
+	 * @param previousModificationTimes modification times of entities at their previous broadcast, by id
+	 */
+	public EntityBroadcast(Collection<String> deletedIds, Collection<? extends TransferableEntity> modified,
+			Collection<? extends TransferableEntity> created,
+			Map<String, Map<String, String>> modifiedPropertiesByEntityId, Map<String, Long> previousModificationTimes) {
+		this.deletedIds = deletedIds == null ? Collections.<String> emptySet() : new HashSet<String>(deletedIds);
+		this.modifiedPropertiesByEntityId = modifiedPropertiesByEntityId;
+		this.previousModificationTimes = previousModificationTimes;
+		addItems(modified, true);
+		addItems(created, false);
+	}
+
+	public EntityBroadcast(Collection<String> deletedIds, Collection<? extends TransferableEntity> modified,
+			Collection<? extends TransferableEntity> created) {
+		this(deletedIds, modified, created, null, null);
+	}
+
+	private void addItems(Collection<? extends TransferableEntity> entities, boolean ifTracking) {
+		if (entities == null) return;
+		Transaction transaction = AEntityDatabase.instance == null ? null : Transaction.get();
+		for (TransferableEntity entity : entities) {
+			if (entity == null || isDeleted(entity.getId(), transaction)) continue;
+			TransferBus transferBus = new TransferBus();
+			transferBus.add(entity);
+			List<Payload> payloads = new ArrayList<Payload>(transferBus.getEntities().size());
+			for (TransferableEntity passenger : transferBus.getEntities()) {
+				String id = passenger.getId();
+				if (isDeleted(id, transaction)) continue;
+				Payload payload = payloadsById.get(id);
+				if (payload == null) {
+					payload = createPayload(passenger);
+					payloadsById.put(id, payload);
+				}
+				payloads.add(payload);
+			}
+			items.add(new Item(entity, ifTracking, payloads));
+		}
+	}
+
+	private Payload createPayload(TransferableEntity entity) {
+		Payload payload = new Payload(entity);
+		if (modifiedPropertiesByEntityId == null || previousModificationTimes == null) return payload;
+		Map<String, String> modifiedProperties = modifiedPropertiesByEntityId.get(entity.getId());
+		if (modifiedProperties == null) return payload;
+		Long previousModificationTime = previousModificationTimes.get(entity.getId());
+		if (previousModificationTime == null || previousModificationTime.equals(payload.modificationTime))
+			return payload;
+		HashMap<String, String> delta = new HashMap<String, String>();
+		for (String property : modifiedProperties.keySet()) {
+			delta.put(property, payload.properties.get(property));
+		}
+		delta.put("@type", payload.properties.get("@type"));
+		delta.put("id", entity.getId());
+		delta.put("modificationTime", payload.properties.get("modificationTime"));
+		delta.put(ADataTransferObject.DELTA_PROPERTY, "true");
+		if (getBytes(delta) >= getBytes(payload.properties)) return payload;
+		payload.delta = delta;
+		payload.previousModificationTime = previousModificationTime;
+		return payload;
+	}
+
+	/**
+	 * Stores the modification times of the broadcasted entities, as previous modification times for the next
+	 * broadcast.
+	 */
+	public void updatePreviousModificationTimes(Map<String, Long> previousModificationTimes) {
+		for (Payload payload : payloadsById.values()) {
+			previousModificationTimes.put(payload.entity.getId(), payload.modificationTime);
+		}
+		for (String id : deletedIds) {
+			previousModificationTimes.remove(id);
+		}
+	}
+
+	private boolean isDeleted(String id, Transaction transaction) {
+		if (deletedIds.contains(id)) return true;
+		return transaction != null && transaction.isDeleted(id);
+	}
+
+	public Set<String> getDeletedIds() {
+		return deletedIds;
+	}
+
+	List<Item> getItems() {
+		return items;
+	}
+
+	public boolean isEmpty() {
+		return deletedIds.isEmpty() && items.isEmpty();
+	}
+
+	/**
+	 * Estimated size of the full property maps of all entities.
+	 */
+	public long getFullBytes() {
+		long ret = 0;
+		for (Payload payload : payloadsById.values()) {
+			ret += getBytes(payload.properties);
+		}
+		return ret;
+	}
+
+	/**
+	 * Estimated size of the property maps of all entities, when all receivers get deltas where prepared.
+	 */
+	public long getDeltaBytes() {
+		long ret = 0;
+		for (Payload payload : payloadsById.values()) {
+			ret += getBytes(payload.delta == null ? payload.properties : payload.delta);
+		}
+		return ret;
+	}
+
+	/**
+	 * Estimated transfer size of a property map: the characters of all keys and values.
+	 */
+	static long getBytes(Map<String, String> properties) {
+		long ret = 0;
+		for (Map.Entry<String, String> entry : properties.entrySet()) {
+			ret += entry.getKey().length();
+			if (entry.getValue() != null) ret += entry.getValue().length();
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return "EntityBroadcast(" + items.size() + " entities, " + payloadsById.size() + " with passengers, "
+				+ deletedIds.size() + " deleted, " + getFullBytes() + " bytes, " + getDeltaBytes() + " as delta)";
+	}
+
+	static class Item {
+
+		final TransferableEntity entity;
+		/**
+		 * Only for conversations, which have the entity on the client already.
+		 */
+		final boolean ifTracking;
+		final List<Payload> payloads;
+
+		private Item(TransferableEntity entity, boolean ifTracking, List<Payload> payloads) {
+			this.entity = entity;
+			this.ifTracking = ifTracking;
+			this.payloads = payloads;
+		}
+
+	}
+
+	static class Payload {
+
+		final TransferableEntity entity;
+		final Long modificationTime;
+		final HashMap<String, String> properties;
+		/**
+		 * Modified properties, for receivers holding the entity at <code>previousModificationTime</code>.
+		 */
+		HashMap<String, String> delta;
+		Long previousModificationTime;
+
+		private Payload(TransferableEntity entity) {
+			this.entity = entity;
+			this.modificationTime = entity.getModificationTime();
+			this.properties = entity.createPropertiesMap();
+		}
+
+	}
+
+}
@@ -49,6 +49,8 @@ import java.net.SocketException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -392,6 +394,30 @@ public abstract class IO {
 		delete(from);
 	}
 
+	/**
+	 * Forces created, renamed and deleted entries of a directory to disk. Does nothing, if the directory does not
+	 * exist or the platform can not open directories.
+	 */
+	public static void syncDirectory(File dir) {
+		if (!dir.isDirectory()) return;
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+		} catch (IOException ex) {
+			// windows
+			return;
+		}
+		try {
+			channel.force(true);
+		} catch (IOException ex) {
+			throw new RuntimeException("Syncing directory failed: " + dir.getAbsolutePath(), ex);
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException ex) {}
+		}
+	}
+
 	private static void moveFiles(File[] files, File destination, boolean overwrite) {
 		if (files == null || files.length == 0) return;
 		if (destination.exists()) {
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io;
+
+import ilarkesto.base.Bytes;
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.base.Str;
+import ilarkesto.core.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Backs up a directory into a chain of zip files, each containing only the files which changed since the
+ * previous backup.
+ * <p>
+ * <code>createSnapshot()</code> records size and modification time of all files and freezes the changed ones
+ * by hard links into a staging directory. Small files, which might be rewritten in place, are copied instead.
+ * This is cheap and is the only part which needs the writers of the directory to be stopped.
+ * <p>
+ * Files of 64 KB and more are hard linked and share their content with the directory until
+ * <code>compress()</code> finished. Such files may be replaced (write a new file and move it over the old
+ * one) or appended to meanwhile, as the entity files and the journal are. Rewriting them in place corrupts the
+ * backup.
+ * <code>Snapshot.compress()</code> then zips the staged files, usually in the background.
+ * <p>
+ * Next to each zip a manifest lists all files of the snapshot and the backup containing their content. A
+ * backup is complete when its manifest exists. Every <code>fullBackupInterval</code>-th backup contains all
+ * files, so that older chains can be deleted.
+ */
+public class IncrementalBackup {
+
+	private static final Log log = Log.get(IncrementalBackup.class);
+
+	private static final String MANIFEST_SUFFIX = ".manifest";
+	private static final String STAGING_SUFFIX = ".staging";
+	private static final String CHAIN_HEADER = "#chain ";
+	private static final long COPY_THRESHOLD = 64 * 1024;
+
+	private final File dir;
+	private final File backupDir;
+	private final String prefix;
+
+	private FileFilter filter;
+	private int fullBackupInterval = 7;
+
+	private Snapshot running;
+
+	/**
+	 * @param prefix start of the names of all backups, followed by a timestamp
+	 */
+	public IncrementalBackup(File dir, File backupDir, String prefix) {
+		this.dir = dir;
+		this.backupDir = backupDir;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Files and directories of the backed up directory to include. The backup directory itself is always
+	 * excluded.
+	 */
+	public void setFilter(FileFilter filter) {
+		this.filter = filter;
+	}
+
+	public void setFullBackupInterval(int fullBackupInterval) {
+		this.fullBackupInterval = fullBackupInterval;
+	}
+
+	/**
+	 * Records the current state of the directory. The caller has to prevent modifications while this runs.
+	 * Waits for the compression of the previous snapshot before, so call it outside of locks first, see
+	 * <code>waitForCompression()</code>.
+	 */
+	public Snapshot createSnapshot(String name) {
+		waitForCompression();
+		RuntimeTracker rt = new RuntimeTracker();
+		Manifest previous = getLastManifest();
+		boolean full = previous == null || previous.chainLength >= fullBackupInterval;
+
+		Snapshot snapshot = new Snapshot(prefix + name, full ? 1 : previous.chainLength + 1);
+		synchronized (this) {
+			running = snapshot;
+		}
+		try {
+			IO.createDirectory(snapshot.stagingDir);
+			collect(dir, "", previous, full, snapshot);
+		} catch (RuntimeException ex) {
+			snapshot.discard();
+			throw ex;
+		}
+		log.info("Backup snapshot created in", rt.getRuntimeFormated() + ":", snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Blocks until the last snapshot is compressed.
+	 */
+	public synchronized void waitForCompression() {
+		while (running != null) {
+			try {
+				wait(1000);
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	private void collect(File file, String path, Manifest previous, boolean full, Snapshot snapshot) {
+		File[] files = file.listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			if (f.equals(backupDir)) continue;
+			if (filter != null && !filter.accept(f)) continue;
+			String filePath = path + f.getName();
+			if (f.isDirectory()) {
+				collect(f, filePath + "/", previous, full, snapshot);
+				continue;
+			}
+			Entry entry = new Entry(filePath, f.length(), f.lastModified(), snapshot.name);
+			Entry previousEntry = full ? null : previous.entries.get(filePath);
+			if (previousEntry != null && previousEntry.size == entry.size
+					&& previousEntry.lastModified == entry.lastModified) {
+				entry.backupName = previousEntry.backupName;
+			} else {
+				stage(f, new File(snapshot.stagingDir.getPath() + "/" + filePath), entry.size);
+				snapshot.changedCount++;
+			}
+			snapshot.manifest.entries.put(filePath, entry);
+		}
+	}
+
+	private void stage(File file, File staged, long size) {
+		IO.createDirectory(staged.getParentFile());
+		if (size >= COPY_THRESHOLD) {
+			try {
+				Files.createLink(staged.toPath(), file.toPath());
+				return;
+			} catch (Exception ex) {
+				log.debug("Hard link failed, copying:", file, ex);
+			}
+		}
+		IO.copyFile(file, staged);
+	}
+
+	/**
+	 * Restores the directory as it was when the backup was created.
+	 */
+	public void restore(String backupName, File destination) {
+		Manifest manifest = readManifest(getManifestFile(backupName));
+		Map<String, List<Entry>> entriesByBackup = new LinkedHashMap<String, List<Entry>>();
+		for (Entry entry : manifest.entries.values()) {
+			List<Entry> entries = entriesByBackup.get(entry.backupName);
+			if (entries == null) {
+				entries = new ArrayList<Entry>();
+				entriesByBackup.put(entry.backupName, entries);
+			}
+			entries.add(entry);
+		}
+		for (Map.Entry<String, List<Entry>> backup : entriesByBackup.entrySet()) {
+			File zipFile = getZipFile(backup.getKey());
+			if (!zipFile.exists()) throw new RuntimeException("Backup missing in chain: " + zipFile);
+			ZipFile zip = null;
+			try {
+				zip = new ZipFile(zipFile);
+				for (Entry entry : backup.getValue()) {
+					ZipEntry zipEntry = zip.getEntry(entry.path);
+					if (zipEntry == null)
+						throw new RuntimeException("File missing in backup " + zipFile + ": " + entry.path);
+					File file = new File(destination.getPath() + "/" + entry.path);
+					IO.copyDataToFile(zip.getInputStream(zipEntry), file);
+					file.setLastModified(entry.lastModified);
+				}
+			} catch (IOException ex) {
+				throw new RuntimeException("Restoring from " + zipFile + " failed.", ex);
+			} finally {
+				if (zip != null) {
+					try {
+						zip.close();
+					} catch (IOException ex) {}
+				}
+			}
+		}
+		log.info("Backup restored:", backupName, "->", destination, "(" + manifest.entries.size(), "files)");
+	}
+
+	/**
+	 * Names of all complete backups, oldest first.
+	 */
+	public List<String> listBackups() {
+		List<String> ret = new ArrayList<String>();
+		File[] files = backupDir.listFiles();
+		if (files == null) return ret;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix) && name.endsWith(MANIFEST_SUFFIX))
+				ret.add(Str.removeSuffix(name, MANIFEST_SUFFIX));
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * Deletes backups completed before <code>deadline</code>, unless newer backups depend on them. Also
+	 * deletes leftovers of failed backups.
+	 */
+	public void deleteOldBackups(long deadline) {
+		List<String> names = listBackups();
+		Set<String> required = new HashSet<String>();
+		List<String> old = new ArrayList<String>();
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			File manifestFile = getManifestFile(name);
+			boolean latest = i == names.size() - 1;
+			if (!latest && manifestFile.lastModified() < deadline) {
+				old.add(name);
+				continue;
+			}
+			for (Entry entry : readManifest(manifestFile).entries.values()) {
+				required.add(entry.backupName);
+			}
+		}
+		for (String name : old) {
+			if (required.contains(name)) continue;
+			log.debug("    Deleting backup", name);
+			IO.delete(getManifestFile(name));
+			IO.delete(getZipFile(name));
+		}
+
+		synchronized (this) {
+			File[] files = backupDir.listFiles();
+			if (files == null) return;
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.startsWith(prefix)) continue;
+				if (running != null && name.startsWith(running.name)) continue;
+				if (name.endsWith(STAGING_SUFFIX) || name.endsWith(".zip~")) IO.delete(file);
+			}
+		}
+	}
+
+	private Manifest getLastManifest() {
+		List<String> names = listBackups();
+		if (names.isEmpty()) return null;
+		return readManifest(getManifestFile(names.get(names.size() - 1)));
+	}
+
+	private File getManifestFile(String backupName) {
+		return new File(backupDir.getPath() + "/" + backupName + MANIFEST_SUFFIX);
+	}
+
+	private File getZipFile(String backupName) {
+		return new File(backupDir.getPath() + "/" + backupName + ".zip");
+	}
+
+	private static Manifest readManifest(File file) {
+		Manifest manifest = new Manifest();
+		for (String line : IO.readFile(file, IO.UTF_8).split("\n")) {
+			if (line.startsWith(CHAIN_HEADER)) {
+				manifest.chainLength = Integer.parseInt(line.substring(CHAIN_HEADER.length()).trim());
+				continue;
+			}
+			if (Str.isBlank(line)) continue;
+			String[] fields = line.split("\t");
+			Entry entry = new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+			manifest.entries.put(entry.path, entry);
+		}
+		return manifest;
+	}
+
+	public class Snapshot {
+
+		private final String name;
+		private final File stagingDir;
+		private final Manifest manifest = new Manifest();
+		private int changedCount;
+
+		private Snapshot(String name, int chainLength) {
+			this.name = name;
+			this.stagingDir = new File(backupDir.getPath() + "/" + name + STAGING_SUFFIX);
+			manifest.chainLength = chainLength;
+		}
+
+		/**
+		 * Zips the staged files and completes the backup by writing its manifest. Does not need any locks.
+		 */
+		public void compress() {
+			try {
+				RuntimeTracker rt = new RuntimeTracker();
+				File zipFile = getZipFile(name);
+				if (changedCount > 0) {
+					File tmpFile = new File(zipFile.getPath() + "~");
+					zip(tmpFile);
+					IO.move(tmpFile, zipFile, true);
+				}
+
+				File manifestFile = getManifestFile(name);
+				File tmpManifestFile = new File(manifestFile.getPath() + "~");
+				IO.writeFile(tmpManifestFile, manifest.toString(), IO.UTF_8);
+				IO.move(tmpManifestFile, manifestFile, true);
+
+				log.info("Backup compressed in", rt.getRuntimeFormated() + ":", name, "("
+						+ new Bytes(zipFile.length()).toRoundedString() + ")");
+			} finally {
+				discard();
+			}
+		}
+
+		private void discard() {
+			IO.delete(stagingDir);
+			synchronized (IncrementalBackup.this) {
+				running = null;
+				IncrementalBackup.this.notifyAll();
+			}
+		}
+
+		private void zip(File zipFile) {
+			ZipOutputStream zipout;
+			try {
+				zipout = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)));
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
+			}
+			try {
+				zipout.setLevel(Deflater.BEST_COMPRESSION);
+				for (Entry entry : manifest.entries.values()) {
+					if (!entry.backupName.equals(name)) continue;
+					File staged = new File(stagingDir.getPath() + "/" + entry.path);
+					zipout.putNextEntry(new ZipEntry(entry.path));
+					InputStream in = new BufferedInputStream(new FileInputStream(staged));
+					try {
+						// hard linked files may have been appended to since the snapshot
+						long copied = copy(in, zipout, entry.size);
+						if (copied < entry.size) {
+							log.warn("File shrunk since snapshot:", entry.path, entry.size, "->", copied);
+							entry.size = copied;
+						}
+					} finally {
+						IO.closeQuiet(in);
+					}
+					zipout.closeEntry();
+				}
+				zipout.close();
+			} catch (IOException ex) {
+				IO.closeQuiet(zipout);
+				throw new RuntimeException("Zipping backup failed: " + zipFile, ex);
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isFull() {
+			return manifest.chainLength == 1;
+		}
+
+		public int getChangedCount() {
+			return changedCount;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + (isFull() ? "full" : "incremental") + ", " + changedCount + " of "
+					+ manifest.entries.size() + " files)";
+		}
+
+	}
+
+	private static long copy(InputStream in, OutputStream out, long limit) throws IOException {
+		byte[] buffer = new byte[8192];
+		long copied = 0;
+		while (copied < limit) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - copied));
+			if (read < 0) break;
+			out.write(buffer, 0, read);
+			copied += read;
+		}
+		return copied;
+	}
+
+	private static class Manifest {
+
+		private int chainLength;
+		private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(CHAIN_HEADER).append(chainLength).append("\n");
+			for (Entry entry : entries.values()) {
+				sb.append(entry.path).append("\t").append(entry.size).append("\t").append(entry.lastModified)
+						.append("\t").append(entry.backupName).append("\n");
+			}
+			return sb.toString();
+		}
+
+	}
+
+	private static class Entry {
+
+		private final String path;
+		private long size;
+		private final long lastModified;
+		private String backupName;
+
+		public Entry(String path, long size, long lastModified, String backupName) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.backupName = backupName;
+		}
+
+	}
+
+}
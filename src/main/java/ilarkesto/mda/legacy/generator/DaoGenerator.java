@@ -16,7 +16,6 @@ package ilarkesto.mda.legacy.generator;
 
 import ilarkesto.auth.AUserDao;
 import ilarkesto.auth.Auth;
-import ilarkesto.base.Cache;
 import ilarkesto.base.Str;
 import ilarkesto.core.fp.Predicate;
 import ilarkesto.mda.legacy.model.DatobModel;
@@ -24,8 +23,10 @@ import ilarkesto.mda.legacy.model.DependencyModel;
 import ilarkesto.mda.legacy.model.EntityModel;
 import ilarkesto.mda.legacy.model.PropertyModel;
 import ilarkesto.persistence.ADao;
+import ilarkesto.persistence.DaoIndex;
 import ilarkesto.persistence.EntityEvent;
 
+import java.math.BigDecimal;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
@@ -86,10 +87,6 @@ public class DaoGenerator extends ABeanGenerator<EntityModel> {
 		comment("clear caches");
 		ln("    public void clearCaches() {");
 		for (PropertyModel p : bean.getProperties()) {
-			if (!p.isUnique()) {
-				ln("        " + Str.lowercaseFirstLetter(bean.getName()) + "sBy"
-						+ Str.uppercaseFirstLetter(p.getNameSingular()) + "Cache.clear();");
-			}
 			if (!p.isBoolean()) {
 				ln("        " + p.getNameSingular() + "sCache = null;");
 			}
@@ -169,41 +166,57 @@ public class DaoGenerator extends ABeanGenerator<EntityModel> {
 		ln("    // - " + p.getName());
 		ln("    // -----------------------------------------------------------");
 
+		if (p.isPrimitive()) {
+			if (pType.equals("boolean")) pType = "Boolean";
+			if (pType.equals("int")) pType = "Integer";
+			if (pType.equals("long")) pType = "Long";
+		}
+
 		ln();
-		if (p.isUnique()) {
-			ln("    public final " + bean.getName() + " get" + bean.getName() + "By" + pNameUpper + "("
-					+ p.getContentType() + " " + p.getNameSingular() + ") {");
-			ln("        return getEntity(new " + predicateClassNamePrefix + pNameUpper + "(" + p.getNameSingular()
-					+ "));");
-			ln("    }");
-		} else {
-			if (p.isPrimitive()) {
-				if (pType.equals("boolean")) pType = "Boolean";
-				if (pType.equals("int")) pType = "Integer";
-				if (pType.equals("long")) pType = "Long";
+		if (isIndexable(p)) {
+			String indexVarName = Str.lowercaseFirstLetter(bean.getName()) + "sBy" + pNameUpper + "Index";
+			String keyType = p.isReference() ? "String" : pType;
+			String keyExpr = p.isReference() ? p.getNameSingular() + " == null ? null : " + p.getNameSingular()
+					+ ".getId()" : p.getNameSingular();
+			String generic = "<" + bean.getName() + "," + keyType + ">";
+			String getter = (p.isBoolean() ? "is" : "get") + Str.uppercaseFirstLetter(p.getName())
+					+ (p.isReference() ? (p.isCollection() ? "Ids" : "Id") : "") + "()";
+			ln("    private final DaoIndex" + generic + " " + indexVarName + " = addIndex(new DaoIndex" + generic
+					+ "() {");
+			ln("        protected Collection<" + keyType + "> getKeys(" + bean.getName() + " e) {");
+			if (p.isCollection()) {
+				ln("            return e." + getter + ";");
+			} else {
+				ln("            return Collections.singleton((" + keyType + ") e." + getter + ");");
 			}
-			String cacheVarName = Str.lowercaseFirstLetter(bean.getName()) + "sBy" + pNameUpper + "Cache";
-			String generic = "<" + pType + ",Set<" + bean.getName() + ">>";
-			ln("    private final Cache" + generic + " " + cacheVarName + " = new Cache" + generic + "(");
-			ln("            new Cache.Factory" + generic + "() {");
-			ln("                public Set<" + bean.getName() + "> create(" + pType + " " + p.getNameSingular() + ") {");
-			ln("                    return getEntities(new " + predicateClassNamePrefix + pNameUpper + "("
-					+ p.getNameSingular() + "));");
-			ln("                }");
-			ln("            });");
+			ln("        }");
+			ln("    });");
 			ln();
-
-			ln("    public final Set<" + bean.getName() + "> get" + bean.getName() + "sBy" + pNameUpper + "("
-					+ p.getContentType() + " " + p.getNameSingular() + ") {");
-			ln("        return new HashSet<" + bean.getName() + ">(" + cacheVarName + ".get(" + p.getNameSingular()
-					+ "));");
-			ln("    }");
-
-			// ln(" public final Set<" + bean.getInterfaceName() + "> get" + bean.getName() + "sBy"
-			// + pNameUpper + "(" + p.getContentType() + " " + p.getNameSingular() + ") {");
-			// ln(" return getEntities(new " + predicateClassNamePrefix + pNameUpper + "("
-			// + p.getNameSingular() + "));");
-			// ln(" }");
+			if (p.isUnique()) {
+				ln("    public final " + bean.getName() + " get" + bean.getName() + "By" + pNameUpper + "("
+						+ p.getContentType() + " " + p.getNameSingular() + ") {");
+				ln("        return " + indexVarName + ".getFirst(" + keyExpr + ");");
+				ln("    }");
+			} else {
+				ln("    public final Set<" + bean.getName() + "> get" + bean.getName() + "sBy" + pNameUpper + "("
+						+ p.getContentType() + " " + p.getNameSingular() + ") {");
+				ln("        return " + indexVarName + ".get(" + keyExpr + ");");
+				ln("    }");
+			}
+		} else {
+			if (p.isUnique()) {
+				ln("    public final " + bean.getName() + " get" + bean.getName() + "By" + pNameUpper + "("
+						+ p.getContentType() + " " + p.getNameSingular() + ") {");
+				ln("        return getEntity(new " + predicateClassNamePrefix + pNameUpper + "("
+						+ p.getNameSingular() + "));");
+				ln("    }");
+			} else {
+				ln("    public final Set<" + bean.getName() + "> get" + bean.getName() + "sBy" + pNameUpper + "("
+						+ p.getContentType() + " " + p.getNameSingular() + ") {");
+				ln("        return getEntities(new " + predicateClassNamePrefix + pNameUpper + "("
+						+ p.getNameSingular() + "));");
+				ln("    }");
+			}
 		}
 		if (!p.isBoolean()) {
 			String cacheName = p.getNameSingular() + "sCache";
@@ -251,6 +264,16 @@ public class DaoGenerator extends ABeanGenerator<EntityModel> {
 
 	}
 
+	/**
+	 * Value objects and decimals are compared by their content, which a hash index can not reproduce. Their
+	 * finders scan.
+	 */
+	private boolean isIndexable(PropertyModel p) {
+		if (p.isValueObject()) return false;
+		if (p.getContentType().equals(BigDecimal.class.getName())) return false;
+		return true;
+	}
+
 	protected final String getUserClassName() {
 		EntityModel userModel = bean.getUserModel();
 		if (userModel == null && bean.getName().equals("User")) userModel = bean;
@@ -274,7 +297,7 @@ public class DaoGenerator extends ABeanGenerator<EntityModel> {
 		Set<String> result = new LinkedHashSet<String>();
 		result.addAll(super.getImports());
 		result.add(Auth.class.getName());
-		result.add(Cache.class.getName());
+		result.add(DaoIndex.class.getName());
 		result.add(EntityEvent.class.getName());
 		result.add(Predicate.class.getName());
 		return result;
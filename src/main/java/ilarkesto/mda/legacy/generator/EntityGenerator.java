@@ -29,6 +29,8 @@ import ilarkesto.core.persistance.AllByTypeQuery;
 import ilarkesto.core.persistance.EditableKeytableValue;
 import ilarkesto.core.persistance.EntityDoesNotExistException;
 import ilarkesto.core.persistance.KeytableValue;
+import ilarkesto.core.persistance.PropertyEqualsQuery;
+import ilarkesto.core.persistance.ReferenceQuery;
 import ilarkesto.core.persistance.Transaction;
 import ilarkesto.mda.legacy.model.BackReferenceModel;
 import ilarkesto.mda.legacy.model.EntityModel;
@@ -389,27 +391,8 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 						AEntityBackReferenceHelper.class.getName() + "<" + bean.getName() + ">() {");
 					annotationOverride();
 					ln("        protected " + bean.getName() + " loadById(final String id) {");
-					ln("        return new " + queryName + "() {");
-					ln("            @Override");
-					ln("            public boolean test(" + bean.getName() + " entity) {");
-
-					if (p.isCollection()) {
-						ln("                return entity.get" + Str.uppercaseFirstLetter(p.getName())
-								+ "Ids().contains(id);");
-					}
-
-					if (!p.isCollection()) {
-						ln("                return id.equals(entity.get" + Str.uppercaseFirstLetter(p.getName())
-								+ "Id());");
-					}
-					ln("            }");
-					ln("            }.getFirst();");
-					ln("            }");
-					ln("            @Override");
-					ln("            public String toString() {");
-					ln("                return \"" + bean.getName() + ":by" + Str.uppercaseFirstLetter(p.getName())
-							+ "\";");
-					ln("            }");
+					ln("        return " + createReferenceQuery(p) + ".getFirst();");
+					ln("        }");
 					ln("    };");
 					ln();
 				}
@@ -420,18 +403,16 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 				if (p.isReference()) {
 					ln("        if (" + p.getName() + " == null ) return null;");
 					ln("        return", p.getName() + "BackReferencesCache.getById(" + p.getName() + ".getId());");
+				} else if (!p.isCollection()) {
+					ln("        return (" + bean.getName() + ") " + Transaction.class.getName() + ".get().getFirst("
+							+ createPropertyEqualsQuery(p) + ");");
 				} else {
 					ln("        return (" + bean.getName() + ") " + Transaction.class.getName()
 							+ ".get().getFirst(new " + queryName + "() {");
 					ln("            @Override");
 					ln("            public boolean test(" + bean.getName() + " entity) {");
-					if (p.isCollection()) {
-						ln("                return entity.contains" + Str.uppercaseFirstLetter(p.getNameSingular())
-								+ "(" + p.getName() + ");");
-					} else {
-						ln("                return entity.is" + Str.uppercaseFirstLetter(p.getName()) + "("
-								+ p.getName() + ");");
-					}
+					ln("                return entity.contains" + Str.uppercaseFirstLetter(p.getNameSingular()) + "("
+							+ p.getName() + ");");
 					ln("            }");
 					ln("            @Override");
 					ln("            public String toString() {");
@@ -452,27 +433,7 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 								+ bean.getName() + ">() {");
 					annotationOverride();
 					ln("        protected Set<" + bean.getName() + "> loadById(final String id) {");
-					ln("        return new " + queryName + "() {");
-					ln("            @Override");
-					ln("            public boolean test(" + bean.getName() + " entity) {");
-
-					if (p.isCollection()) {
-						ln("                return entity.get" + Str.uppercaseFirstLetter(p.getName())
-								+ "Ids().contains(id);");
-					}
-
-					if (!p.isCollection()) {
-						ln("                return id.equals(entity.get" + Str.uppercaseFirstLetter(p.getName())
-								+ "Id());");
-					}
-
-					ln("            }");
-					ln("            @Override");
-					ln("            public String toString() {");
-					ln("                return \"" + bean.getName() + ":by" + Str.uppercaseFirstLetter(p.getName())
-							+ "\";");
-					ln("            }");
-					ln("        }.list();");
+					ln("        return " + createReferenceQuery(p) + ".list();");
 					ln("        }");
 					ln("    };");
 					ln();
@@ -489,21 +450,16 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 							+ ".getId());");
 				}
 
-				if (!p.isReference()) {
+				if (!p.isReference() && !p.isCollection()) {
+					ln("        return " + createPropertyEqualsQuery(p) + ".list();");
+				}
+
+				if (!p.isReference() && p.isCollection()) {
 					ln("        return new " + queryName + "() {");
 					ln("            @Override");
 					ln("            public boolean test(" + bean.getName() + " entity) {");
-
-					if (p.isCollection()) {
-						ln("                return entity.contains" + Str.uppercaseFirstLetter(p.getNameSingular())
-								+ "(" + p.getNameSingular() + ");");
-					}
-
-					if (!p.isCollection()) {
-						ln("                return entity.is" + Str.uppercaseFirstLetter(p.getName()) + "("
-								+ p.getName() + ");");
-					}
-
+					ln("                return entity.contains" + Str.uppercaseFirstLetter(p.getNameSingular()) + "("
+							+ p.getNameSingular() + ");");
 					ln("            }");
 					ln("            @Override");
 					ln("            public String toString() {");
@@ -518,6 +474,17 @@ public class EntityGenerator extends DatobGenerator<EntityModel> {
 		}
 	}
 
+	private String createReferenceQuery(PropertyModel p) {
+		String property = p.getName() + (p.isCollection() ? "Ids" : "Id");
+		return "new " + ReferenceQuery.class.getName() + "<" + bean.getName() + ">(" + bean.getName() + ".class, \""
+				+ property + "\", id, " + p.isCollection() + ")";
+	}
+
+	private String createPropertyEqualsQuery(PropertyModel p) {
+		return "new " + PropertyEqualsQuery.class.getName() + "<" + bean.getName() + ">(" + bean.getName()
+				+ ".class, \"" + p.getName() + "\", " + persistenceUtil + ".propertyAsString(" + p.getName() + "))";
+	}
+
 	private void writeBackReference(BackReferenceModel br) {
 		ln();
 		PropertyModel ref = br.getReference();
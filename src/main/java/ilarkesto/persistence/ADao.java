@@ -39,6 +39,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class ADao<E extends AEntity> extends ADatobManager<E> implements IdentifiableResolver<E>, Searcher,
 		DaoListener, Iconized, Comparable<ADao> {
@@ -47,6 +48,7 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 
 	private Predicate<Class> entityTypeFilter;
 	private String icon;
+	private final List<DaoIndex<E, ?>> indexes = new CopyOnWriteArrayList<DaoIndex<E, ?>>();
 
 	// --- ---
 
@@ -58,7 +60,10 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 	public void onDatobModified(E entity, String field, String value) {
 		// don's save new entities
 		boolean persistent = isPersistent(entity);
-		if (!persistent) return;
+		if (!persistent) {
+			updateIndexes(entity);
+			return;
+		}
 
 		LOG.info("Entity modified:", Utl.toStringWithType(entity), "->", field, "=", Str.format(value));
 		saveEntity(entity);
@@ -153,7 +158,7 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 	@Override
 	public List<E> getByIds(Collection<String> entitiesIds) {
 		Set<String> ids = new HashSet<String>(entitiesIds);
-		List<E> result = (List<E>) transactionService.getByIds(entitiesIds);
+		List<E> result = (List<E>) transactionService.getByIds(getEntityTypeFilter(), entitiesIds);
 		if (result.size() != ids.size()) {
 			result = new ArrayList<E>();
 			for (String id : ids) {
@@ -190,14 +195,35 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 
 	public void deleteEntity(E entity) {
 		transactionService.deleteEntity(entity);
+		// index entries are dropped when a lookup finds the deletion committed, so a cancelled transaction
+		// leaves the indexes intact
 		daoService.fireEntityDeleted(entity);
 	}
 
 	public void saveEntity(E entity) {
 		transactionService.saveEntity(entity);
+		updateIndexes(entity);
 		daoService.fireEntitySaved(entity);
 	}
 
+	// --- indexes ---
+
+	/**
+	 * Registers a secondary index, which is maintained by this dao. Intended for field initializers of
+	 * subclasses.
+	 */
+	protected final <K> DaoIndex<E, K> addIndex(DaoIndex<E, K> index) {
+		index.setDao(this);
+		indexes.add(index);
+		return index;
+	}
+
+	private void updateIndexes(E entity) {
+		for (DaoIndex<E, ?> index : indexes) {
+			index.update(entity);
+		}
+	}
+
 	public E newEntityInstance(AUser user) {
 		E entity = newEntityInstance();
 		if (entity instanceof Ownable) ((Ownable) entity).setOwner(user);
@@ -205,6 +231,14 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 	}
 
 	public E newEntityInstance() {
+		return createEntityInstance(null);
+	}
+
+	public E newEntityInstance(String id) {
+		return createEntityInstance(id);
+	}
+
+	private E createEntityInstance(String id) {
 		E entity;
 		try {
 			entity = (E) getEntityClass().newInstance();
@@ -213,17 +247,13 @@ public abstract class ADao<E extends AEntity> extends ADatobManager<E> implement
 		} catch (IllegalAccessException ex) {
 			throw new RuntimeException(ex);
 		}
+		// the transaction registers entities by id, so it has to be final now
+		if (id != null) entity.setId(id);
 		entity.updateLastModified();
 		transactionService.registerEntity(entity);
 		return entity;
 	}
 
-	public E newEntityInstance(String id) {
-		E entity = newEntityInstance();
-		entity.setId(id);
-		return entity;
-	}
-
 	public void ensureIntegrity() {
 		if (!initialized) throw new RuntimeException("Not initialized!");
 		Class clazz = getEntityClass();
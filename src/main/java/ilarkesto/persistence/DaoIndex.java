@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.core.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Secondary index of the entities of a dao by the keys returned from <code>getKeys()</code>. Created with
+ * <code>ADao.addIndex()</code>, built on first use and maintained incrementally while entities are modified
+ * and saved. Index hits are checked against the entity before they are returned, so entries left behind by
+ * deleted entities or cancelled transactions are dropped on the way.
+ */
+public abstract class DaoIndex<E extends AEntity, K> {
+
+	private static final Log log = Log.get(DaoIndex.class);
+
+	private final boolean sorted;
+	private ADao<E> dao;
+
+	private Map<K, Set<String>> idsByKey;
+	private Map<String, Collection<K>> keysById;
+
+	/**
+	 * @param sorted keeps the keys in natural order, which enables <code>getRange()</code>. <code>null</code>
+	 *            keys are not indexed then.
+	 */
+	public DaoIndex(boolean sorted) {
+		this.sorted = sorted;
+	}
+
+	public DaoIndex() {
+		this(false);
+	}
+
+	/**
+	 * Returns the keys under which the entity is found. Single valued properties return a singleton.
+	 */
+	protected abstract Collection<K> getKeys(E entity);
+
+	public Set<E> get(K key) {
+		Set<String> ids;
+		synchronized (this) {
+			ensureBuilt();
+			ids = copy(idsByKey.get(key));
+		}
+		Set<E> ret = new HashSet<E>(ids.size());
+		for (String id : ids) {
+			E entity = resolve(id, key);
+			if (entity != null) ret.add(entity);
+		}
+		return ret;
+	}
+
+	public E getFirst(K key) {
+		Set<String> ids;
+		synchronized (this) {
+			ensureBuilt();
+			ids = copy(idsByKey.get(key));
+		}
+		for (String id : ids) {
+			E entity = resolve(id, key);
+			if (entity != null) return entity;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the entities with keys between <code>from</code> and <code>to</code>, both inclusive.
+	 * <code>null</code> leaves the range open on that side. Only supported by sorted indexes.
+	 */
+	public Set<E> getRange(K from, K to) {
+		if (!sorted) throw new IllegalStateException("Range queries require a sorted index: " + this);
+		Map<String, K> keysByIdInRange = new HashMap<String, K>();
+		synchronized (this) {
+			ensureBuilt();
+			NavigableMap<K, Set<String>> range = (NavigableMap<K, Set<String>>) idsByKey;
+			if (from != null) range = range.tailMap(from, true);
+			if (to != null) range = range.headMap(to, true);
+			for (Map.Entry<K, Set<String>> entry : range.entrySet()) {
+				for (String id : entry.getValue()) {
+					keysByIdInRange.put(id, entry.getKey());
+				}
+			}
+		}
+		Set<E> ret = new HashSet<E>(keysByIdInRange.size());
+		for (Map.Entry<String, K> entry : keysByIdInRange.entrySet()) {
+			E entity = resolve(entry.getKey(), entry.getValue());
+			if (entity != null) ret.add(entity);
+		}
+		return ret;
+	}
+
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	/**
+	 * Re-indexes the entity. Called by the dao when the entity was modified or saved.
+	 */
+	synchronized void update(E entity) {
+		if (idsByKey == null) return;
+		String id = entity.getId();
+		Collection<K> keys = getIndexableKeys(entity);
+		Collection<K> oldKeys = keysById.get(id);
+		if (oldKeys != null && oldKeys.equals(keys)) return;
+		remove(id);
+		if (keys.isEmpty()) return;
+		for (K key : keys) {
+			Set<String> ids = idsByKey.get(key);
+			if (ids == null) {
+				ids = new HashSet<String>(2);
+				idsByKey.put(key, ids);
+			}
+			ids.add(id);
+		}
+		keysById.put(id, keys);
+	}
+
+	synchronized void remove(String id) {
+		if (idsByKey == null) return;
+		Collection<K> keys = keysById.remove(id);
+		if (keys == null) return;
+		for (K key : keys) {
+			Set<String> ids = idsByKey.get(key);
+			if (ids == null) continue;
+			ids.remove(id);
+			if (ids.isEmpty()) idsByKey.remove(key);
+		}
+	}
+
+	synchronized int size() {
+		ensureBuilt();
+		return keysById.size();
+	}
+
+	void setDao(ADao<E> dao) {
+		if (this.dao != null) throw new IllegalStateException("Index already added to " + this.dao);
+		this.dao = dao;
+	}
+
+	private E resolve(String id, K key) {
+		E entity = (E) dao.getTransactionService().getById(id);
+		if (entity == null) {
+			// deleted in this transaction or gone for good
+			if (!dao.getTransactionService().isPersistent(id)) remove(id);
+			return null;
+		}
+		if (!getIndexableKeys(entity).contains(key)) {
+			update(entity);
+			return null;
+		}
+		return entity;
+	}
+
+	private void ensureBuilt() {
+		if (idsByKey != null) return;
+		long start = System.currentTimeMillis();
+		idsByKey = sorted ? new TreeMap<K, Set<String>>() : new HashMap<K, Set<String>>();
+		keysById = new HashMap<String, Collection<K>>();
+		for (E entity : dao.getEntities()) {
+			update(entity);
+		}
+		log.debug("Index built:", this, keysById.size(), "entities,", idsByKey.size(), "keys in",
+			(System.currentTimeMillis() - start), "ms");
+	}
+
+	private Collection<K> getIndexableKeys(E entity) {
+		Collection<K> keys = getKeys(entity);
+		if (keys == null || keys.isEmpty()) return Collections.emptyList();
+		List<K> ret = new ArrayList<K>(keys.size());
+		for (K key : keys) {
+			if (key == null && sorted) continue;
+			if (!ret.contains(key)) ret.add(key);
+		}
+		return ret;
+	}
+
+	private static Set<String> copy(Set<String> ids) {
+		if (ids == null) return Collections.emptySet();
+		return new HashSet<String>(ids);
+	}
+
+	@Override
+	public String toString() {
+		return "DaoIndex(" + dao + (sorted ? ", sorted" : "") + ")";
+	}
+
+}
@@ -14,7 +14,6 @@
  */
 package ilarkesto.persistence;
 
-import ilarkesto.core.fp.Predicate;
 import ilarkesto.core.logging.Log;
 import ilarkesto.core.persistance.EntityDoesNotExistException;
 import ilarkesto.core.time.Date;
@@ -78,32 +77,16 @@ public class DaoService implements IdentifiableResolver<AEntity> {
 		return getEntityById(id);
 	}
 
-	public AEntity getEntityById(final String id) {
+	public AEntity getEntityById(String id) {
 		if (id == null) throw new IllegalArgumentException("id == null");
-		AEntity entity = transactionService.getEntity(null, new Predicate<AEntity>() {
-
-			@Override
-			public boolean test(AEntity e) {
-				return id.equals(e.getId());
-			}
-
-		});
-
+		AEntity entity = transactionService.getById(id);
 		if (entity == null) throw new EntityDoesNotExistException(id);
 		return entity;
 	}
 
-	public boolean containsEntityWithId(final String id) {
+	public boolean containsEntityWithId(String id) {
 		if (id == null) throw new IllegalArgumentException("id == null");
-		AEntity entity = transactionService.getEntity(null, new Predicate<AEntity>() {
-
-			@Override
-			public boolean test(AEntity e) {
-				return id.equals(e.getId());
-			}
-
-		});
-		return entity != null;
+		return transactionService.getById(id) != null;
 	}
 
 	@Override
@@ -177,10 +160,13 @@ public class DaoService implements IdentifiableResolver<AEntity> {
 			dao.initialize(context);
 		}
 
+		List<ADao> daosToLoad = new ArrayList<ADao>();
 		for (ADao dao : context.getBeansByType(ADao.class)) {
 			if (dao.getEntityClass() == null) continue;
-			addDao(dao);
+			daos.put(dao.getEntityClass(), dao);
+			daosToLoad.add(dao);
 		}
+		entityStore.load(daosToLoad);
 
 		initialized = true;
 	}
@@ -36,6 +36,11 @@ public class DummyEntityStore implements EntityStore {
 		return Collections.emptyList();
 	}
 
+	@Override
+	public List<AEntity> getByIds(Predicate<Class> typeFilter, Collection<String> ids) {
+		return Collections.emptyList();
+	}
+
 	@Override
 	public void setVersion(long version) {}
 
@@ -45,6 +50,9 @@ public class DummyEntityStore implements EntityStore {
 	@Override
 	public void load(Class<? extends AEntity> cls, String alias, boolean deleteOnFailure) {}
 
+	@Override
+	public void load(Collection<ADao> daos) {}
+
 	@Override
 	public AEntity getEntity(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		return null;
@@ -63,6 +71,18 @@ public class DummyEntityStore implements EntityStore {
 	@Override
 	public void persist(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {}
 
+	@Override
+	public long persistWithoutSync(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+		persist(entitiesToSave, entitiesToDelete);
+		return 0;
+	}
+
+	@Override
+	public void sync(long ticket) {}
+
+	@Override
+	public void flush() {}
+
 	@Override
 	public void lock() {}
 
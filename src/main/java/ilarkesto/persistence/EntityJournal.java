@@ -0,0 +1,347 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of entity changes, split into numbered segment files (<code>journal-&lt;n&gt;.dat</code>).
+ * Each call to <code>append()</code> writes one batch, which is checksummed, so a batch torn by a crash is
+ * ignored on <code>readAll()</code>. Threads calling <code>sync()</code> concurrently share one fsync (group
+ * commit).
+ */
+public class EntityJournal {
+
+	private static final Log log = Log.get(EntityJournal.class);
+
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".dat";
+
+	private File dir;
+
+	private FileOutputStream fileOut;
+	private DataOutputStream out;
+	private int segment;
+
+	private long appendedBatches;
+	private volatile long syncedBatches;
+	private long syncCount;
+
+	private final Object syncLock = new Object();
+
+	public EntityJournal(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Appends the records as one batch. The batch is durable after <code>sync()</code> was called with the
+	 * returned number.
+	 */
+	public synchronized long append(Collection<Record> records) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(buffer);
+		try {
+			data.writeInt(records.size());
+			for (Record record : records) {
+				record.write(data);
+			}
+			data.flush();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		byte[] bytes = buffer.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		if (out == null) openNextSegment();
+		try {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.writeLong(crc.getValue());
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing to entity journal failed: " + getSegmentFile(segment), ex);
+		}
+		return ++appendedBatches;
+	}
+
+	/**
+	 * Blocks until the batch with the given number is on disk. While one thread forces the file, others queue
+	 * up and get covered by the next fsync.
+	 */
+	public void sync(long batch) {
+		if (syncedBatches >= batch) return;
+		synchronized (syncLock) {
+			if (syncedBatches >= batch) return;
+			long target;
+			FileOutputStream syncOut;
+			synchronized (this) {
+				target = appendedBatches;
+				syncOut = fileOut;
+				try {
+					out.flush();
+				} catch (IOException ex) {
+					throw new RuntimeException("Flushing entity journal failed: " + getSegmentFile(segment), ex);
+				}
+			}
+			try {
+				syncOut.getChannel().force(false);
+			} catch (IOException ex) {
+				throw new RuntimeException("Syncing entity journal failed: " + getSegmentFile(segment), ex);
+			}
+			syncedBatches = target;
+			syncCount++;
+		}
+	}
+
+	/**
+	 * Closes the current segment and starts a new one.
+	 *
+	 * @return number of the first segment which is not covered by a compaction started now
+	 */
+	public int rotate() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				closeSegment();
+				openNextSegment();
+				return segment;
+			}
+		}
+	}
+
+	/**
+	 * Deletes all segments before the given one, after their content was written to snapshot files.
+	 */
+	public synchronized void deleteSegmentsBefore(int segment) {
+		for (Integer no : listSegments()) {
+			if (no < segment) IO.delete(getSegmentFile(no));
+		}
+	}
+
+	public void close() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				closeSegment();
+			}
+		}
+	}
+
+	/**
+	 * Reads the records of all segments in the order they were appended. Reading a segment stops at the first
+	 * incomplete or corrupt batch.
+	 */
+	public synchronized List<Record> readAll() {
+		List<Record> ret = new ArrayList<Record>();
+		for (Integer no : listSegments()) {
+			readSegment(getSegmentFile(no), ret);
+		}
+		return ret;
+	}
+
+	public boolean isEmpty() {
+		return listSegments().isEmpty();
+	}
+
+	public long getSyncCount() {
+		synchronized (syncLock) {
+			return syncCount;
+		}
+	}
+
+	public synchronized long getAppendedBatches() {
+		return appendedBatches;
+	}
+
+	private void readSegment(File file, List<Record> records) {
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		int batches = 0;
+		try {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException ex) {
+					break;
+				}
+				if (length < 0) throw new IOException("Negative batch length: " + length);
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				long checksum = in.readLong();
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+				if (crc.getValue() != checksum) throw new IOException("Checksum mismatch");
+
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+				int count = data.readInt();
+				for (int i = 0; i < count; i++) {
+					records.add(Record.read(data));
+				}
+				batches++;
+			}
+		} catch (IOException ex) {
+			log.warn("Entity journal truncated after", batches, "batches:", file, ex);
+		} finally {
+			IO.closeQuiet(in);
+		}
+	}
+
+	private void openNextSegment() {
+		List<Integer> segments = listSegments();
+		segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+		File file = getSegmentFile(segment);
+		IO.createDirectory(dir);
+		try {
+			fileOut = new FileOutputStream(file, true);
+		} catch (IOException ex) {
+			throw new RuntimeException("Opening entity journal failed: " + file, ex);
+		}
+		out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+		log.debug("Entity journal segment opened:", file);
+	}
+
+	private void closeSegment() {
+		if (out == null) return;
+		try {
+			out.flush();
+			fileOut.getChannel().force(false);
+		} catch (IOException ex) {
+			throw new RuntimeException("Syncing entity journal failed: " + getSegmentFile(segment), ex);
+		} finally {
+			IO.close(out);
+			out = null;
+			fileOut = null;
+		}
+		syncedBatches = appendedBatches;
+	}
+
+	private List<Integer> listSegments() {
+		List<Integer> ret = new ArrayList<Integer>();
+		File[] files = dir.listFiles();
+		if (files == null) return ret;
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+			try {
+				ret.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+			} catch (NumberFormatException ex) {
+				log.warn("Unsupported file in journal directory. Skipping:", file);
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private File getSegmentFile(int no) {
+		return new File(dir.getPath() + "/" + PREFIX + no + SUFFIX);
+	}
+
+	@Override
+	public String toString() {
+		return "EntityJournal(" + dir.getPath() + ")";
+	}
+
+	public static class Record {
+
+		private static final byte SAVE = 'S';
+		private static final byte DELETE = 'D';
+
+		private byte operation;
+		private String alias;
+		private String id;
+		private byte[] data;
+
+		private Record(byte operation, String alias, String id, byte[] data) {
+			this.operation = operation;
+			this.alias = alias;
+			this.id = id;
+			this.data = data;
+		}
+
+		public static Record save(String alias, String id, byte[] data) {
+			return new Record(SAVE, alias, id, data);
+		}
+
+		public static Record delete(String alias, String id) {
+			return new Record(DELETE, alias, id, null);
+		}
+
+		public boolean isDelete() {
+			return operation == DELETE;
+		}
+
+		public String getAlias() {
+			return alias;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeByte(operation);
+			out.writeUTF(alias);
+			out.writeUTF(id);
+			if (operation == SAVE) {
+				out.writeInt(data.length);
+				out.write(data);
+			}
+		}
+
+		private static Record read(DataInputStream in) throws IOException {
+			byte operation = in.readByte();
+			String alias = in.readUTF();
+			String id = in.readUTF();
+			byte[] data = null;
+			if (operation == SAVE) {
+				data = new byte[in.readInt()];
+				in.readFully(data);
+			} else if (operation != DELETE) { throw new IOException("Unknown journal operation: " + operation); }
+			return new Record(operation, alias, id, data);
+		}
+
+		@Override
+		public String toString() {
+			return (isDelete() ? "DELETE " : "SAVE ") + alias + ":" + id;
+		}
+
+	}
+
+}
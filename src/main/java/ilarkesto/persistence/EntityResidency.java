@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.base.Bytes;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks which entities of a <code>FileEntityStore</code> are in memory, least recently used first, and their
+ * estimated size. The size of an entity is estimated by the size of its file. When the budget is exceeded,
+ * the least recently used entities are selected for eviction until 90% of the budget are left.
+ */
+public class EntityResidency {
+
+	private final long budget;
+
+	private final LinkedHashMap<String, Integer> sizesById = new LinkedHashMap<String, Integer>(1024, 0.75f, true);
+	private long residentBytes;
+
+	private long evictionCount;
+	private long reloadCount;
+	private long skippedCount;
+
+	public EntityResidency(long budget) {
+		this.budget = budget;
+	}
+
+	synchronized void add(String id, int size) {
+		Integer previous = sizesById.put(id, size);
+		if (previous != null) residentBytes -= previous;
+		residentBytes += size;
+	}
+
+	synchronized void touch(String id) {
+		sizesById.get(id);
+	}
+
+	synchronized void remove(String id) {
+		Integer size = sizesById.remove(id);
+		if (size != null) residentBytes -= size;
+	}
+
+	synchronized void onReloaded() {
+		reloadCount++;
+	}
+
+	synchronized boolean isOverBudget() {
+		return residentBytes > budget;
+	}
+
+	/**
+	 * Removes the least recently used entities, which the filter accepts, until 90% of the budget are left.
+	 * Entities rejected by the filter are marked as used, so they are not checked again on the next run.
+	 *
+	 * @return ids of the removed entities
+	 */
+	synchronized List<String> evict(EvictionFilter filter) {
+		List<String> ret = new ArrayList<String>();
+		if (residentBytes <= budget) return ret;
+		long target = budget / 10 * 9;
+		List<String> rejected = new ArrayList<String>();
+		Iterator<Map.Entry<String, Integer>> iterator = sizesById.entrySet().iterator();
+		while (residentBytes > target && iterator.hasNext()) {
+			Map.Entry<String, Integer> entry = iterator.next();
+			String id = entry.getKey();
+			if (!filter.isEvictable(id)) {
+				rejected.add(id);
+				continue;
+			}
+			residentBytes -= entry.getValue();
+			iterator.remove();
+			ret.add(id);
+		}
+		for (String id : rejected) {
+			sizesById.get(id);
+		}
+		evictionCount += ret.size();
+		skippedCount += rejected.size();
+		return ret;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public synchronized int getResidentCount() {
+		return sizesById.size();
+	}
+
+	/**
+	 * Estimated heap use of the resident entities.
+	 */
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public synchronized long getReloadCount() {
+		return reloadCount;
+	}
+
+	/**
+	 * Number of times an entity could not be evicted, because it has no current entity file.
+	 */
+	public synchronized long getSkippedCount() {
+		return skippedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		Runtime runtime = Runtime.getRuntime();
+		return sizesById.size() + " entities resident (" + new Bytes(residentBytes).toRoundedString() + " of "
+				+ new Bytes(budget).toRoundedString() + "), " + evictionCount + " evicted, " + reloadCount
+				+ " reloaded, heap used: " + new Bytes(runtime.totalMemory() - runtime.freeMemory()).toRoundedString();
+	}
+
+	static interface EvictionFilter {
+
+		boolean isEvictable(String id);
+
+	}
+
+}
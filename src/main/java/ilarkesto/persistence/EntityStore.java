@@ -18,6 +18,7 @@ import ilarkesto.core.fp.Predicate;
 import ilarkesto.id.IdentifiableResolver;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 public interface EntityStore extends IdentifiableResolver<AEntity> {
@@ -28,14 +29,35 @@ public interface EntityStore extends IdentifiableResolver<AEntity> {
 
 	void load(Class<? extends AEntity> cls, String alias, boolean deleteOnFailure);
 
+	void load(Collection<ADao> daos);
+
 	AEntity getEntity(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter);
 
 	int getEntitiesCount(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter);
 
 	Set<AEntity> getEntities(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter);
 
+	List<AEntity> getByIds(Predicate<Class> typeFilter, Collection<String> ids);
+
 	void persist(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete);
 
+	/**
+	 * Persists the changes like <code>persist()</code>, but may return before they are durable. The returned
+	 * ticket has to be passed to <code>sync()</code>.
+	 */
+	long persistWithoutSync(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete);
+
+	/**
+	 * Blocks until the changes persisted with the given ticket are durable. Called outside of the caller's
+	 * locks, so that concurrent committers can share one fsync.
+	 */
+	void sync(long ticket);
+
+	/**
+	 * Blocks until all persisted changes are written, for stores which write asynchronously.
+	 */
+	void flush();
+
 	void lock();
 
 	void deleteOldBackups();
@@ -14,6 +14,8 @@
  */
 package ilarkesto.persistence;
 
+import ilarkesto.core.base.PersistentHashMap;
+import ilarkesto.core.base.RuntimeTracker;
 import ilarkesto.core.base.Str;
 import ilarkesto.core.fp.Predicate;
 import ilarkesto.core.logging.Log;
@@ -22,19 +24,28 @@ import ilarkesto.io.IO;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class FileEntityStore implements EntityStore {
 
@@ -42,6 +53,11 @@ public class FileEntityStore implements EntityStore {
 
 	public static String CLUSTER_FILE_NAME = "cluster.xml";
 
+	private static final String CLUSTER_PREFIX = "cluster-";
+	private static final String TOMBSTONE_SUFFIX = ".deleted";
+	private static final int MAX_CLUSTER_GENERATIONS = 8;
+	private static final int DEFAULT_ENTITY_SIZE = 1024;
+
 	private boolean versionSaved;
 	private boolean versionChecked;
 	private boolean locked;
@@ -79,17 +95,182 @@ public class FileEntityStore implements EntityStore {
 		this.backupDir = backupDir;
 	}
 
+	private int loadParallelism = 1;
+
+	/**
+	 * Number of threads used to deserialize entity files on startup. Values greater then <code>1</code> load
+	 * files of all types in parallel.
+	 */
+	public void setLoadParallelism(int loadParallelism) {
+		this.loadParallelism = loadParallelism;
+	}
+
+	private boolean journaling;
+
+	/**
+	 * Persist changes by appending them to a journal instead of writing one file per entity. The entity files
+	 * are written by <code>compactJournal()</code>.
+	 */
+	public void setJournaling(boolean journaling) {
+		this.journaling = journaling;
+	}
+
+	private long writeBehindDelay;
+	private WriteBehindQueue writeBehindQueue;
+
+	/**
+	 * Write changes asynchronously, at most <code>delay</code> milliseconds after they were committed. An
+	 * entity saved repeatedly within that time is written once. Committed changes are visible to readers
+	 * at once, but are lost on a crash until written. <code>flush()</code> waits for pending writes.
+	 */
+	public void setWriteBehindDelay(long delay) {
+		this.writeBehindDelay = delay;
+	}
+
+	private EntityResidency residency;
+
+	/**
+	 * Keep only about <code>budget</code> bytes of entities in memory, estimated by the size of their files.
+	 * Least recently used entities are evicted and read from their file again when requested. Entities
+	 * without a current entity file (loaded from a cluster, not yet written from the journal or write-behind
+	 * queue) stay in memory, so a warning is logged when the budget can not be met. Must be set before loading.
+	 * <p>
+	 * Evicted entities are only weakly referenced by the store. As long as a caller or an open transaction
+	 * still holds one, reading it again returns the same instance, so there is never a second instance of an
+	 * entity. Scans of all entities read evicted ones without making them resident again.
+	 */
+	public void setResidencyBudget(long budget) {
+		this.residency = budget > 0 ? new EntityResidency(budget) : null;
+	}
+
+	/**
+	 * Statistics of resident entities, evictions and reloads. <code>null</code> when all entities are kept in
+	 * memory.
+	 */
+	public EntityResidency getResidency() {
+		return residency;
+	}
+
 	// --- ---
 
 	@Override
-	public synchronized void lock() {
-		if (locked) return;
-		locked = true;
-		log.info("File entity store locked.");
+	public void lock() {
+		WriteBehindQueue queue;
+		synchronized (this) {
+			queue = writeBehindQueue;
+		}
+		if (queue != null) queue.close();
+		synchronized (this) {
+			if (locked) return;
+			locked = true;
+			if (journal != null) journal.close();
+			log.info("File entity store locked.");
+		}
+	}
+
+	/**
+	 * Writes all committed changes, which are still queued, in the calling thread. Required before backing up
+	 * the entity files, when writing behind. Can be called inside the store lock, so that no commit happens
+	 * between flushing and backing up.
+	 */
+	@Override
+	public synchronized void flush() {
+		if (writeBehindQueue != null) writeBehindQueue.writePending();
 	}
 
 	@Override
-	public synchronized void persist(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+	public void persist(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+		sync(persistWithoutSync(entitiesToSave, entitiesToDelete));
+	}
+
+	/**
+	 * When journaling, the returned ticket is the number of the journal batch, which is synced by
+	 * <code>sync()</code>. Otherwise the changes are durable at once (or written behind) and the ticket is
+	 * <code>0</code>.
+	 */
+	@Override
+	public long persistWithoutSync(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+		if (writeBehindDelay > 0) {
+			WriteBehindQueue queue;
+			synchronized (this) {
+				if (locked) throw new RuntimeException("Can not persist entity changes. EntityStore already locked.");
+				queue = getWriteBehindQueue();
+				// inside the lock, so that the queue gets the changes in commit order. before publishing, so
+				// that pending entities are not evicted
+				queue.add(entitiesToSave, entitiesToDelete);
+				publish(entitiesToSave, entitiesToDelete);
+			}
+			return 0;
+		}
+		return write(entitiesToSave, entitiesToDelete, true);
+	}
+
+	@Override
+	public void sync(long ticket) {
+		if (ticket <= 0) return;
+		getJournal().sync(ticket);
+	}
+
+	private long write(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete, boolean publish) {
+		if (journaling) return persistToJournal(entitiesToSave, entitiesToDelete, publish);
+		persistToFiles(entitiesToSave, entitiesToDelete, publish);
+		return 0;
+	}
+
+	synchronized WriteBehindQueue getWriteBehindQueue() {
+		if (writeBehindQueue == null) {
+			writeBehindQueue = new WriteBehindQueue("FileEntityStore", writeBehindDelay, this,
+					new WriteBehindQueue.Writer() {
+
+				@Override
+				public void write(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+					// already published on commit. publishing again could replace newer entities
+					sync(FileEntityStore.this.write(entitiesToSave, entitiesToDelete, false));
+				}
+			});
+		}
+		return writeBehindQueue;
+	}
+
+	/**
+	 * Appends the changes to the journal and returns the batch number, without waiting for the fsync.
+	 */
+	private long persistToJournal(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete,
+			boolean publish) {
+		long batch;
+		List<EntityJournal.Record> records = new ArrayList<EntityJournal.Record>(entitiesToSave.size()
+				+ entitiesToDelete.size());
+		synchronized (this) {
+			if (locked) throw new RuntimeException("Can not persist entity changes. EntityStore already locked.");
+
+			if (!versionSaved) saveVersion();
+
+			for (AEntity entity : entitiesToSave) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				beanSerializer.serialize(entity, out);
+				if (out.size() < 1) throw new RuntimeException("Serializing entity caused empty data: " + entity);
+				records.add(EntityJournal.Record.save(entity.getDao().getEntityName(), entity.getId(),
+					out.toByteArray()));
+			}
+			for (AEntity entity : entitiesToDelete) {
+				records.add(EntityJournal.Record.delete(entity.getDao().getEntityName(), entity.getId()));
+			}
+
+			batch = getJournal().append(records);
+
+			// before publishing, so that journaled entities are not evicted
+			for (EntityJournal.Record record : records) {
+				journaledAliasesById.put(record.getId(), record.getAlias());
+			}
+			if (publish) publish(entitiesToSave, entitiesToDelete);
+		}
+
+		log.debug("Entity changes journaled.", records);
+		return batch;
+	}
+
+	private synchronized void persistToFiles(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete,
+			boolean publish) {
 		if (locked) throw new RuntimeException("Can not persist entity changes. EntityStore already locked.");
 
 		if (!versionSaved) saveVersion();
@@ -113,6 +294,7 @@ public class FileEntityStore implements EntityStore {
 		for (Operation operation : operations) {
 			operation.complete();
 		}
+		if (publish) publish(entitiesToSave, entitiesToDelete);
 
 		StringBuilder sb = new StringBuilder();
 		for (Operation operation : operations) {
@@ -127,13 +309,257 @@ public class FileEntityStore implements EntityStore {
 		return dao;
 	}
 
+	/**
+	 * Publishes the changes of a transaction as a new snapshot, which readers see at once or not at all. Only
+	 * the containers of types whose set of entities changes are replaced, by copies which share all unchanged
+	 * nodes. So a commit costs <code>O(log n)</code> per created or deleted entity, and saving modified
+	 * entities copies nothing. Writers hold the store lock.
+	 */
+	private void publish(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+		Map<Class<AEntity>, PersistentHashMap<String, AEntity>> changed = createChangedDaos();
+		for (AEntity entity : entitiesToSave) {
+			Class<AEntity> type = (Class<AEntity>) entity.getClass();
+			String id = entity.getId();
+			if (residency != null) residency.add(id, estimateSize(entity));
+			PersistentHashMap<String, AEntity> entities = getChangedDao(changed, type);
+			if (entities.get(id) == entity) continue;
+			typesById.put(id, type);
+			changed.put(type, entities.plus(id, entity));
+		}
+		List<String> deletedIds = new ArrayList<String>(entitiesToDelete.size());
+		for (AEntity entity : entitiesToDelete) {
+			Class<AEntity> type = (Class<AEntity>) entity.getClass();
+			String id = entity.getId();
+			PersistentHashMap<String, AEntity> entities = getChangedDao(changed, type);
+			if (!entities.containsKey(id) && !getColdIds(type).contains(id)) continue;
+			changed.put(type, entities.minus(id));
+			deletedIds.add(id);
+		}
+		if (!changed.isEmpty()) {
+			commitCount++;
+			replaceContainers(changed);
+		}
+		if (residency != null) {
+			for (AEntity entity : entitiesToSave) {
+				getColdIds((Class<AEntity>) entity.getClass()).remove(entity.getId());
+				evictedById.remove(entity.getId());
+			}
+			for (AEntity entity : entitiesToDelete) {
+				getColdIds((Class<AEntity>) entity.getClass()).remove(entity.getId());
+				evictedById.remove(entity.getId());
+				residency.remove(entity.getId());
+			}
+			evict();
+		}
+		for (String id : deletedIds) {
+			typesById.remove(id);
+		}
+	}
+
+	private int estimateSize(AEntity entity) {
+		File file = getEntityFile(entity.getDao().getEntityName(), entity.getId());
+		long size = file.length();
+		return size > 0 ? (int) size : DEFAULT_ENTITY_SIZE;
+	}
+
+	private static Map<Class<AEntity>, PersistentHashMap<String, AEntity>> createChangedDaos() {
+		return new HashMap<Class<AEntity>, PersistentHashMap<String, AEntity>>();
+	}
+
+	private PersistentHashMap<String, AEntity> getChangedDao(
+			Map<Class<AEntity>, PersistentHashMap<String, AEntity>> changed, Class<AEntity> type) {
+		PersistentHashMap<String, AEntity> dao = changed.get(type);
+		if (dao == null) dao = PersistentHashMap.copyOf(getDao(type));
+		return dao;
+	}
+
+	/**
+	 * Publishes a new snapshot with the given containers. Called inside the store lock.
+	 */
+	private void replaceContainers(Map<Class<AEntity>, ? extends Map<String, AEntity>> containers) {
+		Map<Class<AEntity>, Map<String, AEntity>> snapshot = new HashMap<Class<AEntity>, Map<String, AEntity>>(data);
+		snapshot.putAll(containers);
+		data = Collections.unmodifiableMap(snapshot);
+	}
+
+	private synchronized void register(Class<AEntity> type, Map<String, AEntity> container) {
+		replaceContainers(Collections.singletonMap(type, container));
+	}
+
 	@Override
 	public AEntity getById(String id) {
-		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> daoEntry : data.entrySet()) {
-			AEntity entity = daoEntry.getValue().get(id);
+		Class<AEntity> type = typesById.get(id);
+		if (type == null) return null;
+		Map<String, AEntity> entities = data.get(type);
+		if (entities == null) return null;
+		AEntity entity = entities.get(id);
+		if (residency == null) return entity;
+		if (entity != null) {
+			residency.touch(id);
+			return entity;
+		}
+		return reload(type, id, true);
+	}
+
+	/**
+	 * Makes an evicted entity resident again. The evicted instance is taken, when it is still referenced,
+	 * otherwise the entity is read from its file. The file is read outside of the store lock, so that cold
+	 * reads don't wait for each other. When a transaction was committed meanwhile, the file is read again
+	 * inside the lock, so that a concurrent commit can not be overwritten with the older file content.
+	 */
+	private AEntity reload(Class<AEntity> type, String id, boolean evict) {
+		long commit = commitCount;
+		Set<String> coldIds = coldIdsByType.get(type);
+		if (coldIds == null || !coldIds.contains(id)) return getDao(type).get(id);
+
+		File file = getEntityFile(aliases.get(type), id);
+		AEntity loaded = getEvictedInstance(id);
+		if (loaded == null) loaded = readEntityFileQuiet(file);
+
+		synchronized (this) {
+			AEntity entity = getDao(type).get(id);
 			if (entity != null) return entity;
+			if (!coldIds.contains(id)) return null;
+			AEntity instance = getEvictedInstance(id);
+			if (instance != null) {
+				loaded = instance;
+			} else if (loaded == null || commit != commitCount) {
+				loaded = readEntityFile(file);
+			}
+			replaceContainers(Collections.singletonMap(type, PersistentHashMap.copyOf(getDao(type)).plus(id, loaded)));
+			coldIds.remove(id);
+			evictedById.remove(id);
+			residency.add(id, estimateSize(loaded));
+			residency.onReloaded();
+			if (evict) evict();
+			return loaded;
+		}
+	}
+
+	/**
+	 * Reads an evicted entity for a scan, without making it resident again. The instance is remembered as
+	 * evicted, so that later reads return the same instance while it is referenced.
+	 */
+	private AEntity readEvicted(Class<AEntity> type, String id) {
+		AEntity instance = getEvictedInstance(id);
+		if (instance != null) return instance;
+		long commit = commitCount;
+		File file = getEntityFile(aliases.get(type), id);
+		AEntity loaded = readEntityFileQuiet(file);
+
+		synchronized (this) {
+			AEntity entity = getDao(type).get(id);
+			if (entity != null) return entity;
+			if (!getColdIds(type).contains(id)) return null;
+			instance = getEvictedInstance(id);
+			if (instance != null) return instance;
+			if (loaded == null || commit != commitCount) loaded = readEntityFile(file);
+			addEvictedInstance(id, loaded);
+			return loaded;
 		}
-		return null;
+	}
+
+	/**
+	 * @return <code>null</code> when reading failed, because the file was deleted or packed meanwhile
+	 */
+	private AEntity readEntityFileQuiet(File file) {
+		try {
+			return readEntityFile(file);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	private AEntity getEvictedInstance(String id) {
+		EvictedEntity evicted = evictedById.get(id);
+		return evicted == null ? null : evicted.get();
+	}
+
+	private void addEvictedInstance(String id, AEntity entity) {
+		evictedById.put(id, new EvictedEntity(id, entity, evictedQueue));
+	}
+
+	/**
+	 * Moves the least recently used entities out of memory, when the residency budget is exceeded. Called
+	 * inside the store lock. Evictions are published as a new snapshot. Entities of types which are still
+	 * being loaded are not evicted.
+	 */
+	private void evict() {
+		if (!residency.isOverBudget()) {
+			overBudgetWarned = false;
+			return;
+		}
+		// forget collected evicted entities
+		Reference<? extends AEntity> collected;
+		while ((collected = evictedQueue.poll()) != null) {
+			EvictedEntity evicted = (EvictedEntity) collected;
+			evictedById.remove(evicted.id, evicted);
+		}
+		List<String> ids = residency.evict(new EntityResidency.EvictionFilter() {
+
+			@Override
+			public boolean isEvictable(String id) {
+				Class<AEntity> type = typesById.get(id);
+				if (type == null) return false;
+				if (!(data.get(type) instanceof PersistentHashMap)) return false;
+				if (journaledAliasesById.containsKey(id)) return false;
+				if (writeBehindQueue != null && writeBehindQueue.isPending(id)) return false;
+				return getEntityFile(aliases.get(type), id).exists();
+			}
+		});
+		if (!ids.isEmpty()) {
+			Map<Class<AEntity>, PersistentHashMap<String, AEntity>> changed = createChangedDaos();
+			for (String id : ids) {
+				Class<AEntity> type = typesById.get(id);
+				// cold before removed from the snapshot, so that readers always find the entity
+				addEvictedInstance(id, getDao(type).get(id));
+				getColdIds(type).add(id);
+				changed.put(type, getChangedDao(changed, type).minus(id));
+			}
+			replaceContainers(changed);
+			log.debug("Entities evicted:", ids.size(), residency);
+		}
+		if (residency.isOverBudget() && !overBudgetWarned) {
+			log.warn("Residency budget exceeded. Remaining entities have no current entity file (clustered or not",
+				"written yet):", residency);
+			overBudgetWarned = true;
+		}
+	}
+
+	private synchronized void evictIfOverBudget() {
+		evict();
+	}
+
+	private Set<String> getColdIds(Class<AEntity> type) {
+		Set<String> ids = coldIdsByType.get(type);
+		if (ids == null) {
+			ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			Set<String> existing = coldIdsByType.putIfAbsent(type, ids);
+			if (existing != null) ids = existing;
+		}
+		return ids;
+	}
+
+	private int getColdCount(Class<AEntity> type) {
+		Set<String> ids = coldIdsByType.get(type);
+		return ids == null ? 0 : ids.size();
+	}
+
+	/**
+	 * All entities of a type. Evicted ones are read without making them resident again.
+	 */
+	private Collection<AEntity> getAllEntities(Class<AEntity> type, Map<String, AEntity> entities) {
+		Set<String> coldIds = coldIdsByType.get(type);
+		if (coldIds == null || coldIds.isEmpty()) return entities.values();
+		List<AEntity> ret = new ArrayList<AEntity>(entities.size() + coldIds.size());
+		ret.addAll(entities.values());
+		for (String id : new ArrayList<String>(coldIds)) {
+			// evicted after the snapshot was taken
+			if (entities.containsKey(id)) continue;
+			AEntity entity = readEvicted(type, id);
+			if (entity != null) ret.add(entity);
+		}
+		return ret;
 	}
 
 	@Override
@@ -144,18 +570,34 @@ public class FileEntityStore implements EntityStore {
 				if (entityFilter.test(entity)) return entity;
 			}
 		}
+		if (residency == null) return null;
+		// resident entities first, evicted ones are rarely used
+		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> daoEntry : data.entrySet()) {
+			Class<AEntity> type = daoEntry.getKey();
+			if (typeFilter != null && !typeFilter.test(type)) continue;
+			Set<String> coldIds = coldIdsByType.get(type);
+			if (coldIds == null) continue;
+			for (String id : new ArrayList<String>(coldIds)) {
+				AEntity entity = readEvicted(type, id);
+				if (entity != null && entityFilter.test(entity)) return entity;
+			}
+		}
 		return null;
 	}
 
 	@Override
 	public List<AEntity> getByIds(Collection<String> ids) {
+		return getByIds(null, ids);
+	}
+
+	@Override
+	public List<AEntity> getByIds(Predicate<Class> typeFilter, Collection<String> ids) {
 		List<AEntity> result = new ArrayList<AEntity>(ids.size());
-		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> entry : data.entrySet()) {
-			Map<String, AEntity> entites = entry.getValue();
-			for (String id : ids) {
-				AEntity entity = entites.get(id);
-				if (entity != null) result.add(entity);
-			}
+		for (String id : ids) {
+			AEntity entity = getById(id);
+			if (entity == null) continue;
+			if (typeFilter != null && !typeFilter.test(entity.getClass())) continue;
+			result.add(entity);
 		}
 		return result;
 	}
@@ -165,10 +607,11 @@ public class FileEntityStore implements EntityStore {
 		Set<AEntity> result = new HashSet<AEntity>();
 		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> entry : data.entrySet()) {
 			if (typeFilter != null && !typeFilter.test(entry.getKey())) continue;
+			Collection<AEntity> entities = getAllEntities(entry.getKey(), entry.getValue());
 			if (entityFilter == null) {
-				result.addAll(entry.getValue().values());
+				result.addAll(entities);
 			} else {
-				for (AEntity entity : entry.getValue().values()) {
+				for (AEntity entity : entities) {
 					if (entityFilter.test(entity)) result.add(entity);
 				}
 			}
@@ -182,9 +625,9 @@ public class FileEntityStore implements EntityStore {
 		for (Map.Entry<Class<AEntity>, Map<String, AEntity>> entry : data.entrySet()) {
 			if (typeFilter != null && !typeFilter.test(entry.getKey())) continue;
 			if (entityFilter == null) {
-				result += entry.getValue().size();
+				result += entry.getValue().size() + getColdCount(entry.getKey());
 			} else {
-				for (AEntity entity : entry.getValue().values()) {
+				for (AEntity entity : getAllEntities(entry.getKey(), entry.getValue())) {
 					if (entityFilter.test(entity)) result++;
 				}
 			}
@@ -192,9 +635,60 @@ public class FileEntityStore implements EntityStore {
 		return result;
 	}
 
-	private Map<Class, String> aliases = new HashMap<Class, String>();
-
-	private Map<Class<AEntity>, Map<String, AEntity>> data = new HashMap<Class<AEntity>, Map<String, AEntity>>();
+	private Map<Class, String> aliases = new ConcurrentHashMap<Class, String>();
+
+	/**
+	 * Snapshot of all entities by type. Replaced as a whole by <code>publish()</code>, evictions and reloads,
+	 * never modified after publication, so readers don't need locks. The containers are
+	 * <code>PersistentHashMap</code>s. Only containers of types being loaded are filled in place.
+	 */
+	private volatile Map<Class<AEntity>, Map<String, AEntity>> data = Collections.emptyMap();
+
+	/**
+	 * Number of published transactions. Tells cold reads, whether a commit happened while they read a file.
+	 */
+	private volatile long commitCount;
+
+	/**
+	 * Types of all entities by id, so that lookups by id don't have to ask every type. Added before and
+	 * removed after a snapshot is published.
+	 */
+	private Map<String, Class<AEntity>> typesById = new ConcurrentHashMap<String, Class<AEntity>>();
+
+	/**
+	 * Ids of evicted entities by type, when a residency budget is set. Evicted entities are still listed in
+	 * <code>typesById</code>, but not in the snapshot.
+	 */
+	private ConcurrentHashMap<Class<AEntity>, Set<String>> coldIdsByType = new ConcurrentHashMap<Class<AEntity>, Set<String>>();
+
+	/**
+	 * Evicted entities by id, weakly referenced. Reads return these instances while they are referenced
+	 * elsewhere, so that callers and open transactions never see two instances of an entity.
+	 */
+	private ConcurrentHashMap<String, EvictedEntity> evictedById = new ConcurrentHashMap<String, EvictedEntity>();
+	private ReferenceQueue<AEntity> evictedQueue = new ReferenceQueue<AEntity>();
+	private boolean overBudgetWarned;
+
+	private EntityJournal journal;
+	private Map<String, List<EntityJournal.Record>> journalRecordsByAlias;
+
+	/**
+	 * Aliases of all entities which changed in the journal since the last compaction, by id.
+	 */
+	private Map<String, String> journaledAliasesById = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Types which have cluster files. Deleting an entity of such a type leaves a tombstone file.
+	 */
+	private Set<String> clusteredAliases = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Ids of entities whose files were written while their type is packed into a cluster, by alias. Their
+	 * files are newer then the cluster and must not be deleted. Written inside the store lock.
+	 */
+	private Map<String, Set<String>> writtenWhilePackingByAlias = new ConcurrentHashMap<String, Set<String>>();
+
+	private final Object compactionLock = new Object();
 
 	@Override
 	public void setAlias(String alias, Class cls) {
@@ -205,51 +699,181 @@ public class FileEntityStore implements EntityStore {
 	@Override
 	public void load(Class<? extends AEntity> cls, String alias, boolean deleteOnFailure) {
 		if (!versionChecked) checkVersion();
+		LoadTypeTask task = new LoadTypeTask(cls, alias, deleteOnFailure);
+		if (loadParallelism <= 1) {
+			task.compute();
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(loadParallelism);
+		try {
+			pool.invoke(task);
+		} finally {
+			pool.shutdown();
+		}
+	}
 
-		aliases.put(cls, alias);
-
-		Map<String, AEntity> entities = new HashMap<String, AEntity>();
-		data.put((Class<AEntity>) cls, entities);
+	@Override
+	public void load(Collection<ADao> daos) {
+		if (loadParallelism <= 1) {
+			for (ADao dao : daos) {
+				load(dao.getEntityClass(), dao.getEntityName(), dao.isSkipLoadingEntityOnFailure());
+			}
+			return;
+		}
 
-		beanSerializer.setAlias(alias, cls);
+		if (!versionChecked) checkVersion();
+		final List<LoadTypeTask> tasks = new ArrayList<LoadTypeTask>(daos.size());
+		for (ADao dao : daos) {
+			tasks.add(new LoadTypeTask(dao.getEntityClass(), dao.getEntityName(), dao.isSkipLoadingEntityOnFailure()));
+		}
+		log.info("Loading entities of", tasks.size(), "types with parallelism", loadParallelism);
+		RuntimeTracker rt = new RuntimeTracker();
+		ForkJoinPool pool = new ForkJoinPool(loadParallelism);
+		try {
+			pool.invoke(new RecursiveAction() {
 
-		File entitiesDir = new File(dir + "/" + alias);
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+		log.info(typesById.size(), "entities loaded in", rt.getRuntimeFormated());
+	}
 
-		File clusterFile = new File(dir + "/" + CLUSTER_FILE_NAME);
-		if (clusterFile.exists()) {
-			loadCluster(clusterFile, entities, cls, alias);
+	/**
+	 * Loads all entities of one type. Registers the alias and the (empty) container when created, so that
+	 * only deserialization happens inside the fork-join pool.
+	 */
+	class LoadTypeTask extends RecursiveAction {
+
+		private Class<? extends AEntity> cls;
+		private String alias;
+		private boolean deleteOnFailure;
+		private Map<String, AEntity> entities = new ConcurrentHashMap<String, AEntity>();
+
+		public LoadTypeTask(Class<? extends AEntity> cls, String alias, boolean deleteOnFailure) {
+			this.cls = cls;
+			this.alias = alias;
+			this.deleteOnFailure = deleteOnFailure;
+
+			aliases.put(cls, alias);
+			register((Class<AEntity>) cls, entities);
+			beanSerializer.setAlias(alias, cls);
 		}
 
-		File[] files = entitiesDir.listFiles();
-		int count = files == null ? 0 : files.length;
-		log.info("Loading", count, "entitiy files:", alias);
-		if (count > 0) {
-			for (int i = 0; i < files.length; i++) {
-				File file = files[i];
-				String filename = file.getName();
-
-				if (filename.equals(CLUSTER_FILE_NAME)) continue;
-				if (!filename.endsWith(".xml")) {
-					log.warn("Unsupported file. Skipping:", filename);
-					continue;
+		@Override
+		protected void compute() {
+			RuntimeTracker rt = new RuntimeTracker();
+
+			File clusterFile = new File(dir + "/" + CLUSTER_FILE_NAME);
+			if (clusterFile.exists()) {
+				loadCluster(clusterFile, entities, cls, alias);
+			}
+
+			List<Integer> generations = listClusterGenerations(alias);
+			if (!generations.isEmpty()) clusteredAliases.add(alias);
+			for (Integer generation : generations) {
+				loadCluster(getClusterFile(alias, generation), entities, cls, alias);
+				for (String id : readTombstones(alias, generation)) {
+					remove(entities, id);
 				}
+			}
 
-				try {
-					loadObject(file, entities, cls, alias);
-				} catch (Exception ex) {
-					if (!deleteOnFailure) throw new RuntimeException("Loading object from " + file + " failed", ex);
-					log.warn("Loading object from file failed:", file, ex);
-					if (true) { // delete
-						backup(file, alias);
-						file.delete();
-					}
+			File entitiesDir = new File(dir + "/" + alias);
+			File[] files = entitiesDir.listFiles();
+			int count = files == null ? 0 : files.length;
+			log.info("Loading", count, "entitiy files:", alias);
+			if (count > 0) {
+				if (inForkJoinPool()) {
+					new LoadFilesTask(this, files, 0, files.length).invoke();
+				} else {
+					loadFiles(files, 0, files.length);
+				}
+			}
+
+			if (journaling) replayJournal(entities, cls, alias, deleteOnFailure);
+
+			log.info("   ", alias, entities.size(), "entities loaded in", rt.getRuntimeFormated());
+			// from now on changed by publishing copies
+			register((Class<AEntity>) cls, PersistentHashMap.copyOf(entities));
+			if (residency != null) evictIfOverBudget();
+		}
+
+		private void loadFiles(File[] files, int from, int to) {
+			for (int i = from; i < to; i++) {
+				loadFile(files[i]);
+			}
+		}
+
+		private void loadFile(File file) {
+			String filename = file.getName();
+
+			if (isClusterFile(filename)) return;
+			if (filename.endsWith(TOMBSTONE_SUFFIX)) {
+				remove(entities, Str.removeSuffix(filename, TOMBSTONE_SUFFIX));
+				return;
+			}
+			if (!filename.endsWith(".xml")) {
+				log.warn("Unsupported file. Skipping:", filename);
+				return;
+			}
+
+			try {
+				loadObject(file, entities, cls, alias);
+			} catch (Exception ex) {
+				if (!deleteOnFailure) throw new RuntimeException("Loading object from " + file + " failed", ex);
+				log.warn("Loading object from file failed:", file, ex);
+				if (true) { // delete
+					backup(file, alias);
+					file.delete();
 				}
 			}
 		}
+
+	}
+
+	/**
+	 * Splits a range of entity files until it is small enough to be deserialized by one worker.
+	 */
+	static class LoadFilesTask extends RecursiveAction {
+
+		private static final int THRESHOLD = 64;
+
+		private LoadTypeTask typeTask;
+		private File[] files;
+		private int from;
+		private int to;
+
+		public LoadFilesTask(LoadTypeTask typeTask, File[] files, int from, int to) {
+			this.typeTask = typeTask;
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				typeTask.loadFiles(files, from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new LoadFilesTask(typeTask, files, from, middle), new LoadFilesTask(typeTask, files, middle, to));
+		}
+
 	}
 
 	private void loadCluster(File file, Map<String, AEntity> container, Class type, String alias) {
-		if (entityfilePreparator != null) entityfilePreparator.prepareClusterfile(file, type, alias);
+		for (AEntity entity : readCluster(file, type, alias)) {
+			put(container, type, entity);
+		}
+	}
+
+	private void loadObject(File file, Map<String, AEntity> container, Class type, String alias) {
+		if (entityfilePreparator != null) entityfilePreparator.prepareEntityfile(file, type, alias);
 
 		BufferedInputStream in;
 		try {
@@ -257,35 +881,351 @@ public class FileEntityStore implements EntityStore {
 		} catch (FileNotFoundException ex) {
 			throw new RuntimeException(ex);
 		}
-		Collection<AEntity> entities = (Collection<AEntity>) beanSerializer.deserialize(in);
+		AEntity entity = (AEntity) beanSerializer.deserialize(in);
+		put(container, type, entity, (int) file.length());
+		try {
+			in.close();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
 
-		for (AEntity entity : entities) {
-			container.put(entity.getId(), entity);
+	/**
+	 * Writes all entities changed in the journal into their entity files and deletes the covered journal
+	 * segments. Transactions can be persisted while the files are written.
+	 */
+	public void compactJournal() {
+		if (!journaling) return;
+		synchronized (compactionLock) {
+			compactJournalFiles();
 		}
+	}
 
+	private void compactJournalFiles() {
+		Map<String, String> aliasesById;
+		int segment;
+		synchronized (this) {
+			if (locked) return;
+			if (journaledAliasesById.isEmpty() && getJournal().isEmpty()) return;
+			// a copy, ids stay journaled until their file is written, so that they can not be evicted before
+			aliasesById = new HashMap<String, String>(journaledAliasesById);
+			segment = getJournal().rotate();
+		}
+
+		RuntimeTracker rt = new RuntimeTracker();
+		int saveCount = 0;
+		int deleteCount = 0;
+		Set<String> changedAliases = new HashSet<String>();
+		for (Map.Entry<String, String> entry : aliasesById.entrySet()) {
+			String id = entry.getKey();
+			changedAliases.add(entry.getValue());
+			// inside the store lock, so that no commit happens between writing the file and removing the id
+			synchronized (this) {
+				if (locked) return;
+				AEntity entity = getById(id);
+				if (entity != null) {
+					SaveOperation operation = new SaveOperation(entity, true);
+					operation.prepare();
+					operation.moveFile();
+					saveCount++;
+				} else {
+					String alias = entry.getValue();
+					File file = getEntityFile(alias, id);
+					if (file.exists()) {
+						backup(file, alias);
+						IO.delete(file);
+					}
+					if (clusteredAliases.contains(alias)) IO.touch(getTombstoneFile(alias, id));
+					deleteCount++;
+				}
+				journaledAliasesById.remove(id);
+			}
+		}
+		// the journal segments are the only durable copy, until the renames and deletes are on disk
+		for (String alias : changedAliases) {
+			IO.syncDirectory(new File(dir + "/" + alias));
+		}
+		getJournal().deleteSegmentsBefore(segment);
+		log.info("Entity journal compacted:", rt.getRuntimeFormated(), "(" + saveCount, "saved,", deleteCount,
+			"deleted)");
+	}
+
+	/**
+	 * Packs the entity files of all types into cluster files. See <code>compactClusters(String)</code>.
+	 */
+	public void compactClusters() {
+		for (Class type : new ArrayList<Class>(data.keySet())) {
+			if (locked) return;
+			compactClusters(aliases.get(type));
+		}
+	}
+
+	/**
+	 * Packs the entity files of one type, which changed since the last run, into a new cluster generation and
+	 * deletes the packed files. Deletions of clustered entities are written as tombstones and packed the same
+	 * way. When there are more then <code>MAX_CLUSTER_GENERATIONS</code>, all generations are merged into one.
+	 */
+	public void compactClusters(String alias) {
+		synchronized (compactionLock) {
+			// from now on, deletions write tombstones
+			clusteredAliases.add(alias);
+
+			// before listing the files, so that every later write is tracked
+			Set<String> writtenIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			synchronized (this) {
+				writtenWhilePackingByAlias.put(alias, writtenIds);
+			}
+			try {
+				packEntityFiles(alias, writtenIds);
+			} finally {
+				writtenWhilePackingByAlias.remove(alias);
+			}
+
+			List<Integer> generations = listClusterGenerations(alias);
+			if (generations.size() > MAX_CLUSTER_GENERATIONS) mergeClusters(alias, generations);
+		}
+	}
+
+	private void packEntityFiles(String alias, Set<String> writtenIds) {
+		File entitiesDir = new File(dir + "/" + alias);
+		File[] files = entitiesDir.listFiles();
+		if (files == null) return;
+		List<File> entityFiles = new ArrayList<File>();
+		List<File> tombstoneFiles = new ArrayList<File>();
+		for (File file : files) {
+			String filename = file.getName();
+			if (isClusterFile(filename)) continue;
+			if (filename.endsWith(".xml")) entityFiles.add(file);
+			if (filename.endsWith(TOMBSTONE_SUFFIX)) tombstoneFiles.add(file);
+		}
+		if (entityFiles.isEmpty() && tombstoneFiles.isEmpty()) return;
+
+		RuntimeTracker rt = new RuntimeTracker();
+		List<AEntity> entities = new ArrayList<AEntity>(entityFiles.size());
+		for (File file : entityFiles) {
+			entities.add(readEntityFile(file));
+		}
+		List<String> tombstones = new ArrayList<String>(tombstoneFiles.size());
+		for (File file : tombstoneFiles) {
+			tombstones.add(Str.removeSuffix(file.getName(), TOMBSTONE_SUFFIX));
+		}
+
+		List<Integer> generations = listClusterGenerations(alias);
+		int generation = generations.isEmpty() ? 1 : generations.get(generations.size() - 1) + 1;
+		writeCluster(alias, generation, entities, tombstones);
+
+		// files which were saved again while packing stay, they are newer then the cluster
+		int deleteCount = 0;
+		synchronized (this) {
+			Class<AEntity> type = getType(alias);
+			for (File file : entityFiles) {
+				String id = Str.removeSuffix(file.getName(), ".xml");
+				if (writtenIds.contains(id)) continue;
+				// evicted entities can not be read from the cluster, so they stay in memory
+				if (residency != null && type != null) reload(type, id, false);
+				IO.delete(file);
+				deleteCount++;
+			}
+			for (File file : tombstoneFiles) {
+				IO.delete(file);
+			}
+		}
+		log.info("Entity files packed into cluster:", alias, generation, "(" + deleteCount, "files,",
+			tombstones.size(), "tombstones) in", rt.getRuntimeFormated());
+	}
+
+	private void mergeClusters(String alias, List<Integer> generations) {
+		RuntimeTracker rt = new RuntimeTracker();
+		Class type = getType(alias);
+		Map<String, AEntity> entities = new HashMap<String, AEntity>();
+		for (Integer generation : generations) {
+			for (AEntity entity : readCluster(getClusterFile(alias, generation), type, alias)) {
+				entities.put(entity.getId(), entity);
+			}
+			for (String id : readTombstones(alias, generation)) {
+				entities.remove(id);
+			}
+		}
+
+		int generation = generations.get(generations.size() - 1) + 1;
+		writeCluster(alias, generation, entities.values(), Collections.<String> emptyList());
+		for (Integer old : generations) {
+			IO.delete(getClusterFile(alias, old));
+			IO.delete(getTombstonesFile(alias, old));
+		}
+		log.info("Cluster generations merged:", alias, generations.size(), "->", generation, "(" + entities.size(),
+			"entities) in", rt.getRuntimeFormated());
+	}
+
+	private Class<AEntity> getType(String alias) {
+		for (Class<AEntity> cls : data.keySet()) {
+			if (alias.equals(aliases.get(cls))) return cls;
+		}
+		return null;
+	}
+
+	private void writeCluster(String alias, int generation, Collection<AEntity> entities, Collection<String> tombstones) {
+		File file = getClusterFile(alias, generation);
+		File tmpFile = new File(dir + "/tmp/" + file.getName() + "." + alias);
+		IO.createDirectory(tmpFile.getParentFile());
+		BufferedOutputStream out;
 		try {
-			in.close();
+			out = new BufferedOutputStream(new FileOutputStream(tmpFile));
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
-	}
+		beanSerializer.serialize(new ArrayList<AEntity>(entities), out);
+		IO.close(out);
+		if (tmpFile.length() < 1) throw new RuntimeException("Writing cluster file caused empty file: " + tmpFile);
 
-	private void loadObject(File file, Map<String, AEntity> container, Class type, String alias) {
-		if (entityfilePreparator != null) entityfilePreparator.prepareEntityfile(file, type, alias);
+		// tombstones first, a cluster without its tombstones would revive deleted entities
+		if (!tombstones.isEmpty()) {
+			IO.writeFile(getTombstonesFile(alias, generation), Str.concat(tombstones, "\n"), IO.UTF_8);
+		}
+		IO.move(tmpFile, file, true);
+	}
 
+	private Collection<AEntity> readCluster(File file, Class type, String alias) {
+		if (entityfilePreparator != null) entityfilePreparator.prepareClusterfile(file, type, alias);
 		BufferedInputStream in;
 		try {
 			in = new BufferedInputStream(new FileInputStream(file));
 		} catch (FileNotFoundException ex) {
 			throw new RuntimeException(ex);
 		}
-		AEntity entity = (AEntity) beanSerializer.deserialize(in);
-		container.put(entity.getId(), entity);
 		try {
-			in.close();
-		} catch (IOException ex) {
+			return (Collection<AEntity>) beanSerializer.deserialize(in);
+		} finally {
+			IO.closeQuiet(in);
+		}
+	}
+
+	private AEntity readEntityFile(File file) {
+		BufferedInputStream in;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+		} catch (FileNotFoundException ex) {
 			throw new RuntimeException(ex);
 		}
+		try {
+			return (AEntity) beanSerializer.deserialize(in);
+		} finally {
+			IO.closeQuiet(in);
+		}
+	}
+
+	private List<String> readTombstones(String alias, int generation) {
+		File file = getTombstonesFile(alias, generation);
+		if (!file.exists()) return Collections.emptyList();
+		List<String> ret = new ArrayList<String>();
+		for (String id : IO.readFile(file, IO.UTF_8).split("\n")) {
+			if (!Str.isBlank(id)) ret.add(id.trim());
+		}
+		return ret;
+	}
+
+	/**
+	 * Cluster generations of a type, oldest first. <code>cluster.xml</code> is generation <code>0</code>.
+	 */
+	private List<Integer> listClusterGenerations(String alias) {
+		List<Integer> ret = new ArrayList<Integer>();
+		File[] files = new File(dir + "/" + alias).listFiles();
+		if (files == null) return ret;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.equals(CLUSTER_FILE_NAME)) {
+				ret.add(0);
+				continue;
+			}
+			if (!name.startsWith(CLUSTER_PREFIX) || !name.endsWith(".xml")) continue;
+			ret.add(Integer.parseInt(name.substring(CLUSTER_PREFIX.length(), name.length() - 4)));
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private File getClusterFile(String alias, int generation) {
+		if (generation == 0) return new File(dir + "/" + alias + "/" + CLUSTER_FILE_NAME);
+		return new File(dir + "/" + alias + "/" + CLUSTER_PREFIX + generation + ".xml");
+	}
+
+	private File getTombstonesFile(String alias, int generation) {
+		return new File(dir + "/" + alias + "/" + CLUSTER_PREFIX + generation + TOMBSTONE_SUFFIX);
+	}
+
+	private File getTombstoneFile(String alias, String id) {
+		return new File(dir + "/" + alias + "/" + id + TOMBSTONE_SUFFIX);
+	}
+
+	private static boolean isClusterFile(String filename) {
+		return filename.equals(CLUSTER_FILE_NAME) || filename.startsWith(CLUSTER_PREFIX);
+	}
+
+	private void replayJournal(Map<String, AEntity> container, Class type, String alias,
+			boolean deleteOnFailure) {
+		List<EntityJournal.Record> records = getJournalRecords(alias);
+		if (records.isEmpty()) return;
+		for (EntityJournal.Record record : records) {
+			journaledAliasesById.put(record.getId(), alias);
+			if (record.isDelete()) {
+				remove(container, record.getId());
+				continue;
+			}
+			try {
+				AEntity entity = (AEntity) beanSerializer.deserialize(new ByteArrayInputStream(record.getData()));
+				put(container, type, entity);
+			} catch (Exception ex) {
+				if (!deleteOnFailure) throw new RuntimeException("Replaying journal record failed: " + record, ex);
+				log.warn("Replaying journal record failed:", record, ex);
+			}
+		}
+		log.info("   ", alias, records.size(), "journal records replayed");
+	}
+
+	private synchronized List<EntityJournal.Record> getJournalRecords(String alias) {
+		if (journalRecordsByAlias == null) {
+			journalRecordsByAlias = new HashMap<String, List<EntityJournal.Record>>();
+			for (EntityJournal.Record record : getJournal().readAll()) {
+				List<EntityJournal.Record> records = journalRecordsByAlias.get(record.getAlias());
+				if (records == null) {
+					records = new ArrayList<EntityJournal.Record>();
+					journalRecordsByAlias.put(record.getAlias(), records);
+				}
+				records.add(record);
+			}
+		}
+		List<EntityJournal.Record> records = journalRecordsByAlias.remove(alias);
+		if (records == null) return Collections.emptyList();
+		return records;
+	}
+
+	synchronized EntityJournal getJournal() {
+		if (journal == null) journal = new EntityJournal(new File(dir + "/journal"));
+		return journal;
+	}
+
+	/**
+	 * Adds a loaded entity to the container of its type. Only used while loading.
+	 */
+	private void put(Map<String, AEntity> container, Class type, AEntity entity) {
+		put(container, type, entity, DEFAULT_ENTITY_SIZE);
+	}
+
+	private void put(Map<String, AEntity> container, Class type, AEntity entity, int size) {
+		String id = entity.getId();
+		container.put(id, entity);
+		typesById.put(id, type);
+		if (residency != null) residency.add(id, size);
+	}
+
+	private void remove(Map<String, AEntity> container, String id) {
+		container.remove(id);
+		typesById.remove(id);
+		if (residency != null) residency.remove(id);
+	}
+
+	private File getEntityFile(String alias, String id) {
+		return new File(dir + "/" + alias + "/" + id + ".xml");
 	}
 
 	private void backup(File src, String type) {
@@ -368,13 +1308,33 @@ public class FileEntityStore implements EntityStore {
 
 	}
 
+	private static class EvictedEntity extends WeakReference<AEntity> {
+
+		private final String id;
+
+		public EvictedEntity(String id, AEntity entity, ReferenceQueue<AEntity> queue) {
+			super(entity, queue);
+			this.id = id;
+		}
+
+	}
+
 	class SaveOperation extends Operation {
 
 		private File tmpFile;
 		private File file;
+		private boolean sync;
 
 		public SaveOperation(AEntity entity) {
+			this(entity, false);
+		}
+
+		/**
+		 * @param sync forces the temporary file to disk, before it is moved
+		 */
+		public SaveOperation(AEntity entity, boolean sync) {
 			super(entity);
+			this.sync = sync;
 		}
 
 		@Override
@@ -388,8 +1348,18 @@ public class FileEntityStore implements EntityStore {
 
 		@Override
 		protected void complete() {
+			moveFile();
+		}
+
+		void moveFile() {
 			IO.move(tmpFile, file, true);
-			getDao(entity.getClass()).put(entity.getId(), entity);
+			String alias = entity.getDao().getEntityName();
+			Set<String> writtenIds = writtenWhilePackingByAlias.get(alias);
+			if (writtenIds != null) writtenIds.add(entity.getId());
+			if (clusteredAliases.contains(alias)) {
+				File tombstone = getTombstoneFile(alias, entity.getId());
+				if (tombstone.exists()) IO.delete(tombstone);
+			}
 		}
 
 		public void backupExistingFile() {
@@ -400,14 +1370,22 @@ public class FileEntityStore implements EntityStore {
 
 		public void wirteTemporaryFile() {
 			if (!tmpFile.getParentFile().exists()) tmpFile.getParentFile().mkdirs();
-			BufferedOutputStream out;
+			FileOutputStream fileOut;
 			try {
-				out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+				fileOut = new FileOutputStream(tmpFile);
 			} catch (IOException ex) {
 				throw new RuntimeException(ex);
 			}
-			beanSerializer.serialize(entity, out);
-			IO.close(out);
+			BufferedOutputStream out = new BufferedOutputStream(fileOut);
+			try {
+				beanSerializer.serialize(entity, out);
+				out.flush();
+				if (sync) fileOut.getFD().sync();
+			} catch (IOException ex) {
+				throw new RuntimeException("Writing entity file failed: " + tmpFile.getPath(), ex);
+			} finally {
+				IO.closeQuiet(out);
+			}
 
 			if (!tmpFile.exists()) throw new RuntimeException("Writing entity file failed: " + tmpFile.getPath());
 
@@ -444,7 +1422,8 @@ public class FileEntityStore implements EntityStore {
 		@Override
 		protected void complete() {
 			IO.delete(file);
-			getDao(entity.getClass()).remove(entity.getId());
+			String alias = entity.getDao().getEntityName();
+			if (clusteredAliases.contains(alias)) IO.touch(getTombstoneFile(alias, entity.getId()));
 		}
 
 		@Override
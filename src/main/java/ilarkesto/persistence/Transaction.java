@@ -19,9 +19,11 @@ import ilarkesto.core.fp.Predicate;
 import ilarkesto.core.logging.Log;
 import ilarkesto.id.IdentifiableResolver;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 class Transaction implements IdentifiableResolver<AEntity> {
@@ -34,9 +36,16 @@ class Transaction implements IdentifiableResolver<AEntity> {
 	private EntityStore entityStore;
 
 	private String threadName;
-	private Set<AEntity> entitiesToSave = new HashSet<AEntity>();
-	private Set<AEntity> entitiesToDelete = new HashSet<AEntity>();
-	private Set<AEntity> entitiesRegistered = new HashSet<AEntity>();
+	private Map<String, AEntity> entitiesToSave = new LinkedHashMap<String, AEntity>();
+	private Map<String, AEntity> entitiesToDelete = new LinkedHashMap<String, AEntity>();
+	private Map<String, AEntity> entitiesRegistered = new LinkedHashMap<String, AEntity>();
+
+	/**
+	 * Entities saved while ensuring integrity on commit. Their integrity is ensured (again) in the next round.
+	 */
+	private Map<String, AEntity> worklist;
+
+	private String entityIdEnsuringIntegrity;
 
 	public Transaction(EntityStore entityStore) {
 		synchronized (getClass()) {
@@ -48,137 +57,138 @@ class Transaction implements IdentifiableResolver<AEntity> {
 
 	synchronized void saveEntity(AEntity entity) {
 		if (entity == null) throw new NullPointerException("entity");
-		entity.getId();
-		if (entitiesToSave.contains(entity) || entitiesToDelete.contains(entity)) return;
-		log.debug("SAVE", toStringWithType(entity), "@", this);
-		entitiesToSave.add(entity);
+		String id = entity.getId();
+		if (entitiesToDelete.containsKey(id)) return;
+		// entities saving themselves while ensuring their integrity are not checked again
+		if (worklist != null && !id.equals(entityIdEnsuringIntegrity)) worklist.put(id, entity);
+		if (entitiesToSave.containsKey(id)) return;
+		log.debug("SAVE", toStringWithType(entity), "@ #" + no);
+		entitiesToSave.put(id, entity);
 	}
 
 	synchronized void deleteEntity(AEntity entity) {
-		if (entitiesToDelete.contains(entity)) return;
-		log.debug("DELETE", toStringWithType(entity), "@", this);
-		entitiesToDelete.add(entity);
-		entitiesToSave.remove(entity);
+		String id = entity.getId();
+		if (entitiesToDelete.containsKey(id)) return;
+		log.debug("DELETE", toStringWithType(entity), "@ #" + no);
+		entitiesToDelete.put(id, entity);
+		entitiesToSave.remove(id);
+		if (worklist != null) worklist.remove(id);
 	}
 
 	synchronized void registerEntity(AEntity entity) {
-		entitiesRegistered.add(entity);
+		entitiesRegistered.put(entity.getId(), entity);
 	}
 
 	private boolean committed;
 
-	synchronized void commit() {
+	/**
+	 * Persists the changes without waiting until they are durable.
+	 *
+	 * @return the ticket to pass to <code>EntityStore.sync()</code>
+	 */
+	synchronized long commit() {
 		if (committed) throw new RuntimeException("Transaction already committed: " + this);
 		committed = true;
 
 		if (entitiesToDelete.isEmpty() && entitiesToSave.isEmpty()) {
 			log.debug("Empty Transaction committed:", this);
-			return;
+			return 0;
 		} else {
 			log.info("Committing transaction:", this);
 		}
 
-		Set<AEntity> integratedEntities = new HashSet<AEntity>(entitiesToSave.size());
-
+		// ensure integrity, revisiting only the entities which were saved (again) by the previous round
+		Map<String, AEntity> round = new LinkedHashMap<String, AEntity>(entitiesToSave);
 		int loopcount = 0;
-		while (!integratedEntities.containsAll(entitiesToSave)) {
+		try {
+			while (!round.isEmpty()) {
+				if (loopcount > 0) log.debug("  Entities changed after ensuring integrity:", round.values());
 
-			if (loopcount > 0) {
-				HashSet<AEntity> tmp = new HashSet<AEntity>(entitiesToSave);
-				tmp.removeAll(integratedEntities);
-				log.debug("  Entities changed after ensuring integrity:", tmp);
-			}
+				if (loopcount > 1000) throw new RuntimeException("Maximum loops reached while commiting:" + this);
 
-			if (loopcount > 1000) throw new RuntimeException("Maximum loops reached while commiting:" + this);
+				worklist = new LinkedHashMap<String, AEntity>();
+				for (AEntity entity : round.values()) {
+					if (entitiesToDelete.containsKey(entity.getId())) continue;
+					log.debug("Ensuring integrity for", entity.getClass().getSimpleName(), entity.getId());
+					entityIdEnsuringIntegrity = entity.getId();
+					entity.ensureIntegrity();
+				}
+				round = worklist;
 
-			entitiesToSave.removeAll(entitiesToDelete);
-			for (AEntity entity : new HashSet<AEntity>(entitiesToSave)) {
-				log.debug("Ensuring integrity for", entity.getClass().getSimpleName(), entity.getId());
-				entity.ensureIntegrity();
-				integratedEntities.add(entity);
+				loopcount++;
 			}
-			entitiesToSave.removeAll(entitiesToDelete);
-
-			loopcount++;
+		} finally {
+			worklist = null;
+			entityIdEnsuringIntegrity = null;
 		}
 
-		log.debug("Persisting entities:", entitiesToSave, entitiesToDelete);
-		entityStore.persist(entitiesToSave, entitiesToDelete);
+		log.debug("Persisting entities:", entitiesToSave.values(), entitiesToDelete.values());
+		long ticket = entityStore.persistWithoutSync(entitiesToSave.values(), entitiesToDelete.values());
 
 		log.debug("Transaction committed:", this);
 		entitiesToSave.clear();
 		entitiesToDelete.clear();
 		entitiesRegistered.clear();
+		return ticket;
 	}
 
-	public boolean isDeleted(AEntity entity) {
-		if (entitiesToDelete.contains(entity)) return true;
-		return false;
+	public synchronized boolean isDeleted(AEntity entity) {
+		return entitiesToDelete.containsKey(entity.getId());
 	}
 
 	synchronized boolean isPersistent(String id) {
 		AEntity result = entityStore.getById(id);
 		if (result != null) return true;
 
-		for (AEntity entity : entitiesToSave) {
-			if (id.equals(entity.getId())) return true;
-		}
-
 		// ignore registeredEntities!
-		return false;
+		return entitiesToSave.containsKey(id);
 	}
 
 	@Override
 	public synchronized AEntity getById(String id) {
+		if (entitiesToDelete.containsKey(id)) return null;
 		AEntity result = entityStore.getById(id);
-		if (result == null && !entitiesToSave.isEmpty()) {
-			for (AEntity entity : entitiesToSave) {
-				if (id.equals(entity.getId())) {
-					result = entity;
-					break;
-				}
-			}
-		}
-		if (result == null && !entitiesRegistered.isEmpty()) {
-			for (AEntity entity : entitiesRegistered) {
-				if (id.equals(entity.getId())) {
-					result = entity;
-					break;
-				}
-			}
-		}
-		if (result != null && entitiesToDelete.contains(result)) return null;
+		if (result == null) result = entitiesToSave.get(id);
+		if (result == null) result = entitiesRegistered.get(id);
 		return result;
 	}
 
 	@Override
-	public synchronized List<AEntity> getByIds(Collection<String> ids) {
-		List<AEntity> result = entityStore.getByIds(ids);
-		for (AEntity entity : entitiesToSave) {
-			if (ids.contains(entity.getId())) {
-				result.remove(entity);
-				result.add(entity);
-			}
+	public List<AEntity> getByIds(Collection<String> ids) {
+		return getByIds(null, ids);
+	}
+
+	synchronized List<AEntity> getByIds(Predicate<Class> typeFilter, Collection<String> ids) {
+		List<AEntity> result = entityStore.getByIds(typeFilter, ids);
+		if (entitiesToSave.isEmpty() && entitiesRegistered.isEmpty() && entitiesToDelete.isEmpty()) return result;
+
+		Map<String, AEntity> resultById = new LinkedHashMap<String, AEntity>(result.size());
+		for (AEntity entity : result) {
+			resultById.put(entity.getId(), entity);
 		}
-		for (AEntity entity : entitiesRegistered) {
-			if (ids.contains(entity.getId())) {
-				result.remove(entity);
-				result.add(entity);
+		for (String id : ids) {
+			AEntity entity = entitiesToSave.get(id);
+			if (entity == null) entity = entitiesRegistered.get(id);
+			if (entity != null && Persist.test(entity, typeFilter, null)) {
+				resultById.remove(id);
+				resultById.put(id, entity);
 			}
+			if (entitiesToDelete.containsKey(id)) resultById.remove(id);
 		}
-		result.removeAll(entitiesToDelete);
-		return result;
+		return new ArrayList<AEntity>(resultById.values());
 	}
 
 	synchronized Set<AEntity> getEntities(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		Set<AEntity> result = entityStore.getEntities(typeFilter, entityFilter);
-		for (AEntity entity : entitiesToSave) {
+		for (AEntity entity : entitiesToSave.values()) {
 			if (Persist.test(entity, typeFilter, entityFilter)) result.add(entity);
 		}
-		for (AEntity entity : entitiesRegistered) {
+		for (AEntity entity : entitiesRegistered.values()) {
 			if (Persist.test(entity, typeFilter, entityFilter)) result.add(entity);
 		}
-		result.removeAll(entitiesToDelete);
+		for (AEntity entity : entitiesToDelete.values()) {
+			result.remove(entity);
+		}
 		return result;
 	}
 
@@ -189,33 +199,37 @@ class Transaction implements IdentifiableResolver<AEntity> {
 	synchronized AEntity getEntity(Predicate<Class> typeFilter, Predicate<AEntity> entityFilter) {
 		AEntity result = entityStore.getEntity(typeFilter, entityFilter);
 		if (result == null) {
-			for (AEntity entity : entitiesToSave) {
-				if (Persist.test(entity, typeFilter, entityFilter) && !entitiesToDelete.contains(entity))
+			for (AEntity entity : entitiesToSave.values()) {
+				if (Persist.test(entity, typeFilter, entityFilter) && !entitiesToDelete.containsKey(entity.getId()))
 					return entity;
 			}
-			for (AEntity entity : entitiesRegistered) {
-				if (Persist.test(entity, typeFilter, entityFilter) && !entitiesToDelete.contains(entity))
+			for (AEntity entity : entitiesRegistered.values()) {
+				if (Persist.test(entity, typeFilter, entityFilter) && !entitiesToDelete.containsKey(entity.getId()))
 					return entity;
 			}
 		} else {
-			if (entitiesToDelete.contains(result)) return null;
+			if (entitiesToDelete.containsKey(result.getId())) return null;
 		}
 		return result;
 	}
 
+	int getEntitiesToSaveCount() {
+		return entitiesToSave.size();
+	}
+
 	@Override
 	public synchronized String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("#").append(no);
 		sb.append(" (").append(threadName).append(")");
 		if (!entitiesToSave.isEmpty()) {
-			sb.append("\n    SAVE: ").append(toString(entitiesToSave));
+			sb.append("\n    SAVE: ").append(toString(entitiesToSave.values()));
 		}
 		if (!entitiesRegistered.isEmpty()) {
-			sb.append("\n    REGISTERED: ").append(toString(entitiesRegistered));
+			sb.append("\n    REGISTERED: ").append(toString(entitiesRegistered.values()));
 		}
 		if (!entitiesToDelete.isEmpty()) {
-			sb.append("\n    DELETE: ").append(toString(entitiesToDelete));
+			sb.append("\n    DELETE: ").append(toString(entitiesToDelete.values()));
 		}
 		return sb.toString();
 	}
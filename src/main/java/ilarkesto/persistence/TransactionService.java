@@ -32,26 +32,36 @@ public class TransactionService implements IdentifiableResolver<AEntity> {
 
 	private ThreadLocal<Transaction> threadLocalTransaction = new ThreadLocal<Transaction>();
 
+	/**
+	 * Serializes commits. Transactions are thread local, so reading and collecting changes needs no lock.
+	 */
+	private final Object commitLock = new Object();
+
 	public TransactionService() {}
 
-	public synchronized void commit() {
+	public void commit() {
 		Transaction t = getCurrentTransaction(false);
 		if (t == null) return;
+		long ticket;
 		try {
-			t.commit();
+			synchronized (commitLock) {
+				ticket = t.commit();
+			}
 		} finally {
 			threadLocalTransaction.set(null);
 		}
+		// outside of the commit lock, so that concurrent commits share one fsync
+		entityStore.sync(ticket);
 	}
 
-	public synchronized void cancel() {
+	public void cancel() {
 		Transaction t = getCurrentTransaction(false);
 		if (t == null) return;
 		log.debug("Cancelling transaction:", t);
 		threadLocalTransaction.set(null);
 	}
 
-	private synchronized Transaction getCurrentTransaction(boolean autocreate) {
+	private Transaction getCurrentTransaction(boolean autocreate) {
 		Transaction t = threadLocalTransaction.get();
 		if (t == null) {
 			if (!autocreate) return null;
@@ -104,11 +114,15 @@ public class TransactionService implements IdentifiableResolver<AEntity> {
 
 	@Override
 	public List<AEntity> getByIds(Collection<String> ids) {
+		return getByIds(null, ids);
+	}
+
+	public List<AEntity> getByIds(Predicate<Class> typeFilter, Collection<String> ids) {
 		Transaction transaction = getCurrentTransaction(false);
 		if (transaction == null) {
-			return entityStore.getByIds(ids);
+			return entityStore.getByIds(typeFilter, ids);
 		} else {
-			return transaction.getByIds(ids);
+			return transaction.getByIds(typeFilter, ids);
 		}
 	}
 
@@ -134,15 +148,15 @@ public class TransactionService implements IdentifiableResolver<AEntity> {
 		return ret;
 	}
 
-	public synchronized void deleteEntity(AEntity entity) {
+	public void deleteEntity(AEntity entity) {
 		getCurrentTransaction(true).deleteEntity(entity);
 	}
 
-	public synchronized void saveEntity(AEntity entity) {
+	public void saveEntity(AEntity entity) {
 		getCurrentTransaction(true).saveEntity(entity);
 	}
 
-	public synchronized void registerEntity(AEntity entity) {
+	public void registerEntity(AEntity entity) {
 		getCurrentTransaction(true).registerEntity(entity);
 	}
 
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.core.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects entity changes and hands them to a <code>Writer</code> on a dedicated thread, after they waited for
+ * <code>delay</code> milliseconds. Repeated changes of the same entity within that window are written once.
+ * <code>flush()</code> blocks until all changes added before were written. The writer thread holds the
+ * <code>writeLock</code> while it takes changes from the queue and writes them, so that holders of the lock
+ * can write the pending changes themselves with <code>writePending()</code>.
+ */
+class WriteBehindQueue {
+
+	private static final Log log = Log.get(WriteBehindQueue.class);
+
+	private final Writer writer;
+	private final Object writeLock;
+	private final long delay;
+	private final String name;
+
+	private Map<String, AEntity> pendingSaves = new LinkedHashMap<String, AEntity>();
+	private Map<String, AEntity> pendingDeletes = new LinkedHashMap<String, AEntity>();
+	private Set<String> writingIds = Collections.emptySet();
+	private long firstPendingTime;
+
+	private long addedBatches;
+	private long writtenBatches;
+	private long addedChanges;
+	private long writtenChanges;
+	private boolean flushRequested;
+	private boolean closed;
+	private RuntimeException failure;
+
+	private Thread thread;
+
+	public WriteBehindQueue(String name, long delay, Object writeLock, Writer writer) {
+		this.name = name;
+		this.delay = delay;
+		this.writeLock = writeLock;
+		this.writer = writer;
+	}
+
+	public synchronized void add(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+		if (closed) throw new IllegalStateException("Write-behind queue closed: " + name);
+		if (entitiesToSave.isEmpty() && entitiesToDelete.isEmpty()) return;
+		if (pendingSaves.isEmpty() && pendingDeletes.isEmpty()) firstPendingTime = System.currentTimeMillis();
+		for (AEntity entity : entitiesToSave) {
+			String id = entity.getId();
+			pendingDeletes.remove(id);
+			pendingSaves.put(id, entity);
+		}
+		for (AEntity entity : entitiesToDelete) {
+			String id = entity.getId();
+			pendingSaves.remove(id);
+			pendingDeletes.put(id, entity);
+		}
+		addedBatches++;
+		addedChanges += entitiesToSave.size() + entitiesToDelete.size();
+		if (thread == null) startThread();
+		notifyAll();
+	}
+
+	/**
+	 * Blocks until all changes, which were added before, are written.
+	 *
+	 * @throws RuntimeException when writing failed. The changes stay queued and are retried.
+	 */
+	public void flush() {
+		synchronized (this) {
+			long target = addedBatches;
+			while (writtenBatches < target) {
+				if (failure != null) throw new RuntimeException("Writing entity changes failed: " + name, failure);
+				flushRequested = true;
+				notifyAll();
+				try {
+					wait(1000);
+				} catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes all pending changes in the calling thread, which has to hold the <code>writeLock</code>. So no
+	 * changes are being written by the writer thread meanwhile.
+	 *
+	 * @throws RuntimeException when writing failed. The changes stay queued and are retried.
+	 */
+	public void writePending() {
+		if (!Thread.holdsLock(writeLock)) throw new IllegalStateException("Write lock not held: " + name);
+		RuntimeException failure = write();
+		if (failure != null) throw new RuntimeException("Writing entity changes failed: " + name, failure);
+	}
+
+	/**
+	 * Flushes and stops the writer thread. Adding changes fails afterwards.
+	 */
+	public void close() {
+		flush();
+		Thread t;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			t = thread;
+		}
+		if (t == null) return;
+		try {
+			t.join();
+		} catch (InterruptedException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Checks if changes of an entity are waiting or being written.
+	 */
+	public synchronized boolean isPending(String id) {
+		return pendingSaves.containsKey(id) || pendingDeletes.containsKey(id) || writingIds.contains(id);
+	}
+
+	public synchronized int getPendingCount() {
+		return pendingSaves.size() + pendingDeletes.size();
+	}
+
+	/**
+	 * Number of entity changes which did not have to be written, because a later change of the same entity
+	 * replaced them.
+	 */
+	public synchronized long getCoalescedCount() {
+		return addedChanges - writtenChanges - getPendingCount();
+	}
+
+	private void startThread() {
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (writeNext()) {}
+				log.debug("Write-behind thread stopped:", name);
+			}
+		});
+		thread.setName(name + "-write-behind");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private boolean writeNext() {
+		synchronized (this) {
+			try {
+				while (pendingSaves.isEmpty() && pendingDeletes.isEmpty()) {
+					if (closed) return false;
+					wait();
+				}
+				// collect more changes of the same entities until the oldest one is due
+				long due = firstPendingTime + delay;
+				long now = System.currentTimeMillis();
+				while (!flushRequested && !closed && now < due) {
+					wait(due - now);
+					now = System.currentTimeMillis();
+				}
+			} catch (InterruptedException ex) {
+				return false;
+			}
+		}
+
+		RuntimeException failure;
+		synchronized (writeLock) {
+			failure = write();
+		}
+		if (failure == null) return true;
+
+		log.error("Writing entity changes failed. Retrying in", delay, "ms:", name, failure);
+		synchronized (this) {
+			try {
+				wait(Math.max(delay, 1000));
+			} catch (InterruptedException ex) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes all pending changes and writes them. Called inside the <code>writeLock</code>.
+	 *
+	 * @return the failure, when writing failed
+	 */
+	private RuntimeException write() {
+		List<AEntity> entitiesToSave;
+		List<AEntity> entitiesToDelete;
+		long batches;
+		synchronized (this) {
+			if (pendingSaves.isEmpty() && pendingDeletes.isEmpty()) return null;
+			entitiesToSave = new ArrayList<AEntity>(pendingSaves.values());
+			entitiesToDelete = new ArrayList<AEntity>(pendingDeletes.values());
+			writingIds = new HashSet<String>(pendingSaves.keySet());
+			writingIds.addAll(pendingDeletes.keySet());
+			pendingSaves = new LinkedHashMap<String, AEntity>();
+			pendingDeletes = new LinkedHashMap<String, AEntity>();
+			batches = addedBatches;
+			flushRequested = false;
+		}
+
+		try {
+			writer.write(entitiesToSave, entitiesToDelete);
+		} catch (RuntimeException ex) {
+			synchronized (this) {
+				failure = ex;
+				writingIds = Collections.emptySet();
+				requeue(entitiesToSave, entitiesToDelete);
+				notifyAll();
+			}
+			return ex;
+		}
+
+		synchronized (this) {
+			failure = null;
+			writingIds = Collections.emptySet();
+			writtenBatches = batches;
+			writtenChanges += entitiesToSave.size() + entitiesToDelete.size();
+			notifyAll();
+		}
+		return null;
+	}
+
+	/**
+	 * Puts failed changes back, unless the same entities were changed again in the meantime.
+	 */
+	private void requeue(List<AEntity> entitiesToSave, List<AEntity> entitiesToDelete) {
+		Map<String, AEntity> saves = new LinkedHashMap<String, AEntity>();
+		Map<String, AEntity> deletes = new LinkedHashMap<String, AEntity>();
+		for (AEntity entity : entitiesToSave) {
+			String id = entity.getId();
+			if (!pendingSaves.containsKey(id) && !pendingDeletes.containsKey(id)) saves.put(id, entity);
+		}
+		for (AEntity entity : entitiesToDelete) {
+			String id = entity.getId();
+			if (!pendingSaves.containsKey(id) && !pendingDeletes.containsKey(id)) deletes.put(id, entity);
+		}
+		saves.putAll(pendingSaves);
+		deletes.putAll(pendingDeletes);
+		pendingSaves = saves;
+		pendingDeletes = deletes;
+		firstPendingTime = System.currentTimeMillis();
+	}
+
+	@Override
+	public String toString() {
+		return "WriteBehindQueue(" + name + ")";
+	}
+
+	public static interface Writer {
+
+		void write(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete);
+
+	}
+
+}
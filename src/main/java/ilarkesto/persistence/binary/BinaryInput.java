@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+/**
+ * Reads what <code>BinaryOutput</code> wrote. Reading beyond the end throws an
+ * <code>IllegalStateException</code>.
+ */
+public class BinaryInput {
+
+	private final byte[] buffer;
+	private final int end;
+	private int position;
+
+	public BinaryInput(byte[] buffer) {
+		this(buffer, 0, buffer.length);
+	}
+
+	public BinaryInput(byte[] buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	public int readByte() {
+		require(1);
+		return buffer[position++];
+	}
+
+	public boolean readBoolean() {
+		return readByte() != 0;
+	}
+
+	public short readShort() {
+		require(2);
+		return (short) (((buffer[position++] & 0xFF) << 8) | (buffer[position++] & 0xFF));
+	}
+
+	public int readInt() {
+		require(4);
+		return ((buffer[position++] & 0xFF) << 24) | ((buffer[position++] & 0xFF) << 16)
+				| ((buffer[position++] & 0xFF) << 8) | (buffer[position++] & 0xFF);
+	}
+
+	public long readLong() {
+		return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+	}
+
+	public byte[] readBytes() {
+		int length = readLength();
+		byte[] ret = new byte[length];
+		System.arraycopy(buffer, position, ret, 0, length);
+		position += length;
+		return ret;
+	}
+
+	public String readString() {
+		int length = readLength();
+		String ret = new String(buffer, position, length, BinaryOutput.UTF_8);
+		position += length;
+		return ret;
+	}
+
+	/**
+	 * Reads a length written by <code>BinaryOutput.completeLength()</code> and checks that the block fits.
+	 */
+	public int readLength() {
+		int length = readInt();
+		if (length < 0) throw new IllegalStateException("Negative length " + length + " at " + (position - 4));
+		require(length);
+		return length;
+	}
+
+	public void skip(int count) {
+		require(count);
+		position += count;
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	public boolean isEnd() {
+		return position >= end;
+	}
+
+	private void require(int count) {
+		if (position + count > end)
+			throw new IllegalStateException("Unexpected end of data: " + count + " bytes required at " + position
+					+ ", " + (end - position) + " available");
+	}
+
+}
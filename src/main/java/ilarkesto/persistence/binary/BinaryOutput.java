@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable big-endian byte buffer. Lengths of nested blocks are reserved with <code>reserveLength()</code>
+ * and filled in with <code>completeLength()</code> when the block is written.
+ */
+public class BinaryOutput {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private byte[] buffer;
+	private int size;
+
+	public BinaryOutput() {
+		this(256);
+	}
+
+	public BinaryOutput(int capacity) {
+		buffer = new byte[capacity];
+	}
+
+	public void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) b;
+	}
+
+	public void writeBoolean(boolean b) {
+		writeByte(b ? 1 : 0);
+	}
+
+	public void writeShort(int s) {
+		ensureCapacity(2);
+		buffer[size++] = (byte) (s >>> 8);
+		buffer[size++] = (byte) s;
+	}
+
+	public void writeInt(int i) {
+		ensureCapacity(4);
+		buffer[size++] = (byte) (i >>> 24);
+		buffer[size++] = (byte) (i >>> 16);
+		buffer[size++] = (byte) (i >>> 8);
+		buffer[size++] = (byte) i;
+	}
+
+	public void writeLong(long l) {
+		writeInt((int) (l >>> 32));
+		writeInt((int) l);
+	}
+
+	public void writeBytes(byte[] bytes) {
+		writeInt(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, size, bytes.length);
+		size += bytes.length;
+	}
+
+	/**
+	 * Writes the string as length-prefixed UTF-8, without the 64k limit of <code>DataOutput.writeUTF()</code>.
+	 */
+	public void writeString(String s) {
+		writeBytes(s.getBytes(UTF_8));
+	}
+
+	/**
+	 * Reserves four bytes for the length of the following block.
+	 *
+	 * @return position to pass to <code>completeLength()</code>
+	 */
+	public int reserveLength() {
+		ensureCapacity(4);
+		int position = size;
+		size += 4;
+		return position;
+	}
+
+	public void completeLength(int position) {
+		int length = size - position - 4;
+		buffer[position] = (byte) (length >>> 24);
+		buffer[position + 1] = (byte) (length >>> 16);
+		buffer[position + 2] = (byte) (length >>> 8);
+		buffer[position + 3] = (byte) length;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, size);
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, size);
+	}
+
+	private void ensureCapacity(int count) {
+		if (size + count <= buffer.length) return;
+		buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+	}
+
+}
@@ -0,0 +1,678 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+import ilarkesto.persistence.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializes beans field by field into a compact binary format.
+ * <p>
+ * Data starts with a magic number and a format version. Every value is tagged with its kind, strings and
+ * nested objects, collections and maps are length-prefixed. Fields are stored by name, so fields which were
+ * added or removed since the data was written are tolerated, and numbers are converted when a field changed
+ * its type. The fields of each class are looked up once and cached.
+ * <p>
+ * When a fallback serializer is given, data without the magic number is read by it. This way a store can
+ * switch from XML to binary without converting all files at once.
+ */
+public class BinarySerializer extends Serializer {
+
+	private static final Log log = Log.get(BinarySerializer.class);
+
+	static final byte[] MAGIC = { 'I', 'L', 'K', 'B' };
+	static final int FORMAT_VERSION = 1;
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INT = 2;
+	private static final byte LONG = 3;
+	private static final byte BOOLEAN = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte FLOAT = 6;
+	private static final byte SHORT = 7;
+	private static final byte BYTE = 8;
+	private static final byte CHAR = 9;
+	private static final byte BIG_DECIMAL = 10;
+	private static final byte JAVA_DATE = 11;
+	private static final byte ENUM = 12;
+	private static final byte BYTES = 13;
+	private static final byte CONVERTED = 14;
+	private static final byte COLLECTION = 15;
+	private static final byte MAP = 16;
+	private static final byte ARRAY = 17;
+	private static final byte OBJECT = 18;
+
+	private Serializer fallback;
+
+	private Map<String, Class> classesByName = new ConcurrentHashMap<String, Class>();
+	private Map<Class, String> namesByClass = new ConcurrentHashMap<Class, String>();
+	private Map<Class, ClassCodec> codecs = new ConcurrentHashMap<Class, ClassCodec>();
+	private Map<String, ValueConverter> convertersByName = new ConcurrentHashMap<String, ValueConverter>();
+	private Map<Class, ValueConverter> convertersByType = new ConcurrentHashMap<Class, ValueConverter>();
+
+	public BinarySerializer() {
+		this(null);
+	}
+
+	/**
+	 * @param fallback reads data, which was not written by a <code>BinarySerializer</code>
+	 */
+	public BinarySerializer(Serializer fallback) {
+		this.fallback = fallback;
+		registerConverter(new DateConverter());
+		registerConverter(new TimeConverter());
+		registerConverter(new DateAndTimeConverter());
+		registerConverter(new TimePeriodConverter());
+		registerConverter(new MoneyConverter());
+		registerConverter(new EmailAddressConverter());
+	}
+
+	public final void registerConverter(ValueConverter converter) {
+		convertersByName.put(converter.getName(), converter);
+		convertersByType.put(converter.getType(), converter);
+	}
+
+	@Override
+	public void setAlias(String alias, Class clazz) {
+		classesByName.put(alias, clazz);
+		namesByClass.put(clazz, alias);
+		if (fallback != null) fallback.setAlias(alias, clazz);
+	}
+
+	@Override
+	public void serialize(Object bean, OutputStream out) {
+		BinaryOutput output = new BinaryOutput();
+		for (byte b : MAGIC) {
+			output.writeByte(b);
+		}
+		output.writeByte(FORMAT_VERSION);
+		writeValue(bean, output);
+		try {
+			output.writeTo(out);
+			out.flush();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	@Override
+	public Object deserialize(InputStream in) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		IO.copyData(in, buffer);
+		byte[] data = buffer.toByteArray();
+
+		if (!isBinary(data)) {
+			if (fallback == null) throw new RuntimeException("Data not written by " + getClass().getSimpleName());
+			return fallback.deserialize(new ByteArrayInputStream(data));
+		}
+		int version = data[MAGIC.length];
+		if (version > FORMAT_VERSION)
+			throw new RuntimeException("Unsupported format version " + version + ". Supported: " + FORMAT_VERSION);
+
+		BinaryInput input = new BinaryInput(data, MAGIC.length + 1, data.length - MAGIC.length - 1);
+		return readValue(input);
+	}
+
+	public static boolean isBinary(byte[] data) {
+		if (data.length <= MAGIC.length) return false;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data[i] != MAGIC[i]) return false;
+		}
+		return true;
+	}
+
+	// --- writing ---
+
+	private void writeValue(Object value, BinaryOutput out) {
+		if (value == null) {
+			out.writeByte(NULL);
+			return;
+		}
+		Class type = value.getClass();
+		if (type == String.class) {
+			out.writeByte(STRING);
+			out.writeString((String) value);
+		} else if (type == Integer.class) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (type == Long.class) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (type == Boolean.class) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (type == Double.class) {
+			out.writeByte(DOUBLE);
+			out.writeLong(Double.doubleToLongBits((Double) value));
+		} else if (type == Float.class) {
+			out.writeByte(FLOAT);
+			out.writeInt(Float.floatToIntBits((Float) value));
+		} else if (type == Short.class) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) value);
+		} else if (type == Byte.class) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) value);
+		} else if (type == Character.class) {
+			out.writeByte(CHAR);
+			out.writeShort((Character) value);
+		} else if (type == BigDecimal.class) {
+			out.writeByte(BIG_DECIMAL);
+			out.writeString(value.toString());
+		} else if (type == java.util.Date.class) {
+			out.writeByte(JAVA_DATE);
+			out.writeLong(((java.util.Date) value).getTime());
+		} else if (type == byte[].class) {
+			out.writeByte(BYTES);
+			out.writeBytes((byte[]) value);
+		} else if (value instanceof Enum) {
+			out.writeByte(ENUM);
+			out.writeString(getName(((Enum) value).getDeclaringClass()));
+			out.writeString(((Enum) value).name());
+		} else {
+			ValueConverter converter = getConverter(type);
+			if (converter != null) {
+				out.writeByte(CONVERTED);
+				out.writeString(converter.getName());
+				int position = out.reserveLength();
+				converter.write(value, out);
+				out.completeLength(position);
+			} else if (value instanceof Collection) {
+				writeCollection((Collection) value, out);
+			} else if (value instanceof Map) {
+				writeMap((Map) value, out);
+			} else if (type.isArray()) {
+				writeArray(value, out);
+			} else {
+				writeObject(value, out);
+			}
+		}
+	}
+
+	private void writeCollection(Collection collection, BinaryOutput out) {
+		out.writeByte(COLLECTION);
+		out.writeString(collection.getClass().getName());
+		int position = out.reserveLength();
+		out.writeInt(collection.size());
+		for (Object element : collection) {
+			writeValue(element, out);
+		}
+		out.completeLength(position);
+	}
+
+	private void writeMap(Map<?, ?> map, BinaryOutput out) {
+		out.writeByte(MAP);
+		out.writeString(map.getClass().getName());
+		int position = out.reserveLength();
+		out.writeInt(map.size());
+		for (Map.Entry entry : map.entrySet()) {
+			writeValue(entry.getKey(), out);
+			writeValue(entry.getValue(), out);
+		}
+		out.completeLength(position);
+	}
+
+	private void writeArray(Object array, BinaryOutput out) {
+		out.writeByte(ARRAY);
+		out.writeString(getName(array.getClass().getComponentType()));
+		int position = out.reserveLength();
+		int length = Array.getLength(array);
+		out.writeInt(length);
+		for (int i = 0; i < length; i++) {
+			writeValue(Array.get(array, i), out);
+		}
+		out.completeLength(position);
+	}
+
+	private void writeObject(Object object, BinaryOutput out) {
+		ClassCodec codec = getCodec(object.getClass());
+		out.writeByte(OBJECT);
+		out.writeString(codec.name);
+		int position = out.reserveLength();
+		out.writeShort(codec.fields.length);
+		for (FieldCodec field : codec.fields) {
+			out.writeString(field.name);
+			field.write(object, out);
+		}
+		out.completeLength(position);
+	}
+
+	// --- reading ---
+
+	private Object readValue(BinaryInput in) {
+		return readValue(in.readByte(), in);
+	}
+
+	private Object readValue(int tag, BinaryInput in) {
+		switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return in.readString();
+			case INT:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case BOOLEAN:
+				return in.readBoolean();
+			case DOUBLE:
+				return Double.longBitsToDouble(in.readLong());
+			case FLOAT:
+				return Float.intBitsToFloat(in.readInt());
+			case SHORT:
+				return in.readShort();
+			case BYTE:
+				return (byte) in.readByte();
+			case CHAR:
+				return (char) in.readShort();
+			case BIG_DECIMAL:
+				return new BigDecimal(in.readString());
+			case JAVA_DATE:
+				return new java.util.Date(in.readLong());
+			case BYTES:
+				return in.readBytes();
+			case ENUM:
+				return readEnum(in);
+			case CONVERTED:
+				return readConverted(in);
+			case COLLECTION:
+				return readCollection(in);
+			case MAP:
+				return readMap(in);
+			case ARRAY:
+				return readArray(in);
+			case OBJECT:
+				return readObject(in);
+		}
+		throw new IllegalStateException("Unknown value tag " + tag + " at " + (in.getPosition() - 1));
+	}
+
+	private Object readEnum(BinaryInput in) {
+		Class type = getClass(in.readString());
+		String name = in.readString();
+		return Enum.valueOf(type, name);
+	}
+
+	private Object readConverted(BinaryInput in) {
+		String name = in.readString();
+		ValueConverter converter = convertersByName.get(name);
+		if (converter == null) throw new IllegalStateException("No converter registered for: " + name);
+		int length = in.readLength();
+		int end = in.getPosition() + length;
+		Object value = converter.read(in);
+		// converters may have been extended since the data was written
+		in.skip(end - in.getPosition());
+		return value;
+	}
+
+	private Collection readCollection(BinaryInput in) {
+		String typeName = in.readString();
+		in.readLength();
+		int size = in.readInt();
+		Collection collection = newCollection(typeName, size);
+		for (int i = 0; i < size; i++) {
+			collection.add(readValue(in));
+		}
+		return collection;
+	}
+
+	private Map readMap(BinaryInput in) {
+		String typeName = in.readString();
+		in.readLength();
+		int size = in.readInt();
+		Map map = newMap(typeName, size);
+		for (int i = 0; i < size; i++) {
+			Object key = readValue(in);
+			map.put(key, readValue(in));
+		}
+		return map;
+	}
+
+	private Object readArray(BinaryInput in) {
+		Class componentType = getClass(in.readString());
+		in.readLength();
+		int length = in.readInt();
+		Object array = Array.newInstance(componentType, length);
+		for (int i = 0; i < length; i++) {
+			Array.set(array, i, readValue(in));
+		}
+		return array;
+	}
+
+	private Object readObject(BinaryInput in) {
+		String typeName = in.readString();
+		ClassCodec codec = getCodec(getClass(typeName));
+		in.readLength();
+		Object object = codec.newInstance();
+		int count = in.readShort();
+		for (int i = 0; i < count; i++) {
+			String fieldName = in.readString();
+			FieldCodec field = codec.fieldsByName.get(fieldName);
+			if (field == null) {
+				log.debug("Field does not exist anymore. Skipping:", typeName + "." + fieldName);
+				skipValue(in);
+				continue;
+			}
+			field.read(object, in);
+		}
+		return object;
+	}
+
+	private void skipValue(BinaryInput in) {
+		int tag = in.readByte();
+		switch (tag) {
+			case NULL:
+				return;
+			case BOOLEAN:
+			case BYTE:
+				in.skip(1);
+				return;
+			case SHORT:
+			case CHAR:
+				in.skip(2);
+				return;
+			case INT:
+			case FLOAT:
+				in.skip(4);
+				return;
+			case LONG:
+			case DOUBLE:
+			case JAVA_DATE:
+				in.skip(8);
+				return;
+			case STRING:
+			case BIG_DECIMAL:
+			case BYTES:
+				in.skip(in.readLength());
+				return;
+			case ENUM:
+				in.skip(in.readLength());
+				in.skip(in.readLength());
+				return;
+			case CONVERTED:
+			case COLLECTION:
+			case MAP:
+			case ARRAY:
+			case OBJECT:
+				in.skip(in.readLength());
+				in.skip(in.readLength());
+				return;
+		}
+		throw new IllegalStateException("Unknown value tag " + tag + " at " + (in.getPosition() - 1));
+	}
+
+	// --- types ---
+
+	private ValueConverter getConverter(Class type) {
+		for (Class c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			ValueConverter converter = convertersByType.get(c);
+			if (converter != null) return converter;
+		}
+		return null;
+	}
+
+	private String getName(Class type) {
+		String name = namesByClass.get(type);
+		return name != null ? name : type.getName();
+	}
+
+	private Class getClass(String name) {
+		Class type = classesByName.get(name);
+		if (type != null) return type;
+		type = getPrimitiveClass(name);
+		if (type == null) {
+			try {
+				type = Class.forName(name);
+			} catch (ClassNotFoundException ex) {
+				throw new RuntimeException("Unknown class: " + name, ex);
+			}
+		}
+		classesByName.put(name, type);
+		return type;
+	}
+
+	private static Class getPrimitiveClass(String name) {
+		if (name.equals("int")) return int.class;
+		if (name.equals("long")) return long.class;
+		if (name.equals("boolean")) return boolean.class;
+		if (name.equals("double")) return double.class;
+		if (name.equals("float")) return float.class;
+		if (name.equals("short")) return short.class;
+		if (name.equals("byte")) return byte.class;
+		if (name.equals("char")) return char.class;
+		return null;
+	}
+
+	private Collection newCollection(String typeName, int size) {
+		try {
+			return (Collection) getClass(typeName).newInstance();
+		} catch (Exception ex) {
+			// unmodifiable and other collections without default constructor
+			if (typeName.contains("Sorted") || typeName.contains("Tree")) return new TreeSet();
+			if (typeName.contains("Set")) return new HashSet(size);
+			return new ArrayList(size);
+		}
+	}
+
+	private Map newMap(String typeName, int size) {
+		try {
+			return (Map) getClass(typeName).newInstance();
+		} catch (Exception ex) {
+			if (typeName.contains("Sorted") || typeName.contains("Tree")) return new TreeMap();
+			return new LinkedHashMap(size);
+		}
+	}
+
+	private ClassCodec getCodec(Class type) {
+		ClassCodec codec = codecs.get(type);
+		if (codec == null) {
+			codec = new ClassCodec(type, getName(type));
+			codecs.put(type, codec);
+		}
+		return codec;
+	}
+
+	/**
+	 * The persistent fields of a class, including inherited ones. Shadowed fields are qualified with the
+	 * simple name of their declaring class.
+	 */
+	private class ClassCodec {
+
+		private final Class type;
+		private final String name;
+		private final FieldCodec[] fields;
+		private final Map<String, FieldCodec> fieldsByName = new HashMap<String, FieldCodec>();
+		private Constructor constructor;
+
+		public ClassCodec(Class type, String name) {
+			this.type = type;
+			this.name = name;
+			List<FieldCodec> list = new ArrayList<FieldCodec>();
+			for (Class c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) continue;
+					if (field.isSynthetic()) continue;
+					field.setAccessible(true);
+					String fieldName = field.getName();
+					if (fieldsByName.containsKey(fieldName)) fieldName = c.getSimpleName() + "." + fieldName;
+					FieldCodec codec = new FieldCodec(field, fieldName);
+					list.add(codec);
+					fieldsByName.put(fieldName, codec);
+				}
+			}
+			fields = list.toArray(new FieldCodec[list.size()]);
+		}
+
+		public Object newInstance() {
+			try {
+				if (constructor == null) {
+					constructor = type.getDeclaredConstructor();
+					constructor.setAccessible(true);
+				}
+				return constructor.newInstance();
+			} catch (NoSuchMethodException ex) {
+				throw new RuntimeException("Class requires a default constructor: " + type.getName(), ex);
+			} catch (Exception ex) {
+				throw new RuntimeException("Instantiating " + type.getName() + " failed.", ex);
+			}
+		}
+
+	}
+
+	/**
+	 * Reads and writes one field. Primitive fields are accessed without boxing; values of another type are
+	 * converted when possible, otherwise the field keeps its default.
+	 */
+	private class FieldCodec {
+
+		private final Field field;
+		private final String name;
+		private final Class type;
+
+		public FieldCodec(Field field, String name) {
+			this.field = field;
+			this.name = name;
+			this.type = field.getType();
+		}
+
+		public void write(Object object, BinaryOutput out) {
+			try {
+				if (type == int.class) {
+					out.writeByte(INT);
+					out.writeInt(field.getInt(object));
+				} else if (type == long.class) {
+					out.writeByte(LONG);
+					out.writeLong(field.getLong(object));
+				} else if (type == boolean.class) {
+					out.writeByte(BOOLEAN);
+					out.writeBoolean(field.getBoolean(object));
+				} else {
+					writeValue(field.get(object), out);
+				}
+			} catch (IllegalAccessException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+
+		public void read(Object object, BinaryInput in) {
+			int tag = in.readByte();
+			try {
+				if (type == int.class && tag == INT) {
+					field.setInt(object, in.readInt());
+				} else if (type == long.class && tag == LONG) {
+					field.setLong(object, in.readLong());
+				} else if (type == boolean.class && tag == BOOLEAN) {
+					field.setBoolean(object, in.readBoolean());
+				} else {
+					set(object, readValue(tag, in));
+				}
+			} catch (IllegalAccessException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+
+		private void set(Object object, Object value) throws IllegalAccessException {
+			if (value == null) {
+				if (!type.isPrimitive()) field.set(object, null);
+				return;
+			}
+			Object converted = convert(value);
+			if (converted == null) {
+				log.warn("Field type changed, value dropped:", field, "<-", value.getClass().getName());
+				return;
+			}
+			field.set(object, converted);
+		}
+
+		private Object convert(Object value) {
+			Class target = type.isPrimitive() ? getWrapperClass(type) : type;
+			if (target.isInstance(value)) return value;
+			if (value instanceof Number) {
+				Number number = (Number) value;
+				if (target == Integer.class) return number.intValue();
+				if (target == Long.class) return number.longValue();
+				if (target == Double.class) return number.doubleValue();
+				if (target == Float.class) return number.floatValue();
+				if (target == Short.class) return number.shortValue();
+				if (target == Byte.class) return number.byteValue();
+				if (target == BigDecimal.class) return new BigDecimal(number.toString());
+				if (target == String.class) return number.toString();
+			}
+			if (target == String.class && (value instanceof Boolean || value instanceof Character))
+				return value.toString();
+			if (value instanceof Collection && Collection.class.isAssignableFrom(target)) {
+				Collection collection;
+				if (!target.isInterface() && !Modifier.isAbstract(target.getModifiers())) {
+					collection = newCollection(target.getName(), ((Collection) value).size());
+				} else if (SortedSet.class.isAssignableFrom(target)) {
+					collection = new TreeSet();
+				} else if (Set.class.isAssignableFrom(target)) {
+					collection = new HashSet();
+				} else {
+					collection = new ArrayList();
+				}
+				collection.addAll((Collection) value);
+				return target.isInstance(collection) ? collection : null;
+			}
+			if (value instanceof Map && Map.class.isAssignableFrom(target)) {
+				Map map = SortedMap.class.isAssignableFrom(target) ? new TreeMap() : new LinkedHashMap();
+				map.putAll((Map) value);
+				return target.isInstance(map) ? map : null;
+			}
+			return null;
+		}
+
+	}
+
+	private static Class getWrapperClass(Class primitive) {
+		if (primitive == int.class) return Integer.class;
+		if (primitive == long.class) return Long.class;
+		if (primitive == boolean.class) return Boolean.class;
+		if (primitive == double.class) return Double.class;
+		if (primitive == float.class) return Float.class;
+		if (primitive == short.class) return Short.class;
+		if (primitive == byte.class) return Byte.class;
+		if (primitive == char.class) return Character.class;
+		return primitive;
+	}
+
+}
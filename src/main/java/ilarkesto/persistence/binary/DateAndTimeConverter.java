@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+import ilarkesto.core.time.Date;
+import ilarkesto.core.time.DateAndTime;
+import ilarkesto.core.time.Time;
+
+public class DateAndTimeConverter implements ValueConverter<DateAndTime> {
+
+	@Override
+	public Class<DateAndTime> getType() {
+		return DateAndTime.class;
+	}
+
+	@Override
+	public String getName() {
+		return "DateAndTime";
+	}
+
+	@Override
+	public void write(DateAndTime value, BinaryOutput out) {
+		Date date = value.getDate();
+		Time time = value.getTime();
+		out.writeShort(date.getYear());
+		out.writeByte(date.getMonth());
+		out.writeByte(date.getDay());
+		out.writeByte(time.getHour());
+		out.writeByte(time.getMinute());
+		out.writeByte(time.getSecond());
+	}
+
+	@Override
+	public DateAndTime read(BinaryInput in) {
+		int year = in.readShort();
+		int month = in.readByte();
+		int day = in.readByte();
+		int hour = in.readByte();
+		int minute = in.readByte();
+		return new DateAndTime(year, month, day, hour, minute, in.readByte());
+	}
+
+}
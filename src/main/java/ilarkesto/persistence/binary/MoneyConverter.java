@@ -0,0 +1,43 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+import ilarkesto.core.money.Money;
+
+public class MoneyConverter implements ValueConverter<Money> {
+
+	@Override
+	public Class<Money> getType() {
+		return Money.class;
+	}
+
+	@Override
+	public String getName() {
+		return "Money";
+	}
+
+	@Override
+	public void write(Money value, BinaryOutput out) {
+		out.writeLong(value.getAmountAsCent());
+		out.writeString(value.getCurrency());
+	}
+
+	@Override
+	public Money read(BinaryInput in) {
+		long cent = in.readLong();
+		return new Money(0, cent, in.readString());
+	}
+
+}
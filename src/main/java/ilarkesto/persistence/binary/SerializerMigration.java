@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.logging.Log;
+import ilarkesto.integration.xstream.XStreamSerializer;
+import ilarkesto.io.IO;
+import ilarkesto.persistence.Serializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Rewrites the entity and cluster files of a <code>FileEntityStore</code> directory with another serializer.
+ * The store must not be running. The journal is not touched, it is replayed and compacted by the store itself.
+ * <p>
+ * Files keep their names including the <code>.xml</code> suffix, even when they contain binary data.
+ * <code>FileEntityStore</code> names entity and cluster files by that suffix regardless of its serializer, and a
+ * <code>BinarySerializer</code> with a fallback tells the formats apart by the magic number at the start of a file,
+ * so migrated and not yet migrated files can be mixed. Tools reading the files have to do the same instead of
+ * relying on the suffix.
+ */
+public class SerializerMigration {
+
+	private static final Log log = Log.get(SerializerMigration.class);
+
+	private Serializer source;
+	private Serializer target;
+
+	private int fileCount;
+	private long bytesBefore;
+	private long bytesAfter;
+
+	public SerializerMigration(Serializer source, Serializer target) {
+		this.source = source;
+		this.target = target;
+	}
+
+	public void setAlias(String alias, Class clazz) {
+		source.setAlias(alias, clazz);
+		target.setAlias(alias, clazz);
+	}
+
+	public void migrateStore(File storeDir) {
+		RuntimeTracker rt = new RuntimeTracker();
+		File[] typeDirs = storeDir.listFiles();
+		if (typeDirs == null) throw new RuntimeException("Not a directory: " + storeDir.getAbsolutePath());
+		File tmpDir = new File(storeDir.getPath() + "/tmp");
+		for (File typeDir : typeDirs) {
+			if (!typeDir.isDirectory() || typeDir.equals(tmpDir) || typeDir.getName().equals("journal")) continue;
+			File[] files = typeDir.listFiles();
+			if (files == null) continue;
+			for (File file : files) {
+				if (!file.getName().endsWith(".xml")) continue;
+				migrateFile(file, new File(tmpDir.getPath() + "/" + typeDir.getName() + "-" + file.getName()));
+			}
+		}
+		log.info("Entity files migrated:", fileCount, "files,", bytesBefore, "->", bytesAfter, "bytes in",
+			rt.getRuntimeFormated());
+	}
+
+	public void migrateFile(File file, File tmpFile) {
+		Object bean;
+		InputStream in;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		try {
+			bean = source.deserialize(in);
+		} catch (Exception ex) {
+			throw new RuntimeException("Reading file failed: " + file.getAbsolutePath(), ex);
+		} finally {
+			IO.closeQuiet(in);
+		}
+
+		IO.createDirectory(tmpFile.getParentFile());
+		OutputStream out;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		target.serialize(bean, out);
+		IO.close(out);
+		if (tmpFile.length() < 1) throw new RuntimeException("Migrating file caused empty file: " + tmpFile);
+
+		fileCount++;
+		bytesBefore += file.length();
+		bytesAfter += tmpFile.length();
+		IO.move(tmpFile, file, true);
+	}
+
+	public int getFileCount() {
+		return fileCount;
+	}
+
+	public long getBytesBefore() {
+		return bytesBefore;
+	}
+
+	public long getBytesAfter() {
+		return bytesAfter;
+	}
+
+	/**
+	 * Converts a store from XML to binary: <code>storeDir alias=className...</code>. Files which are binary
+	 * already are read as well, so an interrupted migration can be run again.
+	 */
+	public static void main(String[] args) throws ClassNotFoundException {
+		String usage = "Usage: " + SerializerMigration.class.getName() + " storeDir [alias=className ...]";
+		if (args.length < 1) {
+			System.err.println(usage);
+			System.exit(1);
+		}
+		SerializerMigration migration = new SerializerMigration(new BinarySerializer(new XStreamSerializer()),
+				new BinarySerializer());
+		for (int i = 1; i < args.length; i++) {
+			int idx = args[i].indexOf('=');
+			if (idx <= 0 || idx == args[i].length() - 1) {
+				System.err.println("Illegal alias: " + args[i]);
+				System.err.println(usage);
+				System.exit(1);
+			}
+			migration.setAlias(args[i].substring(0, idx), Class.forName(args[i].substring(idx + 1)));
+		}
+		migration.migrateStore(new File(args[0]));
+	}
+
+}
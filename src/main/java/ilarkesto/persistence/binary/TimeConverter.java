@@ -0,0 +1,45 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+import ilarkesto.core.time.Time;
+
+public class TimeConverter implements ValueConverter<Time> {
+
+	@Override
+	public Class<Time> getType() {
+		return Time.class;
+	}
+
+	@Override
+	public String getName() {
+		return "Time";
+	}
+
+	@Override
+	public void write(Time value, BinaryOutput out) {
+		out.writeByte(value.getHour());
+		out.writeByte(value.getMinute());
+		out.writeByte(value.getSecond());
+	}
+
+	@Override
+	public Time read(BinaryInput in) {
+		int hour = in.readByte();
+		int minute = in.readByte();
+		return new Time(hour, minute, in.readByte());
+	}
+
+}
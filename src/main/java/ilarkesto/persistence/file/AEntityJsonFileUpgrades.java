@@ -137,8 +137,11 @@ public abstract class AEntityJsonFileUpgrades {
 			super(entityType, changeInsertionVersion);
 		}
 
+		/**
+		 * Synchronized, since <code>entityFile</code> is shared while entity files are loaded in parallel.
+		 */
 		@Override
-		public final void upgrade(File file, int fileVersion) {
+		public final synchronized void upgrade(File file, int fileVersion) {
 			this.entityFile = file;
 			JsonObject json = JsonObject.loadFile(file, false);
 			boolean changed;
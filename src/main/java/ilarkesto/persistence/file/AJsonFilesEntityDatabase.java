@@ -19,6 +19,7 @@ import ilarkesto.base.Env;
 import ilarkesto.core.base.RuntimeTracker;
 import ilarkesto.core.persistance.ACachingEntityDatabase;
 import ilarkesto.core.persistance.AEntity;
+import ilarkesto.core.persistance.EntityCache;
 import ilarkesto.core.persistance.EntityDoesNotExistException;
 import ilarkesto.core.persistance.Transaction;
 import ilarkesto.di.Context;
@@ -29,21 +30,45 @@ import ilarkesto.io.AFileStorage;
 import ilarkesto.io.IO;
 import ilarkesto.json.JsonMapper;
 import ilarkesto.json.JsonMapper.TypeResolver;
+import ilarkesto.persistence.EntityJournal;
 import ilarkesto.webapp.AWebApplication;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 // TODO background task which checks if transactions are open (running) too long
 public abstract class AJsonFilesEntityDatabase extends ACachingEntityDatabase {
 
+	private static final String SNAPSHOTS_DIR = "snapshots";
+
 	private AFileStorage storage;
 	private GitProject git;
+	private GitCommitter gitCommitter;
+	private JournaledEntityFiles journaledFiles;
+	private long writeBehindDelay;
+	private long snapshotInterval;
+	private int dataVersion;
+
+	/**
+	 * JSON of the entities committed since the last snapshot by type and id, <code>null</code> for deleted
+	 * entities. Serialized when committing, since open transactions modify the cached entities.
+	 */
+	private Map<String, Map<String, byte[]>> snapshotChangesByType = new HashMap<String, Map<String, byte[]>>();
+	private Object snapshotLock = new Object();
 
 	private ThreadLocal<Transaction> tlTransaction = new ThreadLocal<Transaction>();
 	private Collection<Transaction> transactions = Collections.synchronizedCollection(new ArrayList<Transaction>());
@@ -59,11 +84,99 @@ public abstract class AJsonFilesEntityDatabase extends ACachingEntityDatabase {
 		AApplication application = AApplication.get();
 		storage = application.getFileStorage().getSubStorage("entities");
 		git = new GitProject(new Git(), new File(application.getApplicationDataDir()));
+		gitCommitter = new GitCommitter(git, getGitCommitWindow());
+		writeBehindDelay = getWriteBehindDelay();
+		journaledFiles = new JournaledEntityFiles(storage.getFile(null), writeBehindDelay,
+				new JournaledEntityFiles.Listener() {
+
+					@Override
+					public void onWritten(List<String> comments) {
+						if (!git.isInitialized()) return;
+						for (String comment : comments) {
+							gitCommitter.onChanged(comment);
+						}
+					}
+				});
+		snapshotInterval = getSnapshotInterval();
+		if (snapshotInterval > 0 && writeBehindDelay <= 0) {
+			log.warn("Entity snapshots require the journal (write behind delay). Snapshots disabled.");
+			snapshotInterval = 0;
+		}
+		if (snapshotInterval > 0) journaledFiles.retainSegments();
+		if (git.isInitialized()) {
+			// journaled changes are committed with the entity files, after they are written
+			if (writeBehindDelay > 0) ignoreInGit(JournaledEntityFiles.JOURNAL_DIR);
+			if (snapshotInterval > 0) ignoreInGit(SNAPSHOTS_DIR);
+		}
+		int residentEntitiesLimit = getResidentEntitiesLimit();
+		if (residentEntitiesLimit > 0) cache.setResidencyLimit(residentEntitiesLimit, new EntityFileLoader());
 		load();
+		if (snapshotInterval > 0)
+			application.getTaskManager().scheduleWithFixedDelay(new WriteEntitySnapshotsTask(this), snapshotInterval,
+				snapshotInterval);
+		if (isConcurrentReadsEnabled()) {
+			if (residentEntitiesLimit > 0) {
+				log.warn("Concurrent reads are not supported with a resident entities limit");
+			} else {
+				activateConcurrentReads();
+			}
+		}
+	}
+
+	/**
+	 * Serve reads without locking the database, while commits copy the entity cache. Not supported with a
+	 * resident entities limit.
+	 */
+	protected boolean isConcurrentReadsEnabled() {
+		return false;
+	}
+
+	/**
+	 * Maximum number of entities kept in memory. Least recently used entities are evicted and read from their
+	 * files again when requested. <code>0</code> keeps all entities in memory.
+	 */
+	protected int getResidentEntitiesLimit() {
+		return 0;
+	}
+
+	/**
+	 * Milliseconds in which changes are collected into one git commit. Changes are committed by a background
+	 * thread, so transactions do not wait for git.
+	 */
+	protected long getGitCommitWindow() {
+		return 5000;
+	}
+
+	/**
+	 * Milliseconds after which committed changes are written to the entity files. Changes are appended to a
+	 * journal with one fsync per transaction first, which is replayed on startup after a crash. <code>0</code>
+	 * writes the entity files while committing.
+	 */
+	protected long getWriteBehindDelay() {
+		return 0;
+	}
+
+	/**
+	 * Milliseconds between writing packed snapshots of the changed entity types, which are also written on
+	 * shutdown. Startup reads entities from the snapshots and only the entities journaled since from their
+	 * files, without listing the entity directories. Requires the journal (<code>getWriteBehindDelay()</code>),
+	 * which keeps the changes until the snapshots contain them. Entity files changed outside of the application
+	 * are not noticed, the snapshots directory has to be deleted then. <code>0</code> disables snapshots.
+	 */
+	protected long getSnapshotInterval() {
+		return 0;
+	}
+
+	/**
+	 * Number of threads used to upgrade and deserialize entity files on startup. Values greater then
+	 * <code>1</code> load files of all types in parallel.
+	 */
+	protected int getLoadParallelism() {
+		return 1;
 	}
 
 	private void load() {
-		int dataVersion = loadVersion();
+		dataVersion = loadVersion();
 		AEntityJsonFileUpgrades upgrader = createUpgrader();
 		int softwareVersion = upgrader.getSoftwareVersion();
 
@@ -71,37 +184,229 @@ public abstract class AJsonFilesEntityDatabase extends ACachingEntityDatabase {
 			throw new IllegalStateException("Data version " + dataVersion + " is bigger then softwareVersion "
 					+ softwareVersion);
 
-		log.info("Loading entities from", storage, "| data-version", dataVersion, "| software-version", softwareVersion);
+		int parallelism = getLoadParallelism();
+		log.info("Loading entities from", storage, "| data-version", dataVersion, "| software-version", softwareVersion,
+			"| parallelism", parallelism);
 		RuntimeTracker rt = new RuntimeTracker();
+		journaledFiles.replay();
+		// entities changed since the snapshots were taken
+		Map<String, List<EntityJournal.Record>> journaledByType = new HashMap<String, List<EntityJournal.Record>>();
+		int snapshotSegment = 0;
+		if (snapshotInterval > 0) {
+			for (EntityJournal.Record record : journaledFiles.getJournaledChanges().values()) {
+				List<EntityJournal.Record> records = journaledByType.get(record.getAlias());
+				if (records == null) {
+					records = new ArrayList<EntityJournal.Record>();
+					journaledByType.put(record.getAlias(), records);
+				}
+				records.add(record);
+			}
+			snapshotSegment = journaledFiles.rotate();
+		}
 		upgrader.upgradeEntitiesDir(storage.getFile(null), dataVersion);
-		TypeResolver typeResolver = createTypeResolver();
+
+		List<TypeLoad> loads = new ArrayList<TypeLoad>();
 		for (Class<? extends AEntity> type : getEntityTypes()) {
-			int count = 0;
-			File dir = storage.getFile(type.getSimpleName());
-			File[] files = dir.listFiles();
-			if (files != null) {
-				for (File file : files) {
-					if (!file.isFile()) continue;
-					if (!file.getName().endsWith(".json")) continue;
-					upgrader.upgradeEntity(file, type, dataVersion);
-					if (!file.exists()) continue;
-					AEntity entity;
-					try {
-						entity = JsonMapper.deserialize(file, type, typeResolver);
-					} catch (Exception ex) {
-						throw new RuntimeException("Loading entity failed: " + file, ex);
+			PackedEntitySnapshot snapshot = null;
+			// upgrades are applied to the entity files
+			if (snapshotInterval > 0 && dataVersion == softwareVersion) {
+				snapshot = PackedEntitySnapshot.read(getSnapshotFile(type));
+				if (snapshot != null && snapshot.getDataVersion() != dataVersion) snapshot = null;
+			}
+			TypeLoad load;
+			if (snapshot == null) {
+				File[] files = storage.getFile(type.getSimpleName()).listFiles();
+				load = new TypeLoad(type, files == null ? new File[0] : files, upgrader, dataVersion);
+			} else {
+				List<EntityJournal.Record> journaled = journaledByType.get(type.getSimpleName());
+				if (journaled == null) journaled = Collections.emptyList();
+				load = createSnapshotLoad(type, snapshot, journaled, upgrader);
+			}
+			loads.add(load);
+		}
+		final List<LoadFilesTask> tasks = new ArrayList<LoadFilesTask>(loads.size());
+		for (TypeLoad load : loads) {
+			tasks.add(new LoadFilesTask(load, 0, load.files.length));
+		}
+		if (parallelism <= 1) {
+			for (LoadFilesTask task : tasks) {
+				task.compute();
+			}
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				pool.invoke(new RecursiveAction() {
+
+					@Override
+					protected void compute() {
+						invokeAll(tasks);
 					}
-					cache.add(entity);
-					count++;
-				}
+				});
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		int failureCount = 0;
+		RuntimeException failure = null;
+		long bytes = 0;
+		for (TypeLoad load : loads) {
+			for (int i = 0; i < load.files.length; i++) {
+				if (load.failures[i] == null) continue;
+				log.error("Loading entity failed:", load.files[i], load.failures[i]);
+				if (failure == null)
+					failure = new RuntimeException("Loading entity failed: " + load.files[i], load.failures[i]);
+				failureCount++;
+			}
+			bytes += load.bytes.get();
+		}
+		if (failure != null) {
+			log.error(failureCount, "entity files failed to load");
+			throw failure;
+		}
+
+		// publish
+		List<TypeLoad> outdatedSnapshots = new ArrayList<TypeLoad>();
+		for (TypeLoad load : loads) {
+			int count = 0;
+			for (AEntity entity : load.entities) {
+				if (entity == null) continue;
+				cache.add(entity);
+				count++;
 			}
-			log.info("   ", type.getSimpleName(), count);
+			if (load.snapshot == null) {
+				log.info("   ", load.type.getSimpleName(), count);
+			} else {
+				log.info("   ", load.type.getSimpleName(), count, "(" + load.snapshotCount.get(), "from snapshot)");
+			}
+			if (load.snapshot == null || !load.changedIds.isEmpty()) outdatedSnapshots.add(load);
 		}
 
 		saveVersion(softwareVersion);
+		dataVersion = softwareVersion;
+
+		// later snapshots are merged from these and the committed changes
+		if (snapshotInterval > 0) {
+			for (TypeLoad load : outdatedSnapshots) {
+				writeSnapshot(load);
+			}
+			IO.syncDirectory(storage.getFile(SNAPSHOTS_DIR));
+			journaledFiles.releaseSegmentsBefore(snapshotSegment);
+		}
+
+		long time = Math.max(1, rt.getRuntime());
+		log.info(cache.size(), "entities loaded in", rt.getRuntimeFormated(), "|", cache.size() * 1000 / time,
+			"entities/s |", new Bytes(bytes * 1000 / time).toRoundedString() + "/s");
+	}
+
+	/**
+	 * Loads the entities of a type from its snapshot, and the entities journaled since from their files. The
+	 * entity directory is not listed.
+	 */
+	private TypeLoad createSnapshotLoad(Class<? extends AEntity> type, PackedEntitySnapshot snapshot,
+			List<EntityJournal.Record> journaled, AEntityJsonFileUpgrades upgrader) {
+		Set<String> ids = new LinkedHashSet<String>(snapshot.getIds());
+		Set<String> changedIds = new HashSet<String>();
+		for (EntityJournal.Record record : journaled) {
+			changedIds.add(record.getId());
+			if (record.isDelete()) {
+				ids.remove(record.getId());
+			} else {
+				ids.add(record.getId());
+			}
+		}
+		File[] files = new File[ids.size()];
+		int i = 0;
+		for (String id : ids) {
+			files[i++] = getFile(type, id);
+		}
+		TypeLoad load = new TypeLoad(type, files, upgrader, dataVersion);
+		load.snapshot = snapshot;
+		load.changedIds = changedIds;
+		return load;
+	}
+
+	/**
+	 * Writes packed snapshots of the types changed since their last snapshot. The previous snapshot is merged
+	 * with the JSON serialized when committing the changes, so changes of open transactions are not included.
+	 * The journal segments with the changes are released afterwards.
+	 */
+	public void writeSnapshots() {
+		synchronized (snapshotLock) {
+			RuntimeTracker rt = new RuntimeTracker();
+			long time;
+			Map<String, Map<String, byte[]>> changesByType;
+			int segment;
+			synchronized (this) {
+				time = System.currentTimeMillis();
+				changesByType = snapshotChangesByType;
+				snapshotChangesByType = new HashMap<String, Map<String, byte[]>>();
+				// changes committed later are journaled in later segments
+				segment = journaledFiles.rotate();
+			}
+
+			int count = 0;
+			for (Class<? extends AEntity> type : getEntityTypes()) {
+				Map<String, byte[]> changes = changesByType.get(type.getSimpleName());
+				if (changes == null) continue;
+
+				File file = getSnapshotFile(type);
+				PackedEntitySnapshot previous = PackedEntitySnapshot.read(file);
+				if (previous == null || previous.getDataVersion() != dataVersion) {
+					// without a snapshot the entity files are loaded
+					log.warn("Entity snapshot missing, written on next startup:", file);
+					continue;
+				}
+				Map<String, byte[]> dataById = new LinkedHashMap<String, byte[]>(previous.size() + changes.size());
+				for (String id : previous.getIds()) {
+					if (changes.containsKey(id)) continue;
+					dataById.put(id, previous.getData(id));
+				}
+				for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+					if (change.getValue() != null) dataById.put(change.getKey(), change.getValue());
+				}
+				PackedEntitySnapshot.write(file, dataVersion, time, dataById);
+				count += dataById.size();
+			}
+			IO.syncDirectory(storage.getFile(SNAPSHOTS_DIR));
+			journaledFiles.releaseSegmentsBefore(segment);
+			log.info("Entity snapshots written:", count, "entities in", rt.getRuntimeFormated());
+		}
+	}
+
+	/**
+	 * Writes the snapshot of a type from the entities just loaded, before any transaction could modify them.
+	 */
+	private void writeSnapshot(TypeLoad load) {
+		long time = System.currentTimeMillis();
+		Map<String, byte[]> dataById = new LinkedHashMap<String, byte[]>();
+		for (AEntity entity : load.entities) {
+			if (entity == null) continue;
+			dataById.put(entity.getId(), serialize(entity));
+		}
+		PackedEntitySnapshot.write(getSnapshotFile(load.type), dataVersion, time, dataById);
+		log.info("Entity snapshot written:", load.type.getSimpleName(), dataById.size());
+	}
 
-		log.info(cache.size(), "entities loaded in", rt.getRuntimeFormated());
+	private void addSnapshotChanges(Collection<EntityJournal.Record> records) {
+		if (snapshotInterval <= 0) return;
+		for (EntityJournal.Record record : records) {
+			Map<String, byte[]> changes = snapshotChangesByType.get(record.getAlias());
+			if (changes == null) {
+				changes = new HashMap<String, byte[]>();
+				snapshotChangesByType.put(record.getAlias(), changes);
+			}
+			changes.put(record.getId(), record.isDelete() ? null : record.getData());
+		}
+	}
 
+	private File getSnapshotFile(Class type) {
+		return storage.getFile(SNAPSHOTS_DIR + "/" + type.getSimpleName() + ".snapshot");
+	}
+
+	private void ignoreInGit(String dir) {
+		File gitignore = storage.getFile(dir + "/.gitignore");
+		if (!gitignore.exists()) IO.writeFile(gitignore, "*\n", IO.UTF_8);
 	}
 
 	private void saveVersion(int version) {
@@ -122,7 +427,21 @@ public abstract class AJsonFilesEntityDatabase extends ACachingEntityDatabase {
 	protected synchronized void onUpdate(Collection<AEntity> modified, Collection<String> deleted,
 			Map<String, Map<String, String>> modifiedPropertiesByEntityIds, Runnable callback) {
 		if ((modified == null || modified.isEmpty()) && (deleted == null || deleted.isEmpty())) return;
-		List<File> files = new ArrayList<File>();
+		Collection<AEntity> created;
+		if (writeBehindDelay > 0) {
+			created = appendToJournal(modified, deleted);
+		} else {
+			created = writeFiles(modified, deleted);
+			if (git.isInitialized()) gitCommitter.onChanged(Context.get().toString());
+		}
+
+		AWebApplication.get().broadcastEntityChanges(deleted, (Collection) modified, (Collection) created,
+			modifiedPropertiesByEntityIds);
+
+		if (callback != null) callback.run();
+	}
+
+	private Collection<AEntity> writeFiles(Collection<AEntity> modified, Collection<String> deleted) {
 		RuntimeTracker rt = new RuntimeTracker();
 		int saveCount = 0;
 		Collection<AEntity> created = new ArrayList<AEntity>();
@@ -132,7 +451,6 @@ public abstract class AJsonFilesEntityDatabase extends ACachingEntityDatabase {
 				if (!file.exists()) {
 					created.add(entity);
 				}
-				files.add(file);
 				log.debug("Saving entity:", entity.getClass().getSimpleName(), file.getName(), "in", file.getParent());
 				try {
 					JsonMapper.serialize(entity, file);
@@ -152,29 +470,193 @@ public abstract class AJsonFilesEntityDatabase extends ACachingEntityDatabase {
 					continue;
 				}
 				File file = getFile(entity);
-				files.add(file);
 				log.debug("Deleting entity", entity.getClass().getSimpleName(), file);
 				IO.delete(file);
 				deleteCount++;
 			}
 		}
 		log.info("Entity changes saved:", rt.getRuntimeFormated(), "(" + saveCount, "saved,", deleteCount, "deleted)");
+		return created;
+	}
 
-		if (git.isInitialized()) {
-			git.addAll();
-			git.commit(Context.get().toString());
+	/**
+	 * Serializes the changes and appends them to the journal with one fsync. The entity files are written in the
+	 * background.
+	 */
+	private Collection<AEntity> appendToJournal(Collection<AEntity> modified, Collection<String> deleted) {
+		RuntimeTracker rt = new RuntimeTracker();
+		Collection<AEntity> created = new ArrayList<AEntity>();
+		if (modified != null) {
+			for (AEntity entity : modified) {
+				if (!isEntityFileExisting(entity)) created.add(entity);
+			}
+		}
+		List<EntityJournal.Record> records = createRecords(modified, deleted);
+		journaledFiles.append(records, Context.get().toString());
+		addSnapshotChanges(records);
+		log.info("Entity changes journaled:", rt.getRuntimeFormated(), "(" + records.size(), "changes)");
+		return created;
+	}
+
+	private List<EntityJournal.Record> createRecords(Collection<AEntity> modified, Collection<String> deleted) {
+		List<EntityJournal.Record> records = new ArrayList<EntityJournal.Record>();
+		if (modified != null) {
+			for (AEntity entity : modified) {
+				records.add(EntityJournal.Record.save(entity.getClass().getSimpleName(), entity.getId(),
+					serialize(entity)));
+			}
+		}
+		if (deleted != null) {
+			for (String id : deleted) {
+				AEntity entity;
+				try {
+					entity = cache.get(id);
+				} catch (EntityDoesNotExistException ex) {
+					continue;
+				}
+				records.add(EntityJournal.Record.delete(entity.getClass().getSimpleName(), id));
+			}
 		}
+		return records;
+	}
 
-		AWebApplication webApplication = AWebApplication.get();
-		webApplication.deleteFromClients(deleted);
-		webApplication.sendToAllIfTracking((Collection) modified);
-		webApplication.sendToAll((Collection) created);
+	private static byte[] serialize(AEntity entity) {
+		try {
+			return JsonMapper.serialize(entity).getBytes(IO.UTF_8);
+		} catch (UnsupportedEncodingException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
 
-		if (callback != null) callback.run();
+	private boolean isEntityFileExisting(AEntity entity) {
+		EntityJournal.Record unwritten = journaledFiles.getUnwritten(entity.getId());
+		if (unwritten != null) return !unwritten.isDelete();
+		return getFile(entity).exists();
 	}
 
 	private File getFile(AEntity entity) {
-		return storage.getFile(entity.getClass().getSimpleName() + "/" + entity.getId() + ".json");
+		return getFile(entity.getClass(), entity.getId());
+	}
+
+	private File getFile(Class type, String id) {
+		return storage.getFile(type.getSimpleName() + "/" + id + ".json");
+	}
+
+	/**
+	 * Files of one type and the entities loaded from them, at the same positions.
+	 */
+	private static class TypeLoad {
+
+		private final Class<? extends AEntity> type;
+		private final File[] files;
+		private final AEntityJsonFileUpgrades upgrader;
+		private final int dataVersion;
+		private final AEntity[] entities;
+		private final Exception[] failures;
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong snapshotCount = new AtomicLong();
+		private PackedEntitySnapshot snapshot;
+		private Set<String> changedIds = Collections.emptySet();
+
+		public TypeLoad(Class<? extends AEntity> type, File[] files, AEntityJsonFileUpgrades upgrader, int dataVersion) {
+			this.type = type;
+			this.files = files;
+			this.upgrader = upgrader;
+			this.dataVersion = dataVersion;
+			this.entities = new AEntity[files.length];
+			this.failures = new Exception[files.length];
+		}
+
+	}
+
+	/**
+	 * Upgrades and deserializes a range of the files of a type. Ranges bigger then <code>THRESHOLD</code> are
+	 * split, when running in a fork-join pool.
+	 */
+	private class LoadFilesTask extends RecursiveAction {
+
+		private static final int THRESHOLD = 64;
+
+		private final TypeLoad load;
+		private final int from;
+		private final int to;
+
+		public LoadFilesTask(TypeLoad load, int from, int to) {
+			this.load = load;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > THRESHOLD && inForkJoinPool()) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new LoadFilesTask(load, from, middle), new LoadFilesTask(load, middle, to));
+			} else {
+				TypeResolver typeResolver = createTypeResolver();
+				for (int i = from; i < to; i++) {
+					loadFile(i, typeResolver);
+				}
+			}
+		}
+
+		private void loadFile(int index, TypeResolver typeResolver) {
+			File file = load.files[index];
+			try {
+				if (load.snapshot != null && loadFromSnapshot(index, typeResolver)) return;
+				if (!file.isFile()) return;
+				if (!file.getName().endsWith(".json")) return;
+				load.upgrader.upgradeEntity(file, load.type, load.dataVersion);
+				if (!file.exists()) return;
+				load.bytes.addAndGet(file.length());
+				load.entities[index] = JsonMapper.deserialize(file, load.type, typeResolver);
+			} catch (Exception ex) {
+				load.failures[index] = ex;
+			}
+		}
+
+		/**
+		 * Deserializes the entity from the snapshot, if the snapshot contains it and it was not journaled after
+		 * the snapshot was taken.
+		 */
+		private boolean loadFromSnapshot(int index, TypeResolver typeResolver) throws Exception {
+			String name = load.files[index].getName();
+			String id = name.substring(0, name.length() - ".json".length());
+			if (load.changedIds.contains(id)) return false;
+			byte[] data = load.snapshot.getData(id);
+			if (data == null) return false;
+			load.bytes.addAndGet(data.length);
+			load.entities[index] = JsonMapper.deserialize(new String(data, IO.UTF_8), load.type, typeResolver);
+			load.snapshotCount.incrementAndGet();
+			return true;
+		}
+
+	}
+
+	private class EntityFileLoader implements EntityCache.Loader {
+
+		private TypeResolver typeResolver;
+
+		@Override
+		public AEntity loadEntity(Class type, String id) {
+			if (typeResolver == null) typeResolver = createTypeResolver();
+			EntityJournal.Record unwritten = journaledFiles.getUnwritten(id);
+			if (unwritten != null && !unwritten.isDelete()) {
+				try {
+					return (AEntity) JsonMapper.deserialize(new String(unwritten.getData(), IO.UTF_8), type,
+						typeResolver);
+				} catch (Exception ex) {
+					throw new RuntimeException("Loading evicted entity from journal failed: " + unwritten, ex);
+				}
+			}
+			File file = getFile(type, id);
+			try {
+				return (AEntity) JsonMapper.deserialize(file, type, typeResolver);
+			} catch (Exception ex) {
+				throw new RuntimeException("Loading evicted entity failed: " + file, ex);
+			}
+		}
+
 	}
 
 	@Override
@@ -210,6 +692,17 @@ public abstract class AJsonFilesEntityDatabase extends ACachingEntityDatabase {
 		return false;
 	}
 
+	/**
+	 * Writes journaled changes to the entity files and commits pending changes to git.
+	 */
+	@Override
+	public void shutdown() {
+		// before closing the journal, which releases the segments contained in the snapshots
+		if (snapshotInterval > 0) writeSnapshots();
+		journaledFiles.close();
+		gitCommitter.shutdown();
+	}
+
 	@Override
 	public String createInfo() {
 		StringBuilder sb = new StringBuilder();
@@ -222,7 +715,20 @@ public abstract class AJsonFilesEntityDatabase extends ACachingEntityDatabase {
 			sb.append("* ").append(entry.getKey().getSimpleName()).append(": ").append(entry.getValue()).append("\n");
 		}
 
-		if (git.isInitialized()) sb.append("\nGit status: ").append(git.status());
+		if (getResidentEntitiesLimit() > 0) {
+			sb.append("\nResident entities: ").append(cache.getResidentCount()).append(" of ")
+					.append(getResidentEntitiesLimit()).append(" (").append(cache.getEvictionCount())
+					.append(" evicted, ").append(cache.getReloadCount()).append(" reloaded)\n");
+		}
+
+		sb.append("\nQuery cache: ").append(getQueryCache()).append("\n");
+
+		if (writeBehindDelay > 0) sb.append("\nEntity journal: ").append(journaledFiles).append("\n");
+
+		if (git.isInitialized()) {
+			sb.append("\nGit commits: ").append(gitCommitter).append("\n");
+			sb.append("\nGit status: ").append(git.status());
+		}
 
 		return sb.toString();
 	}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.file;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.integration.git.GitProject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commits changes of a git working directory in the background. All changes reported within the commit window
+ * are committed together, so transactions do not wait for git. <code>flush()</code> commits pending changes
+ * immediately.
+ */
+public class GitCommitter {
+
+	private static final Log log = Log.get(GitCommitter.class);
+
+	private final GitProject git;
+	private final long window;
+
+	private final Object commitLock = new Object();
+
+	private List<String> pendingComments = new ArrayList<String>();
+	private long pendingSince;
+	private long retryAt;
+	private Thread thread;
+	private boolean shutdown;
+
+	private long commitCount;
+	private long changeCount;
+	private long lastLag;
+	private long maxLag;
+
+	/**
+	 * @param window milliseconds to collect changes after the first uncommitted change
+	 */
+	public GitCommitter(GitProject git, long window) {
+		this.git = git;
+		this.window = window;
+	}
+
+	/**
+	 * Reports changed files. They are committed with the given comment by the background thread.
+	 */
+	public synchronized void onChanged(String comment) {
+		pendingComments.add(comment);
+		if (pendingSince == 0) pendingSince = System.currentTimeMillis();
+		changeCount++;
+		if (shutdown) {
+			log.warn("Change reported after shutdown:", comment);
+			return;
+		}
+		if (thread == null) {
+			thread = new Thread(new Runner(), "git-committer " + git.getDir().getName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Commits all pending changes in the calling thread. When committing fails, the changes stay pending. The
+	 * background thread retries after the commit window.
+	 */
+	public void flush() {
+		commitPending();
+	}
+
+	private boolean commitPending() {
+		synchronized (commitLock) {
+			List<String> comments;
+			long since;
+			synchronized (this) {
+				if (pendingComments.isEmpty()) return true;
+				comments = pendingComments;
+				since = pendingSince;
+				pendingComments = new ArrayList<String>();
+				pendingSince = 0;
+			}
+			try {
+				git.addAll();
+				git.commit(createComment(comments));
+			} catch (Exception ex) {
+				log.error("Committing entity changes to git failed:", comments, ex);
+				synchronized (this) {
+					comments.addAll(pendingComments);
+					pendingComments = comments;
+					pendingSince = since;
+					retryAt = System.currentTimeMillis() + window;
+				}
+				return false;
+			}
+			long lag = System.currentTimeMillis() - since;
+			synchronized (this) {
+				commitCount++;
+				lastLag = lag;
+				if (lag > maxLag) maxLag = lag;
+			}
+			log.debug("Git commit:", comments.size(), "changes, lag:", lag, "ms");
+			return true;
+		}
+	}
+
+	/**
+	 * Stops the background thread and commits all pending changes.
+	 */
+	public void shutdown() {
+		Thread t;
+		synchronized (this) {
+			shutdown = true;
+			t = thread;
+			notifyAll();
+		}
+		if (t != null) {
+			try {
+				t.join(window + 60000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!commitPending()) log.error("Uncommitted entity changes left on shutdown:", getPendingCount());
+	}
+
+	private String createComment(List<String> comments) {
+		if (comments.size() == 1) return comments.get(0);
+		StringBuilder sb = new StringBuilder();
+		sb.append(comments.size()).append(" transactions\n");
+		for (String comment : comments) {
+			sb.append("\n").append(comment);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Milliseconds since the oldest uncommitted change, <code>0</code> if all changes are committed.
+	 */
+	public synchronized long getLag() {
+		return pendingSince == 0 ? 0 : System.currentTimeMillis() - pendingSince;
+	}
+
+	public synchronized long getMaxLag() {
+		return maxLag;
+	}
+
+	public synchronized long getCommitCount() {
+		return commitCount;
+	}
+
+	public synchronized int getPendingCount() {
+		return pendingComments.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return commitCount + " commits for " + changeCount + " changes, " + pendingComments.size()
+				+ " pending, lag: " + getLag() + " ms (last " + lastLag + " ms, max " + maxLag + " ms)";
+	}
+
+	private class Runner implements Runnable {
+
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (GitCommitter.this) {
+					if (shutdown) return;
+					if (pendingSince == 0) {
+						waitForChanges(0);
+						continue;
+					}
+					long wait = Math.max(pendingSince + window, retryAt) - System.currentTimeMillis();
+					if (wait > 0) {
+						waitForChanges(wait);
+						continue;
+					}
+				}
+				commitPending();
+			}
+		}
+
+		private void waitForChanges(long timeout) {
+			try {
+				GitCommitter.this.wait(timeout);
+			} catch (InterruptedException ex) {
+				shutdown = true;
+			}
+		}
+
+	}
+
+}
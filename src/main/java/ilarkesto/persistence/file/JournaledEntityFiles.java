@@ -0,0 +1,349 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.file;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+import ilarkesto.persistence.EntityJournal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes entity files of a directory (<code>&lt;type&gt;/&lt;id&gt;.json</code>) behind. The changes of a
+ * transaction are appended to an <code>EntityJournal</code> with one fsync, the entity files are written by a
+ * background thread <code>delay</code> milliseconds later. Journal segments are deleted after their files are
+ * written, or kept until they are released when retaining. After a crash, <code>replay()</code> writes the files
+ * of all journaled changes.
+ */
+public class JournaledEntityFiles {
+
+	private static final Log log = Log.get(JournaledEntityFiles.class);
+
+	public static final String JOURNAL_DIR = "journal";
+
+	private final File dir;
+	private final long delay;
+	private final Listener listener;
+	private final EntityJournal journal;
+
+	private Map<String, EntityJournal.Record> pendingById = new LinkedHashMap<String, EntityJournal.Record>();
+	private Map<String, EntityJournal.Record> writingById = Collections.emptyMap();
+	private List<String> pendingComments = new ArrayList<String>();
+	private long firstPendingTime;
+	private boolean flushRequested;
+	private boolean closed;
+	private RuntimeException failure;
+	private Thread thread;
+
+	private boolean retaining;
+	private int writtenSegment;
+	private int releasedSegment;
+
+	private long journaledRecords;
+	private long writtenRecords;
+	private long lastLag;
+
+	public JournaledEntityFiles(File dir, long delay, Listener listener) {
+		this.dir = dir;
+		this.delay = delay;
+		this.listener = listener;
+		this.journal = new EntityJournal(new File(dir.getPath() + "/" + JOURNAL_DIR));
+	}
+
+	/**
+	 * Appends the changes of one transaction to the journal and returns when they are on disk. Must be called
+	 * in commit order.
+	 */
+	public void append(Collection<EntityJournal.Record> records, String comment) {
+		if (records.isEmpty()) return;
+		long batch;
+		synchronized (this) {
+			if (closed) throw new IllegalStateException("Journaled entity files closed: " + dir);
+			batch = journal.append(records);
+			if (pendingById.isEmpty()) firstPendingTime = System.currentTimeMillis();
+			for (EntityJournal.Record record : records) {
+				pendingById.put(record.getId(), record);
+			}
+			pendingComments.add(comment);
+			journaledRecords += records.size();
+			if (thread == null) startThread();
+			notifyAll();
+		}
+		journal.sync(batch);
+	}
+
+	/**
+	 * Keeps journal segments after their files are written, until <code>releaseSegmentsBefore()</code> is
+	 * called. So the journal lists all entities changed since a snapshot of the entities was taken. Must be
+	 * called before <code>replay()</code>.
+	 */
+	public synchronized void retainSegments() {
+		retaining = true;
+	}
+
+	/**
+	 * Starts a new journal segment. All changes appended before are in earlier segments.
+	 */
+	public synchronized int rotate() {
+		return journal.rotate();
+	}
+
+	/**
+	 * Allows deleting the retained segments before <code>segment</code>, as soon as their files are written.
+	 */
+	public synchronized void releaseSegmentsBefore(int segment) {
+		releasedSegment = segment;
+		journal.deleteSegmentsBefore(Math.min(writtenSegment, releasedSegment));
+	}
+
+	/**
+	 * The latest change of each entity in the journal, including retained changes, which are written already.
+	 */
+	public synchronized Map<String, EntityJournal.Record> getJournaledChanges() {
+		Map<String, EntityJournal.Record> recordsById = new LinkedHashMap<String, EntityJournal.Record>();
+		if (journal.isEmpty()) return recordsById;
+		for (EntityJournal.Record record : journal.readAll()) {
+			recordsById.put(record.getId(), record);
+		}
+		return recordsById;
+	}
+
+	private synchronized void onSegmentsWritten(int segment) {
+		writtenSegment = segment;
+		journal.deleteSegmentsBefore(retaining ? Math.min(writtenSegment, releasedSegment) : writtenSegment);
+	}
+
+	/**
+	 * Latest journaled change of an entity, which is not written to its file yet. <code>null</code> if the
+	 * entity file is current.
+	 */
+	public synchronized EntityJournal.Record getUnwritten(String id) {
+		EntityJournal.Record record = pendingById.get(id);
+		if (record != null) return record;
+		return writingById.get(id);
+	}
+
+	/**
+	 * Blocks until all appended changes are written to their files.
+	 *
+	 * @throws RuntimeException when writing failed. The changes stay in the journal and are retried.
+	 */
+	public synchronized void flush() {
+		while (!pendingById.isEmpty() || !writingById.isEmpty()) {
+			if (failure != null) throw new RuntimeException("Writing journaled entity files failed: " + dir, failure);
+			flushRequested = true;
+			notifyAll();
+			try {
+				wait(1000);
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Flushes and stops the writer thread.
+	 */
+	public void close() {
+		flush();
+		Thread t;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			t = thread;
+		}
+		if (t != null) {
+			try {
+				t.join();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+		journal.close();
+	}
+
+	/**
+	 * Writes the files of all changes left in the journal by a crash. Must be called before the entity files are
+	 * read.
+	 *
+	 * @return number of replayed changes
+	 */
+	public synchronized int replay() {
+		if (journal.isEmpty()) return 0;
+		Map<String, EntityJournal.Record> recordsById = new LinkedHashMap<String, EntityJournal.Record>();
+		List<EntityJournal.Record> records = journal.readAll();
+		if (records.isEmpty()) {
+			onSegmentsWritten(journal.rotate());
+			return 0;
+		}
+		for (EntityJournal.Record record : records) {
+			recordsById.put(record.getId(), record);
+		}
+		int segment = journal.rotate();
+		writeFiles(recordsById.values());
+		onSegmentsWritten(segment);
+		log.info("Entity journal replayed:", records.size(), "changes,", recordsById.size(), "files written");
+		return records.size();
+	}
+
+	private void startThread() {
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (writeNext()) {}
+			}
+		});
+		thread.setName("journaled-entity-files " + dir.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private boolean writeNext() {
+		Collection<EntityJournal.Record> records;
+		List<String> comments;
+		long since;
+		int segment;
+		synchronized (this) {
+			try {
+				while (pendingById.isEmpty()) {
+					if (closed) return false;
+					wait();
+				}
+				long due = firstPendingTime + delay;
+				long now = System.currentTimeMillis();
+				while (!flushRequested && !closed && now < due) {
+					wait(due - now);
+					now = System.currentTimeMillis();
+				}
+			} catch (InterruptedException ex) {
+				return false;
+			}
+			writingById = pendingById;
+			records = writingById.values();
+			comments = pendingComments;
+			since = firstPendingTime;
+			pendingById = new LinkedHashMap<String, EntityJournal.Record>();
+			pendingComments = new ArrayList<String>();
+			flushRequested = false;
+			// inside the lock, so that the new segment contains only changes which are not taken yet
+			segment = journal.rotate();
+		}
+
+		try {
+			writeFiles(records);
+		} catch (RuntimeException ex) {
+			log.error("Writing journaled entity files failed. Retrying in", delay, "ms:", dir, ex);
+			synchronized (this) {
+				failure = ex;
+				Map<String, EntityJournal.Record> requeued = writingById;
+				requeued.putAll(pendingById);
+				pendingById = requeued;
+				comments.addAll(pendingComments);
+				pendingComments = comments;
+				writingById = Collections.emptyMap();
+				firstPendingTime = since;
+				notifyAll();
+				try {
+					wait(Math.max(delay, 1000));
+				} catch (InterruptedException ex1) {
+					return false;
+				}
+			}
+			return true;
+		}
+		onSegmentsWritten(segment);
+
+		synchronized (this) {
+			failure = null;
+			writingById = Collections.emptyMap();
+			writtenRecords += records.size();
+			lastLag = System.currentTimeMillis() - since;
+			notifyAll();
+		}
+		if (listener != null) listener.onWritten(comments);
+		return true;
+	}
+
+	/**
+	 * Writes the entity files and syncs their directories, so that renames and deletions are on disk before the
+	 * journal segments are deleted.
+	 */
+	private void writeFiles(Collection<EntityJournal.Record> records) {
+		Set<File> dirs = new HashSet<File>();
+		for (EntityJournal.Record record : records) {
+			File file = getFile(record.getAlias(), record.getId());
+			if (record.isDelete()) {
+				IO.delete(file);
+			} else {
+				writeFile(file, record.getData());
+			}
+			dirs.add(file.getParentFile());
+		}
+		for (File dir : dirs) {
+			IO.syncDirectory(dir);
+		}
+	}
+
+	/**
+	 * Writes and syncs a temporary file, then moves it over the entity file.
+	 */
+	private void writeFile(File file, byte[] data) {
+		File tempFile = new File(file.getPath() + ".tmp");
+		IO.createDirectory(file.getParentFile());
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tempFile);
+			out.write(data);
+			out.getFD().sync();
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing entity file failed: " + file, ex);
+		} finally {
+			IO.closeQuiet(out);
+		}
+		IO.move(tempFile, file, true);
+	}
+
+	private File getFile(String type, String id) {
+		return new File(dir.getPath() + "/" + type + "/" + id + ".json");
+	}
+
+	@Override
+	public synchronized String toString() {
+		return journaledRecords + " changes journaled, " + writtenRecords + " written, "
+				+ (pendingById.size() + writingById.size()) + " pending, " + journal.getSyncCount()
+				+ " journal syncs, last lag: " + lastLag + " ms";
+	}
+
+	public static interface Listener {
+
+		/**
+		 * Called after the entity files of the transactions with the given comments were written.
+		 */
+		void onWritten(List<String> comments);
+
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.file;
+
+import ilarkesto.core.logging.Log;
+import ilarkesto.io.IO;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The entity files of one type packed into one file, which is read memory-mapped. Layout: header (magic, data
+ * version, creation time), length-prefixed JSON records, id table (id, offset, length) and a footer with the
+ * offset of the id table and a checksum of everything before it.
+ */
+public class PackedEntitySnapshot {
+
+	private static final Log log = Log.get(PackedEntitySnapshot.class);
+
+	private static final int MAGIC = 0x494C4B53;
+	private static final int FOOTER_LENGTH = 8 + 8 + 4;
+
+	private final int dataVersion;
+	private final long time;
+	private final ByteBuffer buffer;
+	private final Map<String, Integer> indexesById;
+	private final int[] offsets;
+	private final int[] lengths;
+
+	private PackedEntitySnapshot(int dataVersion, long time, ByteBuffer buffer, Map<String, Integer> indexesById,
+			int[] offsets, int[] lengths) {
+		this.dataVersion = dataVersion;
+		this.time = time;
+		this.buffer = buffer;
+		this.indexesById = indexesById;
+		this.offsets = offsets;
+		this.lengths = lengths;
+	}
+
+	/**
+	 * JSON of an entity, <code>null</code> if the snapshot does not contain it. Thread-safe.
+	 */
+	public byte[] getData(String id) {
+		Integer index = indexesById.get(id);
+		if (index == null) return null;
+		byte[] data = new byte[lengths[index]];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offsets[index]);
+		view.get(data);
+		return data;
+	}
+
+	public Set<String> getIds() {
+		return indexesById.keySet();
+	}
+
+	public int size() {
+		return offsets.length;
+	}
+
+	public int getDataVersion() {
+		return dataVersion;
+	}
+
+	/**
+	 * Time when the entities were taken.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Maps and validates a snapshot file.
+	 *
+	 * @return <code>null</code> if the file does not exist or is incomplete
+	 */
+	public static PackedEntitySnapshot read(File file) {
+		if (!file.exists()) return null;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("Snapshot too big: " + size);
+			if (size < 16 + FOOTER_LENGTH) throw new IOException("Snapshot too small: " + size);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			int footer = (int) size - FOOTER_LENGTH;
+			long tableOffset = buffer.getLong(footer);
+			long checksum = buffer.getLong(footer + 8);
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(footer + 16) != MAGIC)
+				throw new IOException("Not a snapshot file");
+			if (tableOffset < 16 || tableOffset > footer) throw new IOException("Illegal table offset: " + tableOffset);
+			CRC32 crc = new CRC32();
+			byte[] chunk = new byte[64 * 1024];
+			ByteBuffer view = buffer.duplicate();
+			view.position(0);
+			view.limit(footer);
+			while (view.hasRemaining()) {
+				int length = Math.min(chunk.length, view.remaining());
+				view.get(chunk, 0, length);
+				crc.update(chunk, 0, length);
+			}
+			if (crc.getValue() != checksum) throw new IOException("Checksum mismatch");
+
+			int dataVersion = buffer.getInt(4);
+			long time = buffer.getLong(8);
+			view = buffer.duplicate();
+			view.position((int) tableOffset);
+			int count = view.getInt();
+			Map<String, Integer> indexesById = new HashMap<String, Integer>(count * 4 / 3 + 1);
+			int[] offsets = new int[count];
+			int[] lengths = new int[count];
+			for (int i = 0; i < count; i++) {
+				byte[] id = new byte[view.getShort() & 0xFFFF];
+				view.get(id);
+				indexesById.put(new String(id, IO.UTF_8), i);
+				offsets[i] = view.getInt();
+				lengths[i] = view.getInt();
+			}
+			return new PackedEntitySnapshot(dataVersion, time, buffer, indexesById, offsets, lengths);
+		} catch (Exception ex) {
+			log.warn("Reading entity snapshot failed. Loading entity files:", file, ex);
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {}
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot to a temporary file, syncs it and replaces the previous one.
+	 *
+	 * @param time when the entities were taken
+	 */
+	public static void write(File file, int dataVersion, long time, Map<String, byte[]> dataById) {
+		File tempFile = new File(file.getPath() + ".tmp");
+		IO.createDirectory(file.getParentFile());
+		FileOutputStream fileOut = null;
+		try {
+			fileOut = new FileOutputStream(tempFile);
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOut,
+					crc), 64 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(dataVersion);
+			out.writeLong(time);
+			Map<String, Integer> offsetsById = new HashMap<String, Integer>(dataById.size() * 4 / 3 + 1);
+			for (Map.Entry<String, byte[]> entry : dataById.entrySet()) {
+				byte[] data = entry.getValue();
+				out.writeInt(data.length);
+				offsetsById.put(entry.getKey(), out.size());
+				out.write(data);
+			}
+			int tableOffset = out.size();
+			out.writeInt(dataById.size());
+			for (Map.Entry<String, byte[]> entry : dataById.entrySet()) {
+				byte[] id = entry.getKey().getBytes(IO.UTF_8);
+				out.writeShort(id.length);
+				out.write(id);
+				out.writeInt(offsetsById.get(entry.getKey()));
+				out.writeInt(entry.getValue().length);
+			}
+			out.flush();
+			DataOutputStream footer = new DataOutputStream(fileOut);
+			footer.writeLong(tableOffset);
+			footer.writeLong(crc.getValue());
+			footer.writeInt(MAGIC);
+			footer.flush();
+			fileOut.getFD().sync();
+		} catch (IOException ex) {
+			throw new RuntimeException("Writing entity snapshot failed: " + file, ex);
+		} finally {
+			IO.closeQuiet(fileOut);
+		}
+		IO.move(tempFile, file, true);
+	}
+
+	@Override
+	public String toString() {
+		return "PackedEntitySnapshot(" + size() + " entities, data-version " + dataVersion + ")";
+	}
+
+}
@@ -19,6 +19,7 @@ import ilarkesto.base.Sys;
 import ilarkesto.core.persistance.TransferableEntity;
 import ilarkesto.di.app.AApplication;
 import ilarkesto.gwt.server.AGwtConversation;
+import ilarkesto.gwt.server.EntityBroadcast;
 import ilarkesto.logging.DefaultLogRecordHandler;
 import ilarkesto.webapp.jsonapi.JsonApiFactory;
 import ilarkesto.webapp.jsonapi.ReflectionJsonApiFactory;
@@ -26,6 +27,8 @@ import ilarkesto.webapp.jsonapi.ReflectionJsonApiFactory;
 import java.io.File;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
@@ -189,6 +192,39 @@ public abstract class AWebApplication extends AApplication {
 		}
 	}
 
+	/**
+	 * Modification times of entities at their last broadcast, least recently broadcasted first. Base for
+	 * sending only modified properties.
+	 */
+	private final Map<String, Long> broadcastModificationTimes = new LinkedHashMap<String, Long>(1024, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_BROADCAST_MODIFICATION_TIMES;
+		}
+	};
+
+	private static final int MAX_BROADCAST_MODIFICATION_TIMES = 100000;
+
+	/**
+	 * Prepares the entity changes of a commit once and enqueues them to all conversations. Each conversation
+	 * applies them with its own visibility filter, when sending data to its client.
+	 */
+	public void broadcastEntityChanges(Collection<String> deletedIds, Collection<TransferableEntity> modified,
+			Collection<TransferableEntity> created, Map<String, Map<String, String>> modifiedPropertiesByEntityId) {
+		EntityBroadcast broadcast;
+		synchronized (broadcastModificationTimes) {
+			broadcast = new EntityBroadcast(deletedIds, modified, created, modifiedPropertiesByEntityId,
+					broadcastModificationTimes);
+			broadcast.updatePreviousModificationTimes(broadcastModificationTimes);
+		}
+		if (broadcast.isEmpty()) return;
+		if (log.isDebugEnabled()) log.debug("Broadcasting entity changes:", broadcast);
+		for (AGwtConversation conversation : getGwtConversations()) {
+			conversation.enqueue(broadcast);
+		}
+	}
+
 	public void deleteFromClients(Collection<String> entityIds) {
 		if (entityIds == null || entityIds.isEmpty()) return;
 		for (AGwtConversation conversation : getGwtConversations()) {
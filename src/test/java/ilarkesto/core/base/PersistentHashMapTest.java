@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.base;
+
+import ilarkesto.testng.ATest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class PersistentHashMapTest extends ATest {
+
+	@Test
+	public void plusAndMinus() {
+		Random random = new Random(1);
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+		for (int i = 0; i < 20000; i++) {
+			String key = String.valueOf(random.nextInt(5000));
+			if (random.nextInt(3) == 0) {
+				expected.remove(key);
+				map = map.minus(key);
+			} else {
+				expected.put(key, i);
+				map = map.plus(key, i);
+			}
+		}
+		assertEquals(map.size(), expected.size());
+		assertEquals(map, expected);
+		assertEquals(new HashMap<String, Integer>(map), expected);
+	}
+
+	@Test
+	public void copiesAreIndependent() {
+		PersistentHashMap<String, String> a = PersistentHashMap.empty();
+		a = a.plus("1", "a").plus("2", "b");
+		PersistentHashMap<String, String> b = a.plus("3", "c").minus("1");
+
+		assertEquals(a.size(), 2);
+		assertEquals(a.get("1"), "a");
+		assertNull(a.get("3"));
+		assertEquals(b.size(), 2);
+		assertNull(b.get("1"));
+		assertEquals(b.get("3"), "c");
+		assertSame(a.plus("1", "a"), a);
+		assertSame(a.minus("x"), a);
+	}
+
+	@Test
+	public void hashCollisions() {
+		// "Aa" and "BB" have the same hash code
+		PersistentHashMap<String, String> map = PersistentHashMap.empty();
+		map = map.plus("Aa", "1").plus("BB", "2").plus("AaAa", "3").plus("BBBB", "4").plus("AaBB", "5");
+		assertEquals(map.size(), 5);
+		assertEquals(map.get("BB"), "2");
+		assertEquals(map.get("AaBB"), "5");
+		map = map.plus("BB", "x").minus("Aa").minus("AaAa");
+		assertEquals(map.size(), 3);
+		assertNull(map.get("Aa"));
+		assertEquals(map.get("BB"), "x");
+		assertEquals(map.keySet().size(), 3);
+		map = map.minus("BB").minus("BBBB").minus("AaBB");
+		assertTrue(map.isEmpty());
+		assertFalse(map.entrySet().iterator().hasNext());
+	}
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import ilarkesto.testng.ATest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class EntityCacheTest extends ATest {
+
+	@Test
+	public void typedQueries() {
+		EntityCache cache = new EntityCache();
+		for (int i = 0; i < 100; i++) {
+			cache.add(new Car().setId("car" + i));
+		}
+		cache.add(new Animal().setId("animal"));
+		cache.add(new Dog().setId("dog"));
+
+		CountingQuery<Animal> animals = new CountingQuery<Animal>(Animal.class);
+		assertSize(cache.list(animals), 2);
+		assertEquals(animals.count, 2);
+
+		CountingQuery<Dog> dogs = new CountingQuery<Dog>(Dog.class);
+		assertEquals(cache.get(dogs).getId(), "dog");
+		assertEquals(dogs.count, 1);
+
+		assertSize(cache.list(new AllByTypeQuery<Animal>(Animal.class)), 1);
+		assertSize(cache.list(new AllByTypeQuery<Car>(Car.class)), 100);
+
+		// new types become visible to queries of their super types
+		cache.add(new Puppy().setId("puppy"));
+		assertSize(cache.list(new CountingQuery<Animal>(Animal.class)), 3);
+
+		// replacing and removing
+		cache.add(new Dog().setId("animal"));
+		assertSize(cache.list(new AllByTypeQuery<Animal>(Animal.class)), 0);
+		assertSize(cache.list(new AllByTypeQuery<Dog>(Dog.class)), 2);
+		cache.remove("dog");
+		assertSize(cache.list(new CountingQuery<Dog>(Dog.class)), 2);
+
+		Map<Class, Integer> counts = cache.countEntities();
+		assertEquals(counts.get(Car.class), Integer.valueOf(100));
+		assertEquals(counts.get(Dog.class), Integer.valueOf(1));
+		assertNull(counts.get(Animal.class));
+	}
+
+	@Test
+	public void residency() {
+		EntityCache cache = new EntityCache();
+		cache.setResidencyLimit(10, new EntityCache.Loader() {
+
+			@Override
+			public AEntity loadEntity(Class type, String id) {
+				return type == Dog.class ? new Dog().setId(id) : new Car().setId(id);
+			}
+		});
+		for (int i = 0; i < 50; i++) {
+			cache.add(new Car().setId("car" + i));
+			cache.add(new Dog().setId("dog" + i));
+		}
+		assertEquals(cache.getResidentCount(), 10);
+		assertEquals(cache.size(), 100);
+		assertEquals(cache.countEntities().get(Dog.class), Integer.valueOf(50));
+		assertEquals(cache.getEvictionCount(), 90);
+
+		assertTrue(cache.contains("car0"));
+		assertEquals(cache.get("car0").getId(), "car0");
+		assertEquals(cache.getReloadCount(), 1);
+
+		assertSize(cache.list(new AllByTypeQuery<Dog>(Dog.class)), 50);
+		assertEquals(cache.getResidentCount(), 10);
+		assertEquals(cache.size(), 100);
+
+		cache.remove("car1");
+		assertEquals(cache.size(), 99);
+		assertFalse(cache.contains("car1"));
+	}
+
+	@Test
+	public void propertyQueries() {
+		EntityCache cache = new EntityCache();
+		for (int i = 0; i < 100; i++) {
+			cache.add(new Person("p" + (i % 10), "p" + (i + 1), "p" + (i + 2)).setId("p" + i));
+		}
+		cache.add(new Person("p3").setId("single"));
+
+		CountingPropertyQuery byName = new CountingPropertyQuery("name", "p3");
+		assertSize(cache.list(byName), 11);
+		assertEquals(byName.count, 11);
+		assertEquals(cache.getIndexCount(), 1);
+
+		assertSize(cache.list(new ReferenceQuery<Person>(Person.class, "friendIds", "p5", true)), 2);
+		assertSize(cache.list(new PropertyInSetQuery<Person>(Person.class, "name", Arrays.asList("p1", "p2", "x"))),
+			20);
+		assertNull(cache.get(new PropertyEqualsQuery<Person>(Person.class, "name", "x")));
+		assertEquals(cache.getIndexCount(), 2);
+
+		// property updates
+		Person person = (Person) cache.get("p13");
+		person.name = "renamed";
+		assertSize(cache.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p3")), 10);
+		cache.add(person);
+		assertEquals(cache.get(new PropertyEqualsQuery<Person>(Person.class, "name", "renamed")), person);
+		cache.remove("p23");
+		assertSize(cache.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p3")), 9);
+
+		// types with few entities are scanned
+		cache.add(new Employee("p3").setId("employee"));
+		assertSize(cache.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p3")), 10);
+		assertEquals(cache.getIndexCount(), 2);
+	}
+
+	@Test
+	public void frozenCopies() {
+		EntityCache cache = new EntityCache();
+		for (int i = 0; i < 100; i++) {
+			cache.add(new Person("p" + (i % 10)).setId("p" + i));
+			cache.add(new Car().setId("car" + i));
+		}
+		cache.freeze();
+		try {
+			cache.add(new Car().setId("car"));
+			failExceptionExpected(IllegalStateException.class);
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+
+		// indexes are built by readers of frozen caches
+		assertSize(cache.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p3")), 10);
+		assertEquals(cache.getIndexCount(), 1);
+
+		EntityCache copy = cache.copy();
+		Person person = new Person("p3");
+		person.setId("p100");
+		copy.add(person);
+		copy.remove("p3");
+		copy.remove("car0");
+		copy.freeze();
+
+		assertSize(copy.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p3")), 10);
+		assertTrue(copy.contains("p100"));
+		assertFalse(copy.contains("car0"));
+		assertEquals(copy.countEntities().get(Car.class), Integer.valueOf(99));
+
+		// the original is unchanged
+		assertSize(cache.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p3")), 10);
+		assertTrue(cache.contains("p3"));
+		assertFalse(cache.contains("p100"));
+		assertEquals(cache.countEntities().get(Car.class), Integer.valueOf(100));
+
+		// copies of copies share their maps and indexes
+		EntityCache secondCopy = copy.copy();
+		secondCopy.remove("p13");
+		secondCopy.add(new Person("p4").setId("p23"));
+		secondCopy.freeze();
+		assertSize(secondCopy.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p3")), 8);
+		assertSize(secondCopy.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p4")), 11);
+		assertEquals(secondCopy.countEntities().get(Person.class), Integer.valueOf(99));
+		assertSize(copy.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p3")), 10);
+		assertSize(copy.list(new PropertyEqualsQuery<Person>(Person.class, "name", "p4")), 10);
+		assertEquals(copy.countEntities().get(Person.class), Integer.valueOf(100));
+	}
+
+	static class Person extends AEntity {
+
+		private String name;
+		private List<String> friendIds;
+
+		public Person(String name, String... friendIds) {
+			this.name = name;
+			this.friendIds = Arrays.asList(friendIds);
+			updateLastModified();
+		}
+
+		@Override
+		public void storeProperties(Map<String, String> properties) {
+			super.storeProperties(properties);
+			properties.put("name", Persistence.propertyAsString(name));
+			properties.put("friendIds", Persistence.propertyAsString(friendIds));
+		}
+
+	}
+
+	static class Employee extends Person {
+
+		public Employee(String name) {
+			super(name);
+		}
+
+	}
+
+	static class CountingPropertyQuery extends PropertyEqualsQuery<Person> {
+
+		private int count;
+
+		public CountingPropertyQuery(String property, String value) {
+			super(Person.class, property, value);
+		}
+
+		@Override
+		public boolean test(Person entity) {
+			count++;
+			return super.test(entity);
+		}
+
+	}
+
+	static class Car extends AEntity {}
+
+	static class Animal extends AEntity {}
+
+	static class Dog extends Animal {}
+
+	static class Puppy extends Dog {}
+
+	static class CountingQuery<T extends AEntity> extends AEntityQuery<T> {
+
+		private Class<T> type;
+		private int count;
+
+		public CountingQuery(Class<T> type) {
+			this.type = type;
+		}
+
+		@Override
+		public boolean test(T entity) {
+			count++;
+			return true;
+		}
+
+		@Override
+		public Class<T> getType() {
+			return type;
+		}
+
+	}
+
+}
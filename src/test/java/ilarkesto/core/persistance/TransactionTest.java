@@ -0,0 +1,277 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.core.persistance;
+
+import ilarkesto.testng.ATest;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class TransactionTest extends ATest {
+
+	private static final int ROOTS = 100;
+	private static final int CHILDREN = 999;
+
+	@Test
+	public void integrityOfBigTransaction() {
+		TestDatabase database = new TestDatabase();
+		AEntityDatabase.instance = database;
+
+		Transaction transaction = database.getTransaction();
+		for (int i = 0; i < ROOTS; i++) {
+			Node root = new Node(null);
+			root.setId("root" + i);
+			root.persist();
+			for (int j = 0; j < CHILDREN; j++) {
+				new Node(root.getId()).persist();
+			}
+		}
+		Node.checks = 0;
+		transaction.commit();
+		assertEquals(database.listAll().size(), ROOTS * (CHILDREN + 1));
+		// each entity once, modifying itself does not trigger another check
+		assertEquals(Node.checks, ROOTS * (CHILDREN + 1));
+
+		transaction = database.getTransaction();
+		for (int i = 0; i < 10; i++) {
+			AEntity.getById("root" + i).delete();
+		}
+		Node.checks = 0;
+		transaction.commit();
+		// children of the deleted roots delete themselves
+		assertEquals(database.listAll().size(), (ROOTS - 10) * (CHILDREN + 1));
+		assertEquals(Node.checks, 10 * CHILDREN);
+	}
+
+	@Test
+	public void streamingQueries() {
+		TestDatabase database = new TestDatabase();
+		AEntityDatabase.instance = database;
+
+		Transaction transaction = database.getTransaction();
+		for (int i = 0; i < 1000; i++) {
+			Node node = new Node(null);
+			node.setId("node" + i);
+			node.name = String.valueOf(1000 + i);
+			node.persist();
+		}
+		transaction.commit();
+
+		transaction = database.getTransaction();
+		AEntity.getById("node0").delete();
+		Node modified = (Node) AEntity.getById("node500");
+		modified.name = "0500";
+		modified.fireModified("name", modified.name);
+
+		CountingQuery query = new CountingQuery();
+		List<AEntity> page = transaction.list(query, 5, 10);
+		assertSize(page, 10);
+		// stops as soon as the page is complete
+		assertEquals(query.count, 15);
+		assertEquals(transaction.count(new CountingQuery()), 999);
+
+		Comparator<AEntity> byName = new Comparator<AEntity>() {
+
+			@Override
+			public int compare(AEntity a, AEntity b) {
+				return ((Node) a).name.compareTo(((Node) b).name);
+			}
+		};
+		List<AEntity> top = transaction.list(new CountingQuery(), byName, 0, 3);
+		assertEquals(top.get(0).getId(), "node500");
+		assertEquals(top.get(1).getId(), "node1");
+		assertEquals(top.get(2).getId(), "node2");
+		assertSize(transaction.list(new CountingQuery(), byName, 998, 10), 1);
+		assertSize(transaction.list(new CountingQuery(), byName, 999, 10), 0);
+
+		assertEquals(transaction.getFirst(new CountingQuery()), modified);
+		transaction.rollback();
+	}
+
+	@Test
+	public void queryCache() {
+		TestDatabase database = new TestDatabase();
+		AEntityDatabase.instance = database;
+
+		Transaction transaction = database.getTransaction();
+		for (int i = 0; i < 100; i++) {
+			new Node(null).persist();
+		}
+		transaction.commit();
+
+		assertSize(new AllByTypeQuery<Node>(Node.class).list(), 100);
+		assertSize(new AllByTypeQuery<Node>(Node.class).list(), 100);
+		assertEquals(database.getQueryCache().getHitCount(), 1);
+		assertEquals(database.getQueryCache().getMissCount(), 1);
+
+		// not cacheable
+		assertSize(new CountingQuery().list(), 100);
+		assertEquals(database.getQueryCache().getMissCount(), 1);
+
+		// other types do not invalidate
+		transaction = database.getTransaction();
+		new Tag().persist();
+		transaction.commit();
+		assertSize(new AllByTypeQuery<Node>(Node.class).list(), 100);
+		assertEquals(database.getQueryCache().getHitCount(), 2);
+
+		// uncommitted changes are merged by the transaction
+		transaction = database.getTransaction();
+		new Node(null).persist();
+		assertSize(new AllByTypeQuery<Node>(Node.class).list(), 101);
+		assertEquals(database.getQueryCache().getHitCount(), 3);
+		transaction.commit();
+
+		assertSize(new AllByTypeQuery<Node>(Node.class).list(), 101);
+		assertEquals(database.getQueryCache().getHitCount(), 3);
+		assertEquals(database.getQueryCache().getMissCount(), 2);
+	}
+
+	@Test
+	public void backReferences() {
+		TestDatabase database = new TestDatabase();
+		AEntityDatabase.instance = database;
+
+		Transaction transaction = database.getTransaction();
+		Node root1 = new Node(null);
+		root1.persist();
+		Node root2 = new Node(null);
+		root2.persist();
+		for (int i = 0; i < 100; i++) {
+			new Node(i % 2 == 0 ? root1.getId() : root2.getId()).persist();
+		}
+		transaction.commit();
+		assertSize(Node.children.getById(root1.getId()), 50);
+
+		// open transaction
+		transaction = database.getTransaction();
+		Node child = Node.children.getById(root1.getId()).iterator().next();
+		child.parentId = root2.getId();
+		child.fireModified("parentId", child.parentId);
+		new Node(root1.getId()).persist();
+		assertSize(Node.children.getById(root1.getId()), 50);
+		assertSize(Node.children.getById(root2.getId()), 51);
+		assertContains(Node.children.getById(root2.getId()), child);
+		transaction.commit();
+
+		assertSize(Node.children.getById(root1.getId()), 50);
+		assertSize(Node.children.getById(root2.getId()), 51);
+	}
+
+	static class Tag extends AEntity {}
+
+	static class CountingQuery extends AEntityQuery<Node> {
+
+		private int count;
+
+		@Override
+		public boolean test(Node entity) {
+			count++;
+			return true;
+		}
+
+		@Override
+		public Class<Node> getType() {
+			return Node.class;
+		}
+
+	}
+
+	static class Node extends AEntity {
+
+		private static int checks;
+
+		private static final AEntitySetBackReferenceHelper<Node> children = new AEntitySetBackReferenceHelper<Node>() {
+
+			@Override
+			protected Set<Node> loadById(String id) {
+				return new ReferenceQuery<Node>(Node.class, "parentId", id).list();
+			}
+		};
+
+		private String parentId;
+		private String name;
+
+		public Node(String parentId) {
+			this.parentId = parentId;
+		}
+
+		@Override
+		protected void onEnsureIntegrity() {
+			checks++;
+			if (parentId != null && !exists(parentId)) {
+				delete();
+				return;
+			}
+			if (name == null) {
+				name = "node";
+				fireModified("name", name);
+			}
+		}
+
+		@Override
+		public Set<AEntity> getReferencedEntities() {
+			Set<AEntity> ret = super.getReferencedEntities();
+			if (parentId == null) {
+				ret.addAll(children.getById(getId()));
+			} else if (exists(parentId)) {
+				ret.add(getById(parentId));
+			}
+			return ret;
+		}
+
+		@Override
+		public void storeProperties(Map<String, String> properties) {
+			super.storeProperties(properties);
+			properties.put("parentId", parentId);
+			properties.put("name", name);
+		}
+
+	}
+
+	static class TestDatabase extends ACachingEntityDatabase {
+
+		private Transaction transaction;
+
+		@Override
+		public Transaction getTransaction() {
+			if (transaction == null) transaction = new Transaction(this, "test", false, true);
+			return transaction;
+		}
+
+		@Override
+		public void onTransactionFinished(Transaction transaction) {
+			this.transaction = null;
+		}
+
+		@Override
+		public boolean isTransactionWithChangesOpen() {
+			return transaction != null && !transaction.isEmpty();
+		}
+
+		@Override
+		protected void onUpdate(Collection<AEntity> entities, Collection<String> entityIds,
+				Map<String, Map<String, String>> modifiedPropertiesByEntityId, Runnable callback) {
+			if (callback != null) callback.run();
+		}
+
+	}
+
+}
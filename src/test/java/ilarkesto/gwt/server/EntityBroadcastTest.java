@@ -0,0 +1,131 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.gwt.server;
+
+import ilarkesto.core.persistance.AEntity;
+import ilarkesto.core.persistance.TransferBus;
+import ilarkesto.gwt.client.ADataTransferObject;
+import ilarkesto.testng.ATest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class EntityBroadcastTest extends ATest {
+
+	@Test
+	public void passengersArePreparedOnce() {
+		Item shared = new Item(null);
+		shared.setId("shared");
+		Item a = new Item(shared);
+		a.setId("a");
+		Item b = new Item(shared);
+		b.setId("b");
+		Item deleted = new Item(null);
+		deleted.setId("deleted");
+
+		EntityBroadcast broadcast = new EntityBroadcast(Arrays.asList("deleted"), Arrays.asList(a, b, deleted),
+				Collections.<Item> emptyList());
+		assertFalse(broadcast.isEmpty());
+		assertSize(broadcast.getItems(), 2);
+		EntityBroadcast.Item itemA = broadcast.getItems().get(0);
+		EntityBroadcast.Item itemB = broadcast.getItems().get(1);
+		assertTrue(itemA.ifTracking);
+		assertSize(itemA.payloads, 2);
+		EntityBroadcast.Payload sharedA = itemA.payloads.get(0).entity == shared ? itemA.payloads.get(0)
+				: itemA.payloads.get(1);
+		EntityBroadcast.Payload sharedB = itemB.payloads.get(0).entity == shared ? itemB.payloads.get(0)
+				: itemB.payloads.get(1);
+		assertSame(sharedA, sharedB);
+		assertEquals(sharedA.properties.get("id"), "shared");
+		assertTrue(broadcast.getDeletedIds().contains("deleted"));
+
+		assertTrue(new EntityBroadcast(null, null, null).isEmpty());
+	}
+
+	@Test
+	public void deltas() {
+		Item item = new Item(null);
+		item.setId("item");
+		item.name = "a long name";
+		Map<String, Long> previousModificationTimes = new HashMap<String, Long>();
+
+		// entities not broadcasted before are sent completely
+		EntityBroadcast broadcast = new EntityBroadcast(null, Arrays.asList(item), null,
+				modifiedProperties("item", "flag"), previousModificationTimes);
+		assertNull(broadcast.getItems().get(0).payloads.get(0).delta);
+		broadcast.updatePreviousModificationTimes(previousModificationTimes);
+		Long previousModificationTime = item.getModificationTime();
+		assertEquals(previousModificationTimes.get("item"), previousModificationTime);
+
+		item.flag = true;
+		item.modificationTime++;
+		broadcast = new EntityBroadcast(null, Arrays.asList(item), null, modifiedProperties("item", "flag"),
+				previousModificationTimes);
+		EntityBroadcast.Payload payload = broadcast.getItems().get(0).payloads.get(0);
+		assertEquals(payload.previousModificationTime, previousModificationTime);
+		assertEquals(payload.delta.get("flag"), "true");
+		assertEquals(payload.delta.get(ADataTransferObject.DELTA_PROPERTY), "true");
+		assertFalse(payload.delta.containsKey("name"));
+		assertEquals(payload.properties.get("name"), "a long name");
+		assertTrue(broadcast.getDeltaBytes() < broadcast.getFullBytes());
+
+		broadcast.updatePreviousModificationTimes(previousModificationTimes);
+		assertEquals(previousModificationTimes.get("item"), item.getModificationTime());
+	}
+
+	private static Map<String, Map<String, String>> modifiedProperties(String id, String property) {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("id", id);
+		properties.put(property, null);
+		Map<String, Map<String, String>> ret = new HashMap<String, Map<String, String>>();
+		ret.put(id, properties);
+		return ret;
+	}
+
+	static class Item extends AEntity {
+
+		private Item passenger;
+		private String name;
+		private boolean flag;
+		private long modificationTime = 1000;
+
+		public Item(Item passenger) {
+			this.passenger = passenger;
+		}
+
+		@Override
+		public Long getModificationTime() {
+			return modificationTime;
+		}
+
+		@Override
+		public void storeProperties(Map<String, String> properties) {
+			super.storeProperties(properties);
+			properties.put("name", name);
+			properties.put("flag", String.valueOf(flag));
+		}
+
+		@Override
+		public void collectPassengers(TransferBus ret) {
+			ret.add(passenger);
+		}
+
+	}
+
+}
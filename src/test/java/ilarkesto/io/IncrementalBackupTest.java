@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.io;
+
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class IncrementalBackupTest extends ATest {
+
+	@Test
+	public void chain() throws IOException {
+		File root = getTestOutputFile("chain");
+		IO.delete(root);
+		File dir = new File(root.getPath() + "/data");
+		File backupDir = new File(dir.getPath() + "/backups");
+		IncrementalBackup backup = new IncrementalBackup(dir, backupDir, "test_");
+		backup.setFullBackupInterval(3);
+
+		write(dir, "a.txt", "a1");
+		write(dir, "sub/b.txt", "b1");
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			big.append('x');
+		}
+		write(dir, "big.dat", big.toString());
+		IncrementalBackup.Snapshot snapshot = backup.createSnapshot("1");
+		assertTrue(snapshot.isFull());
+		assertEquals(snapshot.getChangedCount(), 3);
+		// appended after the snapshot, while the hard link is not compressed yet
+		FileOutputStream out = new FileOutputStream(new File(dir.getPath() + "/big.dat"), true);
+		out.write("appended".getBytes());
+		out.close();
+		snapshot.compress();
+
+		write(dir, "a.txt", "a2 changed");
+		IO.delete(new File(dir.getPath() + "/sub/b.txt"));
+		write(dir, "c.txt", "c1");
+		snapshot = backup.createSnapshot("2");
+		assertFalse(snapshot.isFull());
+		assertEquals(snapshot.getChangedCount(), 3);
+		snapshot.compress();
+
+		snapshot = backup.createSnapshot("3");
+		assertEquals(snapshot.getChangedCount(), 0);
+		snapshot.compress();
+
+		assertEquals(backup.listBackups(), Arrays.asList("test_1", "test_2", "test_3"));
+
+		File restored1 = new File(root.getPath() + "/restored1");
+		backup.restore("test_1", restored1);
+		assertEquals(read(restored1, "a.txt"), "a1");
+		assertEquals(read(restored1, "sub/b.txt"), "b1");
+		assertEquals(read(restored1, "big.dat").length(), 100000);
+
+		File restored3 = new File(root.getPath() + "/restored3");
+		backup.restore("test_3", restored3);
+		assertEquals(read(restored3, "a.txt"), "a2 changed");
+		assertEquals(read(restored3, "c.txt"), "c1");
+		assertEquals(read(restored3, "big.dat").length(), 100008);
+		assertFalse(new File(restored3.getPath() + "/sub/b.txt").exists());
+
+		// only backups containing files of the latest one are kept
+		backup.deleteOldBackups(System.currentTimeMillis() + 1000);
+		assertEquals(backup.listBackups(), Arrays.asList("test_2", "test_3"));
+		backup.restore("test_3", new File(root.getPath() + "/restored3b"));
+
+		snapshot = backup.createSnapshot("4");
+		assertTrue(snapshot.isFull());
+		snapshot.compress();
+		backup.deleteOldBackups(System.currentTimeMillis() + 1000);
+		assertEquals(backup.listBackups(), Arrays.asList("test_4"));
+		assertFalse(new File(backupDir.getPath() + "/test_1.zip").exists());
+	}
+
+	private static void write(File dir, String path, String text) {
+		IO.writeFile(new File(dir.getPath() + "/" + path), text, IO.UTF_8);
+	}
+
+	private static String read(File dir, String path) {
+		return IO.readFile(new File(dir.getPath() + "/" + path), IO.UTF_8);
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.testng.ATest;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+public class DaoIndexTest extends ATest {
+
+	@Test
+	public void index() {
+		TransactionService transactionService = DaoServiceTest.createTransactionService(TestEntity.createStore(
+			getTestOutputFile("index"), 100));
+		LabelDao dao = createDao(transactionService);
+
+		assertSize(dao.byLabel.get(null), 100);
+		assertSize(dao.byLabel.get("a"), 0);
+
+		for (int i = 0; i < 10; i++) {
+			setLabel(dao, dao.getById(String.valueOf(i)), "a");
+		}
+		setLabel(dao, dao.getById("10"), "b");
+		assertSize(dao.byLabel.get("a"), 10);
+		assertSize(dao.byLabel.get(null), 89);
+		assertEquals(dao.byLabel.getFirst("b").getId(), "10");
+		assertSize(dao.sortedByLabel.getRange("a", "b"), 11);
+		assertSize(dao.sortedByLabel.getRange("b", null), 1);
+		transactionService.commit();
+
+		dao.deleteEntity(dao.getById("0"));
+		assertSize(dao.byLabel.get("a"), 9);
+		transactionService.cancel();
+		assertSize(dao.byLabel.get("a"), 10);
+
+		dao.deleteEntity(dao.getById("0"));
+		transactionService.commit();
+		assertSize(dao.byLabel.get("a"), 9);
+		assertEquals(dao.byLabel.size(), 99);
+	}
+
+	@Test
+	public void rangeOnHashIndex() {
+		LabelDao dao = createDao(DaoServiceTest.createTransactionService(TestEntity.createStore(
+			getTestOutputFile("rangeOnHashIndex"), 1)));
+		try {
+			dao.byLabel.getRange("a", "b");
+			failExceptionExpected(IllegalStateException.class);
+		} catch (IllegalStateException ex) {}
+	}
+
+	private static void setLabel(LabelDao dao, TestEntity entity, String label) {
+		entity.setLabel(label);
+		dao.onDatobModified(entity, "label", label);
+	}
+
+	private static LabelDao createDao(TransactionService transactionService) {
+		DaoService daoService = new DaoService();
+		daoService.setTransactionService(transactionService);
+		LabelDao dao = new LabelDao();
+		dao.setTransactionService(transactionService);
+		dao.setDaoService(daoService);
+		return dao;
+	}
+
+	static class LabelDao extends TestEntity.TestEntityDao {
+
+		final DaoIndex<TestEntity, String> byLabel = addIndex(new LabelIndex(false));
+		final DaoIndex<TestEntity, String> sortedByLabel = addIndex(new LabelIndex(true));
+
+	}
+
+	static class LabelIndex extends DaoIndex<TestEntity, String> {
+
+		public LabelIndex(boolean sorted) {
+			super(sorted);
+		}
+
+		@Override
+		protected Collection<String> getKeys(TestEntity entity) {
+			return Collections.singleton(entity.getLabel());
+		}
+
+	}
+
+}
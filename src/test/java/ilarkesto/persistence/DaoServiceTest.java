@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.base.Reflect;
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.core.fp.Predicate;
+import ilarkesto.core.persistance.EntityDoesNotExistException;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class DaoServiceTest extends ATest {
+
+	/**
+	 * Compares the old predicate scan with the keyed lookup.
+	 */
+	public static void main(String[] args) {
+		int count = 500000;
+		int lookups = 1000;
+		TransactionService transactionService = createTransactionService(TestEntity.createStore(new File(OUTPUT_DIR
+				+ "/DaoServiceTest/benchmark"), count));
+		DaoService daoService = createDaoService(transactionService);
+
+		RuntimeTracker rt = new RuntimeTracker();
+		for (int i = 0; i < lookups; i++) {
+			final String id = String.valueOf(count - 1 - i);
+			transactionService.getEntity(null, new Predicate<AEntity>() {
+
+				@Override
+				public boolean test(AEntity e) {
+					return id.equals(e.getId());
+				}
+			});
+		}
+		long scanTime = rt.getRuntime();
+
+		rt = new RuntimeTracker();
+		for (int i = 0; i < lookups; i++) {
+			daoService.getEntityById(String.valueOf(count - 1 - i));
+		}
+		long lookupTime = rt.getRuntime();
+
+		System.out.println(lookups + " lookups in " + count + " entities:");
+		System.out.println("  predicate scan: " + scanTime + " msec");
+		System.out.println("  keyed lookup:   " + lookupTime + " msec");
+	}
+
+	@Test
+	public void getEntityById() {
+		DaoService daoService = createDaoService(createTransactionService(TestEntity.createStore(
+			getTestOutputFile("getEntityById"), 1000)));
+
+		assertEquals(daoService.getEntityById("0").getId(), "0");
+		assertEquals(daoService.getEntityById("999").getId(), "999");
+		assertTrue(daoService.containsEntityWithId("500"));
+		assertFalse(daoService.containsEntityWithId("1000"));
+		try {
+			daoService.getEntityById("1000");
+			failExceptionExpected(EntityDoesNotExistException.class);
+		} catch (EntityDoesNotExistException ex) {}
+		assertSize(daoService.getByIds(Arrays.asList("1", "2", "3")), 3);
+	}
+
+	static TransactionService createTransactionService(EntityStore entityStore) {
+		TransactionService transactionService = new TransactionService();
+		Reflect.setFieldValue(transactionService, "entityStore", entityStore);
+		return transactionService;
+	}
+
+	private static DaoService createDaoService(TransactionService transactionService) {
+		DaoService daoService = new DaoService();
+		daoService.setTransactionService(transactionService);
+		return daoService;
+	}
+
+}
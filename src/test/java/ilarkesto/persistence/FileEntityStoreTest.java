@@ -0,0 +1,429 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.base.Tm;
+import ilarkesto.core.fp.Predicate;
+import ilarkesto.io.IO;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+public class FileEntityStoreTest extends ATest {
+
+	@Test
+	public void loadParallel() {
+		File dir = getTestOutputFile("loadParallel");
+		IO.delete(dir);
+		for (int i = 0; i < 1000; i++) {
+			IO.writeFile(new File(dir.getPath() + "/TestEntity/" + i + ".xml"), String.valueOf(i), IO.UTF_8);
+		}
+		IO.writeFile(new File(dir.getPath() + "/TestEntity/broken.xml"), "", IO.UTF_8);
+
+		FileEntityStore store = TestEntity.createStore(dir);
+		store.setLoadParallelism(4);
+		store.load(TestEntity.class, "TestEntity", true);
+
+		assertEquals(store.getEntitiesCount(null, null), 1000);
+		assertNotNull(store.getById("0"));
+		assertNotNull(store.getById("999"));
+		assertFalse(new File(dir.getPath() + "/TestEntity/broken.xml").exists());
+		assertSize(IO.listFiles(new File(dir.getPath() + "/backups")), 1);
+	}
+
+	@Test
+	public void loadParallelFailure() {
+		File dir = getTestOutputFile("loadParallelFailure");
+		IO.delete(dir);
+		for (int i = 0; i < 100; i++) {
+			IO.writeFile(new File(dir.getPath() + "/TestEntity/" + i + ".xml"), String.valueOf(i), IO.UTF_8);
+		}
+		IO.writeFile(new File(dir.getPath() + "/TestEntity/broken.xml"), "", IO.UTF_8);
+
+		FileEntityStore store = TestEntity.createStore(dir);
+		store.setLoadParallelism(4);
+		try {
+			store.load(TestEntity.class, "TestEntity", false);
+			fail("RuntimeException expected");
+		} catch (RuntimeException ex) {}
+		assertTrue(new File(dir.getPath() + "/TestEntity/broken.xml").exists());
+	}
+
+	@Test
+	public void journal() {
+		File dir = getTestOutputFile("journal");
+		IO.delete(dir);
+		FileEntityStore store = createJournalingStore(dir);
+		List<AEntity> none = Collections.emptyList();
+		TestEntity a = TestEntity.create("a");
+		TestEntity b = TestEntity.create("b");
+		store.persist(Arrays.<AEntity> asList(a, b), none);
+		store.persist(none, Arrays.<AEntity> asList(a));
+		assertFalse(new File(dir.getPath() + "/TestEntity/b.xml").exists());
+		store.lock();
+
+		store = createJournalingStore(dir);
+		assertNull(store.getById("a"));
+		assertNotNull(store.getById("b"));
+
+		store.compactJournal();
+		assertTrue(new File(dir.getPath() + "/TestEntity/b.xml").exists());
+		assertFalse(new File(dir.getPath() + "/TestEntity/a.xml").exists());
+		store.lock();
+
+		store = createJournalingStore(dir);
+		assertNull(store.getById("a"));
+		assertNotNull(store.getById("b"));
+	}
+
+	@Test
+	public void journalGroupCommit() throws InterruptedException {
+		File dir = getTestOutputFile("journalGroupCommit");
+		IO.delete(dir);
+		FileEntityStore store = createJournalingStore(dir);
+		final TransactionService transactionService = DaoServiceTest.createTransactionService(store);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final int no = i;
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 50; j++) {
+						transactionService.saveEntity(TestEntity.create(no + "-" + j));
+						transactionService.commit();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		EntityJournal journal = store.getJournal();
+		log.info("Journal batches:", journal.getAppendedBatches(), "syncs:", journal.getSyncCount());
+		assertEquals(journal.getAppendedBatches(), 400);
+		assertTrue(journal.getSyncCount() < journal.getAppendedBatches());
+		store.lock();
+
+		assertEquals(createJournalingStore(dir).getEntitiesCount(null, null), 400);
+	}
+
+	@Test
+	public void compactClusters() {
+		File dir = getTestOutputFile("compactClusters");
+		IO.delete(dir);
+		File entitiesDir = new File(dir.getPath() + "/TestEntity");
+		FileEntityStore store = createStore(dir);
+		List<AEntity> none = Collections.emptyList();
+		store.persist(Arrays.<AEntity> asList(TestEntity.create("a"), TestEntity.create("b")), none);
+
+		store.compactClusters();
+		assertTrue(new File(entitiesDir, "cluster-1.xml").exists());
+		assertFalse(new File(entitiesDir, "a.xml").exists());
+
+		// only changes get packed into the next generation
+		store.persist(Arrays.<AEntity> asList(TestEntity.create("c")), Arrays.asList(store.getById("a")));
+		assertTrue(new File(entitiesDir, "a.deleted").exists());
+		store.compactClusters();
+		assertEquals(IO.readFile(new File(entitiesDir, "cluster-2.xml"), IO.UTF_8), "ids:c");
+		assertFalse(new File(entitiesDir, "a.deleted").exists());
+
+		store = createStore(dir);
+		assertNull(store.getById("a"));
+		assertNotNull(store.getById("b"));
+		assertNotNull(store.getById("c"));
+
+		// merge
+		for (int i = 0; i < 7; i++) {
+			store.persist(Arrays.<AEntity> asList(TestEntity.create("x" + i)), none);
+			store.compactClusters();
+		}
+		assertSize(IO.listFiles(entitiesDir), 1);
+		store = createStore(dir);
+		assertEquals(store.getEntitiesCount(null, null), 9);
+		assertNull(store.getById("a"));
+	}
+
+	/**
+	 * An entity file written again while packing must stay, even when its timestamp did not change.
+	 */
+	@Test
+	public void compactClustersWhileSaving() {
+		File dir = getTestOutputFile("compactClustersWhileSaving");
+		IO.delete(dir);
+		final File file = new File(dir.getPath() + "/TestEntity/a.xml");
+		final FileEntityStore store = TestEntity.createStore(dir);
+		final AtomicBoolean packing = new AtomicBoolean();
+		store.setBeanSerializer(new TestEntity.TestSerializer() {
+
+			@Override
+			public Object deserialize(InputStream in) {
+				Object ret = super.deserialize(in);
+				if (packing.getAndSet(false)) {
+					TestEntity entity = TestEntity.create("a");
+					entity.setLabel("new");
+					long lastModified = file.lastModified();
+					store.persist(Arrays.<AEntity> asList(entity), Collections.<AEntity> emptyList());
+					// within the same timestamp tick
+					file.setLastModified(lastModified);
+				}
+				return ret;
+			}
+		});
+		store.load(TestEntity.class, "TestEntity", false);
+		TestEntity entity = TestEntity.create("a");
+		entity.setLabel("old");
+		store.persist(Arrays.<AEntity> asList(entity), Collections.<AEntity> emptyList());
+
+		packing.set(true);
+		store.compactClusters();
+		assertEquals(IO.readFile(file, IO.UTF_8), "a=new");
+
+		assertEquals(((TestEntity) createStore(dir).getById("a")).getLabel(), "new");
+	}
+
+	/**
+	 * Every commit replaces a pair of entities. Readers must always see exactly one complete pair.
+	 */
+	@Test
+	public void snapshotReads() throws InterruptedException {
+		File dir = getTestOutputFile("snapshotReads");
+		IO.delete(dir);
+		final FileEntityStore store = createStore(dir);
+		store.persist(Arrays.<AEntity> asList(TestEntity.create("a0"), TestEntity.create("b0")),
+			Collections.<AEntity> emptyList());
+
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicInteger reads = new AtomicInteger();
+		final AtomicInteger inconsistentReads = new AtomicInteger();
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread() {
+
+				@Override
+				public void run() {
+					while (writing.get()) {
+						Set<AEntity> entities = store.getEntities(null, null);
+						Set<String> generations = new HashSet<String>();
+						for (AEntity entity : entities) {
+							generations.add(entity.getId().substring(1));
+						}
+						if (entities.size() != 2 || generations.size() != 1) inconsistentReads.incrementAndGet();
+						String generation = generations.iterator().next();
+						if (store.getById("a" + generation) == null && store.getById("b" + generation) != null)
+							inconsistentReads.incrementAndGet();
+						reads.incrementAndGet();
+					}
+				}
+			};
+			readers[i].start();
+		}
+
+		for (int i = 1; i <= 300; i++) {
+			store.persist(Arrays.<AEntity> asList(TestEntity.create("a" + i), TestEntity.create("b" + i)),
+				Arrays.asList(store.getById("a" + (i - 1)), store.getById("b" + (i - 1))));
+		}
+		writing.set(false);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		log.info("Reads during commits:", reads.get());
+		assertEquals(inconsistentReads.get(), 0);
+		assertEquals(store.getEntitiesCount(null, null), 2);
+		assertNotNull(store.getById("b300"));
+	}
+
+	@Test
+	public void writeBehind() {
+		File dir = getTestOutputFile("writeBehind");
+		IO.delete(dir);
+		File file = new File(dir.getPath() + "/TestEntity/a.xml");
+		FileEntityStore store = TestEntity.createStore(dir);
+		store.setWriteBehindDelay(Tm.MINUTE);
+		store.load(TestEntity.class, "TestEntity", false);
+		List<AEntity> none = Collections.emptyList();
+
+		TestEntity a = TestEntity.create("a");
+		for (int i = 0; i < 10; i++) {
+			store.persist(Arrays.<AEntity> asList(a), none);
+		}
+		assertSame(store.getById("a"), a);
+		assertFalse(file.exists());
+		assertEquals(store.getWriteBehindQueue().getPendingCount(), 1);
+
+		synchronized (store) {
+			// as when backing up
+			store.flush();
+		}
+		assertTrue(file.exists());
+		assertEquals(store.getWriteBehindQueue().getCoalescedCount(), 9);
+
+		store.persist(Arrays.<AEntity> asList(TestEntity.create("b")), none);
+		store.persist(none, Arrays.<AEntity> asList(a));
+		assertNull(store.getById("a"));
+		store.lock();
+		assertFalse(file.exists());
+		assertTrue(new File(dir.getPath() + "/TestEntity/b.xml").exists());
+		try {
+			store.persist(Arrays.<AEntity> asList(a), none);
+			fail("RuntimeException expected");
+		} catch (RuntimeException ex) {}
+	}
+
+	@Test
+	public void residency() {
+		File dir = getTestOutputFile("residency");
+		IO.delete(dir);
+		for (int i = 0; i < 1000; i++) {
+			IO.writeFile(new File(dir.getPath() + "/TestEntity/" + i + ".xml"), String.valueOf(i), IO.UTF_8);
+		}
+		FileEntityStore store = TestEntity.createStore(dir);
+		store.setResidencyBudget(1000);
+		store.load(TestEntity.class, "TestEntity", false);
+		EntityResidency residency = store.getResidency();
+		List<AEntity> none = Collections.emptyList();
+
+		assertEquals(store.getEntitiesCount(null, null), 1000);
+		assertTrue(residency.getResidentCount() < 1000);
+		assertTrue(residency.getResidentBytes() <= 1000);
+		assertEquals(residency.getReloadCount(), 0);
+
+		// evicted entities are read from their files
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(store.getById(String.valueOf(i)).getId(), String.valueOf(i));
+		}
+		assertTrue(residency.getReloadCount() > 0);
+		AEntity entity = store.getById("999");
+		assertSame(store.getById("999"), entity);
+
+		assertSize(store.getEntities(null, null), 1000);
+		assertEquals(store.getEntitiesCount(null, null), 1000);
+		assertTrue(residency.getResidentBytes() <= 1000);
+
+		// deleting evicted entities, saving new ones
+		store.persist(Arrays.<AEntity> asList(TestEntity.create("new")), Arrays.<AEntity> asList(TestEntity.create("1")));
+		assertNull(store.getById("1"));
+		assertFalse(new File(dir.getPath() + "/TestEntity/1.xml").exists());
+		assertNotNull(store.getById("new"));
+		assertEquals(store.getEntitiesCount(null, null), 1000);
+		assertTrue(residency.getEvictionCount() > 0);
+	}
+
+	@Test
+	public void residencyKeepsIdentity() {
+		File dir = getTestOutputFile("residencyKeepsIdentity");
+		IO.delete(dir);
+		for (int i = 0; i < 1000; i++) {
+			IO.writeFile(new File(dir.getPath() + "/TestEntity/" + i + ".xml"), String.valueOf(i), IO.UTF_8);
+		}
+		FileEntityStore store = TestEntity.createStore(dir);
+		store.setResidencyBudget(1000);
+		store.load(TestEntity.class, "TestEntity", false);
+		EntityResidency residency = store.getResidency();
+
+		// evicted while referenced
+		AEntity entity = store.getById("0");
+		for (int i = 1; i < 1000; i++) {
+			store.getById(String.valueOf(i));
+		}
+		assertSame(store.getById("0"), entity);
+
+		// scans don't make evicted entities resident
+		long reloads = residency.getReloadCount();
+		int resident = residency.getResidentCount();
+		Set<AEntity> entities = store.getEntities(null, null);
+		assertSize(entities, 1000);
+		assertEquals(store.getEntitiesCount(null, new Predicate<AEntity>() {
+
+			@Override
+			public boolean test(AEntity e) {
+				return true;
+			}
+		}), 1000);
+		assertEquals(residency.getReloadCount(), reloads);
+		assertEquals(residency.getResidentCount(), resident);
+		for (AEntity scanned : entities) {
+			assertSame(store.getById(scanned.getId()), scanned);
+		}
+	}
+
+	/**
+	 * Journaled entities must not be evicted while compaction writes their files, otherwise the outdated file
+	 * would be read and written back.
+	 */
+	@Test
+	public void residencyWhileCompactingJournal() throws InterruptedException {
+		File dir = getTestOutputFile("residencyWhileCompactingJournal");
+		IO.delete(dir);
+		for (int i = 0; i < 300; i++) {
+			IO.writeFile(new File(dir.getPath() + "/TestEntity/" + i + ".xml"), i + "=old", IO.UTF_8);
+		}
+		final FileEntityStore store = TestEntity.createStore(dir);
+		store.setJournaling(true);
+		store.setResidencyBudget(500);
+		store.load(TestEntity.class, "TestEntity", false);
+
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		Thread compactor = new Thread() {
+
+			@Override
+			public void run() {
+				while (writing.get()) {
+					store.compactJournal();
+				}
+			}
+		};
+		compactor.start();
+		List<AEntity> none = Collections.emptyList();
+		for (int i = 0; i < 300; i++) {
+			TestEntity entity = TestEntity.create(String.valueOf(i));
+			entity.setLabel("new");
+			store.persist(Arrays.<AEntity> asList(entity), none);
+		}
+		writing.set(false);
+		compactor.join();
+		store.compactJournal();
+		store.lock();
+
+		for (int i = 0; i < 300; i++) {
+			assertEquals(IO.readFile(new File(dir.getPath() + "/TestEntity/" + i + ".xml"), IO.UTF_8), i + "=new");
+		}
+	}
+
+	private FileEntityStore createStore(File dir) {
+		FileEntityStore store = TestEntity.createStore(dir);
+		store.load(TestEntity.class, "TestEntity", false);
+		return store;
+	}
+
+	private FileEntityStore createJournalingStore(File dir) {
+		FileEntityStore store = TestEntity.createStore(dir);
+		store.setJournaling(true);
+		store.load(TestEntity.class, "TestEntity", false);
+		return store;
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.core.base.Str;
+import ilarkesto.io.IO;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+public class TestEntity extends AEntity {
+
+	static final TestEntityDao dao = new TestEntityDao();
+
+	private String label;
+
+	@Override
+	public ADao getDao() {
+		return dao;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * Sets the label without notifying the dao.
+	 */
+	public void setLabel(String label) {
+		this.label = label;
+	}
+
+	public static TestEntity create(String id) {
+		TestEntity entity = new TestEntity();
+		entity.setId(id);
+		return entity;
+	}
+
+	/**
+	 * Creates a store which contains <code>count</code> entities with the ids <code>"0"</code> to
+	 * <code>count - 1</code>, loaded through a cluster file.
+	 */
+	public static FileEntityStore createStore(File dir, int count) {
+		IO.delete(dir);
+		IO.writeFile(new File(dir.getPath() + "/" + FileEntityStore.CLUSTER_FILE_NAME), TestSerializer.CLUSTER + count,
+			IO.UTF_8);
+		FileEntityStore store = createStore(dir);
+		store.load(TestEntity.class, "TestEntity", false);
+		return store;
+	}
+
+	public static FileEntityStore createStore(File dir) {
+		FileEntityStore store = new FileEntityStore();
+		store.setDir(dir.getPath());
+		store.setBackupDir(dir.getPath() + "/backups");
+		store.setBeanSerializer(new TestSerializer());
+		return store;
+	}
+
+	static class TestEntityDao extends ADao<TestEntity> {
+
+		@Override
+		public String getEntityName() {
+			return "TestEntity";
+		}
+
+		@Override
+		public Class getEntityClass() {
+			return TestEntity.class;
+		}
+
+	}
+
+	/**
+	 * Writes the id and the label of an entity, or the ids of a collection. A cluster file can also contain
+	 * the number of entities to generate.
+	 */
+	static class TestSerializer extends Serializer {
+
+		static final String CLUSTER = "cluster:";
+		static final String IDS = "ids:";
+		static final String LABEL = "=";
+
+		@Override
+		public void setAlias(String alias, Class clazz) {}
+
+		@Override
+		public void serialize(Object bean, OutputStream out) {
+			if (bean instanceof Collection) {
+				IO.writeText(out, IDS + Str.concat(Persist.getIdsAsList((Collection<AEntity>) bean), ","), IO.UTF_8);
+				return;
+			}
+			TestEntity entity = (TestEntity) bean;
+			String label = entity.getLabel();
+			IO.writeText(out, label == null ? entity.getId() : entity.getId() + LABEL + label, IO.UTF_8);
+		}
+
+		@Override
+		public Object deserialize(InputStream in) {
+			String s = IO.readToString(in, IO.UTF_8);
+			if (Str.isBlank(s)) throw new IllegalArgumentException("empty entity file");
+			if (s.startsWith(IDS)) {
+				List<TestEntity> ret = new ArrayList<TestEntity>();
+				for (String id : s.substring(IDS.length()).split(",")) {
+					ret.add(create(id));
+				}
+				return ret;
+			}
+			if (!s.startsWith(CLUSTER)) {
+				int idx = s.indexOf(LABEL);
+				if (idx < 0) return create(s);
+				TestEntity entity = create(s.substring(0, idx));
+				entity.setLabel(s.substring(idx + LABEL.length()));
+				return entity;
+			}
+
+			int count = Integer.parseInt(s.substring(CLUSTER.length()));
+			List<TestEntity> ret = new ArrayList<TestEntity>(count);
+			for (int i = 0; i < count; i++) {
+				ret.add(create(String.valueOf(i)));
+			}
+			return ret;
+		}
+
+	}
+
+}
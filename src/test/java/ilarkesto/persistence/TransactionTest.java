@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence;
+
+import ilarkesto.core.base.RuntimeTracker;
+import ilarkesto.testng.ATest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class TransactionTest extends ATest {
+
+	@Test
+	public void commitLargeTransaction() {
+		int count = 50000;
+		RecordingEntityStore store = new RecordingEntityStore();
+		Transaction transaction = new Transaction(store);
+
+		// every saved entity saves a new one while ensuring integrity
+		List<CheckedEntity> entities = new ArrayList<CheckedEntity>(count * 2);
+		for (int i = 0; i < count; i++) {
+			CheckedEntity entity = new CheckedEntity(transaction, String.valueOf(i));
+			entity.next = new CheckedEntity(transaction, String.valueOf(count + i));
+			entities.add(entity);
+			entities.add(entity.next);
+			transaction.saveEntity(entity);
+		}
+		assertNotNull(transaction.getById("0"));
+		assertNull(transaction.getById(String.valueOf(count)));
+
+		RuntimeTracker rt = new RuntimeTracker();
+		transaction.commit();
+		log.info("Transaction with", count * 2, "entities committed in", rt.getRuntimeFormated());
+
+		assertEquals(store.saved.size(), count * 2);
+		for (CheckedEntity entity : entities) {
+			assertEquals(entity.integrityChecks, 1);
+		}
+	}
+
+	@Test
+	public void commitChain() {
+		RecordingEntityStore store = new RecordingEntityStore();
+		Transaction transaction = new Transaction(store);
+
+		CheckedEntity first = new CheckedEntity(transaction, "0");
+		CheckedEntity entity = first;
+		for (int i = 1; i < 500; i++) {
+			entity.next = new CheckedEntity(transaction, String.valueOf(i));
+			entity = entity.next;
+		}
+		CheckedEntity deleted = new CheckedEntity(transaction, "deleted");
+		entity.next = deleted;
+		transaction.saveEntity(first);
+		transaction.deleteEntity(deleted);
+		transaction.commit();
+
+		assertEquals(store.saved.size(), 500);
+		assertEquals(store.deleted, Arrays.asList((AEntity) deleted));
+		for (entity = first; entity != deleted; entity = entity.next) {
+			assertEquals(entity.integrityChecks, 1);
+		}
+		assertEquals(deleted.integrityChecks, 0);
+	}
+
+	@Test
+	public void commitEntityChangedInLaterRound() {
+		RecordingEntityStore store = new RecordingEntityStore();
+		Transaction transaction = new Transaction(store);
+
+		// a saves b in the first round, b saves a again in the second one
+		CheckedEntity a = new CheckedEntity(transaction, "a");
+		CheckedEntity b = new CheckedEntity(transaction, "b");
+		a.next = b;
+		b.next = a;
+		transaction.saveEntity(a);
+		transaction.commit();
+
+		assertEquals(store.saved.size(), 2);
+		assertEquals(a.integrityChecks, 2);
+		assertEquals(b.integrityChecks, 1);
+	}
+
+	@Test
+	public void getById() {
+		Transaction transaction = new Transaction(new RecordingEntityStore());
+		TestEntity registered = TestEntity.create("registered");
+		transaction.registerEntity(registered);
+		TestEntity saved = TestEntity.create("saved");
+		transaction.saveEntity(saved);
+
+		assertSame(transaction.getById("registered"), registered);
+		assertSame(transaction.getById("saved"), saved);
+		assertTrue(transaction.isPersistent("saved"));
+		assertFalse(transaction.isPersistent("registered"));
+		assertSize(transaction.getByIds(Arrays.asList("saved", "registered", "unknown")), 2);
+
+		transaction.deleteEntity(saved);
+		assertNull(transaction.getById("saved"));
+		assertTrue(transaction.isDeleted(saved));
+		assertFalse(transaction.isPersistent("saved"));
+	}
+
+	static class CheckedEntity extends TestEntity {
+
+		private Transaction transaction;
+		private CheckedEntity next;
+		private int integrityChecks;
+
+		public CheckedEntity(Transaction transaction, String id) {
+			this.transaction = transaction;
+			setId(id);
+		}
+
+		@Override
+		public void ensureIntegrity() {
+			integrityChecks++;
+			if (next != null && integrityChecks == 1) transaction.saveEntity(next);
+		}
+
+	}
+
+	static class RecordingEntityStore extends DummyEntityStore {
+
+		private List<AEntity> saved = new ArrayList<AEntity>();
+		private List<AEntity> deleted = new ArrayList<AEntity>();
+
+		@Override
+		public void persist(Collection<AEntity> entitiesToSave, Collection<AEntity> entitiesToDelete) {
+			saved.addAll(entitiesToSave);
+			deleted.addAll(entitiesToDelete);
+		}
+
+	}
+
+}
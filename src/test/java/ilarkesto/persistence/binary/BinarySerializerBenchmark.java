@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+import ilarkesto.integration.xstream.XStreamSerializer;
+import ilarkesto.persistence.Serializer;
+import ilarkesto.persistence.binary.BinarySerializerTest.Bean;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares size and speed of <code>BinarySerializer</code> and <code>XStreamSerializer</code>, writing and
+ * reading single entities as well as a cluster of entities.
+ */
+public class BinarySerializerBenchmark {
+
+	private static final int ROUNDS = 5;
+	private static final int ENTITIES = 10000;
+
+	public static void main(String[] args) {
+		List<Bean> beans = new ArrayList<Bean>(ENTITIES);
+		for (int i = 0; i < ENTITIES; i++) {
+			beans.add(Bean.createSample(i));
+		}
+
+		XStreamSerializer xstream = new XStreamSerializer();
+		xstream.setAlias("Bean", Bean.class);
+		BinarySerializer binary = new BinarySerializer();
+		binary.setAlias("Bean", Bean.class);
+
+		for (int round = 0; round < ROUNDS; round++) {
+			System.out.println("Round " + (round + 1));
+			benchmark("  xstream", xstream, beans);
+			benchmark("  binary ", binary, beans);
+		}
+	}
+
+	private static void benchmark(String name, Serializer serializer, List<Bean> beans) {
+		long bytes = 0;
+		long writeTime = 0;
+		long readTime = 0;
+		for (Bean bean : beans) {
+			long start = System.nanoTime();
+			byte[] data = serialize(serializer, bean);
+			writeTime += System.nanoTime() - start;
+			bytes += data.length;
+
+			start = System.nanoTime();
+			serializer.deserialize(new ByteArrayInputStream(data));
+			readTime += System.nanoTime() - start;
+		}
+		System.out.println(name + " files:   " + bytes / beans.size() + " bytes, write " + writeTime / 1000000
+				+ " ms, read " + readTime / 1000000 + " ms");
+
+		long start = System.nanoTime();
+		byte[] data = serialize(serializer, beans);
+		long clusterWriteTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		serializer.deserialize(new ByteArrayInputStream(data));
+		long clusterReadTime = System.nanoTime() - start;
+		System.out.println(name + " cluster: " + data.length + " bytes, write " + clusterWriteTime / 1000000
+				+ " ms, read " + clusterReadTime / 1000000 + " ms");
+	}
+
+	private static byte[] serialize(Serializer serializer, Object bean) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(bean, out);
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.binary;
+
+import ilarkesto.core.money.Money;
+import ilarkesto.core.time.Date;
+import ilarkesto.core.time.DateAndTime;
+import ilarkesto.core.time.Time;
+import ilarkesto.core.time.TimePeriod;
+import ilarkesto.email.EmailAddress;
+import ilarkesto.io.IO;
+import ilarkesto.persistence.Serializer;
+import ilarkesto.testng.ATest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class BinarySerializerTest extends ATest {
+
+	@Test
+	public void roundTrip() {
+		Bean bean = Bean.createSample(1);
+		bean.child = Bean.createSample(2);
+
+		BinarySerializer serializer = new BinarySerializer();
+		serializer.setAlias("Bean", Bean.class);
+		Bean copy = (Bean) serializer.deserialize(new ByteArrayInputStream(serialize(serializer, bean)));
+
+		assertBean(copy, bean);
+		assertBean(copy.child, bean.child);
+		assertNull(copy.child.child);
+		assertNull(copy.text2);
+	}
+
+	@Test
+	public void list() {
+		List<Bean> beans = new ArrayList<Bean>();
+		for (int i = 0; i < 100; i++) {
+			beans.add(Bean.createSample(i));
+		}
+		BinarySerializer serializer = new BinarySerializer();
+		serializer.setAlias("Bean", Bean.class);
+		List<Bean> copy = (List<Bean>) serializer.deserialize(new ByteArrayInputStream(serialize(serializer, beans)));
+		assertSize(copy, 100);
+		assertBean(copy.get(42), beans.get(42));
+	}
+
+	@Test
+	public void schemaChange() {
+		BinarySerializer writer = new BinarySerializer();
+		writer.setAlias("Bean", Bean.class);
+		Bean bean = Bean.createSample(7);
+		byte[] data = serialize(writer, bean);
+
+		BinarySerializer reader = new BinarySerializer();
+		reader.setAlias("Bean", ChangedBean.class);
+		ChangedBean copy = (ChangedBean) reader.deserialize(new ByteArrayInputStream(data));
+
+		assertEquals(copy.text, bean.text);
+		assertEquals(copy.count, Long.valueOf(7));
+		assertEquals(copy.big, 7);
+		assertEquals(copy.tags, new HashSet<String>(bean.tags));
+		assertEquals(copy.added, "default");
+		assertEquals(copy.date, "keep");
+	}
+
+	@Test
+	public void fallback() {
+		BinarySerializer serializer = new BinarySerializer(new TextSerializer());
+		assertEquals(serializer.deserialize(new ByteArrayInputStream("legacy".getBytes())), "legacy");
+		assertEquals(serializer.deserialize(new ByteArrayInputStream(serialize(serializer, "binary"))), "binary");
+	}
+
+	@Test
+	public void invalidData() {
+		BinarySerializer serializer = new BinarySerializer();
+		byte[] data = serialize(serializer, Bean.createSample(1));
+		try {
+			serializer.deserialize(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 10)));
+			failExceptionExpected(IllegalStateException.class);
+		} catch (IllegalStateException ex) {}
+		try {
+			serializer.deserialize(new ByteArrayInputStream("<xml/>".getBytes()));
+			failExceptionExpected(RuntimeException.class);
+		} catch (RuntimeException ex) {}
+	}
+
+	private static byte[] serialize(Serializer serializer, Object bean) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.serialize(bean, out);
+		return out.toByteArray();
+	}
+
+	private static void assertBean(Bean actual, Bean expected) {
+		assertEquals(actual.text, expected.text);
+		assertEquals(actual.count, expected.count);
+		assertEquals(actual.flag, expected.flag);
+		assertEquals(actual.amount, expected.amount);
+		assertEquals(actual.big, expected.big);
+		assertEquals(actual.date, expected.date);
+		assertEquals(actual.time, expected.time);
+		assertEquals(actual.dateAndTime, expected.dateAndTime);
+		assertEquals(actual.period, expected.period);
+		assertEquals(actual.money, expected.money);
+		assertEquals(actual.email, expected.email);
+		assertEquals(actual.color, expected.color);
+		assertEquals(actual.tags, expected.tags);
+		assertEquals(actual.ids, expected.ids);
+		assertEquals(actual.properties, expected.properties);
+		assertTrue(Arrays.equals(actual.data, expected.data));
+	}
+
+	enum Color {
+		RED, GREEN
+	}
+
+	static class Bean {
+
+		String text;
+		String text2;
+		int count;
+		boolean flag;
+		double amount;
+		BigDecimal big;
+		Date date;
+		Time time;
+		DateAndTime dateAndTime;
+		TimePeriod period;
+		Money money;
+		EmailAddress email;
+		Color color;
+		List<String> tags;
+		Set<String> ids;
+		Map<String, Integer> properties;
+		byte[] data;
+		Bean child;
+		transient String cache = "cache";
+
+		static Bean createSample(int i) {
+			Bean bean = new Bean();
+			bean.text = "text ä " + i;
+			bean.count = i;
+			bean.flag = true;
+			bean.amount = i / 3d;
+			bean.big = new BigDecimal(i);
+			bean.date = new Date(2011, 12, 24);
+			bean.time = new Time(23, 59, 1);
+			bean.dateAndTime = new DateAndTime(2011, 2, 3, 4, 5, 6);
+			bean.period = new TimePeriod(12345);
+			bean.money = new Money(12, 34, "EUR");
+			bean.email = new EmailAddress("test@example.com");
+			bean.color = Color.GREEN;
+			bean.tags = new ArrayList<String>(Arrays.asList("a", "b", null));
+			bean.ids = new HashSet<String>(Arrays.asList("x", "y"));
+			bean.properties = new LinkedHashMap<String, Integer>();
+			bean.properties.put("k", i);
+			bean.data = new byte[] { 1, 2, 3 };
+			return bean;
+		}
+
+	}
+
+	static class ChangedBean {
+
+		String text;
+		Long count;
+		int big;
+		Set<String> tags;
+		String added = "default";
+		String date = "keep";
+
+	}
+
+	static class TextSerializer extends Serializer {
+
+		@Override
+		public void setAlias(String alias, Class clazz) {}
+
+		@Override
+		public void serialize(Object bean, OutputStream out) {
+			IO.writeText(out, bean.toString(), IO.UTF_8);
+		}
+
+		@Override
+		public Object deserialize(InputStream in) {
+			return IO.readToString(in, IO.UTF_8);
+		}
+
+	}
+
+}
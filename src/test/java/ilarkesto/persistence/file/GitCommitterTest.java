@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.file;
+
+import ilarkesto.integration.git.Git;
+import ilarkesto.integration.git.GitProject;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class GitCommitterTest extends ATest {
+
+	@Test
+	public void batching() throws InterruptedException {
+		RecordingGitProject git = new RecordingGitProject();
+		GitCommitter committer = new GitCommitter(git, 200);
+
+		committer.onChanged("t1");
+		committer.onChanged("t2");
+		committer.onChanged("t3");
+		assertTrue(git.comments.isEmpty());
+		for (int i = 0; i < 50 && committer.getCommitCount() == 0; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(committer.getCommitCount(), 1);
+		assertEquals(git.comments.size(), 1);
+		assertTrue(git.comments.get(0).startsWith("3 transactions"));
+		assertEquals(committer.getLag(), 0);
+
+		// shutdown commits pending changes
+		committer.onChanged("t4");
+		committer.shutdown();
+		assertEquals(git.comments.size(), 2);
+		assertEquals(git.comments.get(1), "t4");
+		assertEquals(git.addCount, 2);
+	}
+
+	@Test
+	public void failure() throws InterruptedException {
+		RecordingGitProject git = new RecordingGitProject();
+		GitCommitter committer = new GitCommitter(git, 60000);
+
+		git.failing = true;
+		committer.onChanged("t1");
+		committer.flush();
+		assertEquals(committer.getCommitCount(), 0);
+		assertEquals(committer.getPendingCount(), 1);
+		Thread.sleep(20);
+		assertTrue(committer.getLag() >= 20);
+
+		// failed changes are committed with the next ones
+		git.failing = false;
+		committer.onChanged("t2");
+		committer.shutdown();
+		assertEquals(committer.getCommitCount(), 1);
+		assertEquals(committer.getPendingCount(), 0);
+		assertEquals(git.comments, Arrays.asList("2 transactions\n\nt1\nt2"));
+	}
+
+	static class RecordingGitProject extends GitProject {
+
+		private List<String> comments = new ArrayList<String>();
+		private int addCount;
+		private volatile boolean failing;
+
+		public RecordingGitProject() {
+			super(new Git(), new File("."));
+		}
+
+		@Override
+		public synchronized void addAll() {
+			addCount++;
+		}
+
+		@Override
+		public synchronized void commit(String comment) {
+			if (failing) throw new RuntimeException("git commit failed");
+			comments.add(comment);
+		}
+
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.file;
+
+import ilarkesto.io.IO;
+import ilarkesto.persistence.EntityJournal;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class JournaledEntityFilesTest extends ATest {
+
+	@Test
+	public void writeBehind() {
+		File dir = getTestOutputFile("writeBehind");
+		IO.delete(dir);
+		final List<String> written = new ArrayList<String>();
+		JournaledEntityFiles files = new JournaledEntityFiles(dir, 60000, new JournaledEntityFiles.Listener() {
+
+			@Override
+			public synchronized void onWritten(List<String> comments) {
+				written.addAll(comments);
+			}
+		});
+
+		files.append(Arrays.asList(save("a", "{a1}"), save("b", "{b1}")), "t1");
+		files.append(Arrays.asList(save("a", "{a2}"), EntityJournal.Record.delete("Item", "b")), "t2");
+		assertFalse(getFile(dir, "a").exists());
+		assertEquals(new String(files.getUnwritten("a").getData()), "{a2}");
+		assertTrue(files.getUnwritten("b").isDelete());
+
+		files.close();
+		assertEquals(IO.readFile(getFile(dir, "a"), IO.UTF_8), "{a2}");
+		assertFalse(getFile(dir, "b").exists());
+		assertNull(files.getUnwritten("a"));
+		assertEquals(written, Arrays.asList("t1", "t2"));
+		assertEquals(new JournaledEntityFiles(dir, 0, null).replay(), 0);
+	}
+
+	@Test
+	public void replay() {
+		File dir = getTestOutputFile("replay");
+		IO.delete(dir);
+		JournaledEntityFiles crashed = new JournaledEntityFiles(dir, 60000, null);
+		crashed.append(Arrays.asList(save("a", "{a1}"), save("b", "{b1}")), "t1");
+		crashed.append(Arrays.asList(save("a", "{a2}"), EntityJournal.Record.delete("Item", "b")), "t2");
+		assertFalse(getFile(dir, "a").exists());
+
+		// not closed, entity files are written from the journal on startup
+		JournaledEntityFiles files = new JournaledEntityFiles(dir, 60000, null);
+		assertEquals(files.replay(), 4);
+		assertEquals(IO.readFile(getFile(dir, "a"), IO.UTF_8), "{a2}");
+		assertFalse(getFile(dir, "b").exists());
+		assertEquals(files.replay(), 0);
+	}
+
+	@Test
+	public void retainSegments() {
+		File dir = getTestOutputFile("retainSegments");
+		IO.delete(dir);
+		JournaledEntityFiles files = new JournaledEntityFiles(dir, 60000, null);
+		files.retainSegments();
+		files.append(Arrays.asList(save("a", "{a1}")), "t1");
+		int segment = files.rotate();
+		files.append(Arrays.asList(save("b", "{b1}")), "t2");
+		files.flush();
+		assertEquals(IO.readFile(getFile(dir, "a"), IO.UTF_8), "{a1}");
+
+		// written, but kept until released
+		assertEquals(files.getJournaledChanges().keySet(), new HashSet<String>(Arrays.asList("a", "b")));
+		files.releaseSegmentsBefore(segment);
+		assertEquals(files.getJournaledChanges().keySet(), Collections.singleton("b"));
+		files.close();
+
+		JournaledEntityFiles restarted = new JournaledEntityFiles(dir, 60000, null);
+		restarted.retainSegments();
+		restarted.replay();
+		assertEquals(restarted.getJournaledChanges().keySet(), Collections.singleton("b"));
+		restarted.releaseSegmentsBefore(restarted.rotate());
+		assertTrue(restarted.getJournaledChanges().isEmpty());
+		restarted.close();
+	}
+
+	private static EntityJournal.Record save(String id, String json) {
+		return EntityJournal.Record.save("Item", id, json.getBytes());
+	}
+
+	private static File getFile(File dir, String id) {
+		return new File(dir.getPath() + "/Item/" + id + ".json");
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 Witoslaw Koczewsi <wi@koczewski.de>
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public
+ * License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package ilarkesto.persistence.file;
+
+import ilarkesto.io.IO;
+import ilarkesto.testng.ATest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class PackedEntitySnapshotTest extends ATest {
+
+	@Test
+	public void writeAndRead() throws Exception {
+		File file = getTestOutputFile("writeAndRead.snapshot");
+		IO.delete(file);
+		assertNull(PackedEntitySnapshot.read(file));
+
+		Map<String, byte[]> dataById = new LinkedHashMap<String, byte[]>();
+		for (int i = 0; i < 1000; i++) {
+			dataById.put("id" + i, ("{\"name\": \"entity " + i + "\"}").getBytes(IO.UTF_8));
+		}
+		dataById.put("ä", new byte[0]);
+		PackedEntitySnapshot.write(file, 7, 12345, dataById);
+
+		PackedEntitySnapshot snapshot = PackedEntitySnapshot.read(file);
+		assertEquals(snapshot.size(), 1001);
+		assertEquals(snapshot.getDataVersion(), 7);
+		assertEquals(snapshot.getTime(), 12345);
+		assertEquals(new String(snapshot.getData("id500"), IO.UTF_8), "{\"name\": \"entity 500\"}");
+		assertEquals(snapshot.getData("ä").length, 0);
+		assertNull(snapshot.getData("unknown"));
+
+		// a damaged snapshot is ignored
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(100);
+		raf.write('X');
+		raf.close();
+		assertNull(PackedEntitySnapshot.read(file));
+	}
+
+}